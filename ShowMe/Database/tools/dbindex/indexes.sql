@@ -0,0 +1,7 @@
+-- Indexes the app's lookups need, built into hillsv1.db when it is made: the app opens the
+-- database read-only and never adds them itself. HillQueriesTest (ShowMeX/test) checks that
+-- HillQueries' lookups use them on a database built with this file.
+--
+-- usage: sqlite3 hillsv1.db < indexes.sql, after importing the csv and before the vacuum
+
+create index if not exists mountains_id on mountains (_id);
@@ -0,0 +1,34 @@
+import os, sys, zlib
+
+# script to write assets/manifest.txt, listing the size and crc32 of every other file in the
+# assets folder. The app checks its first-run copies of the database against these values
+# (see AssetCopier.java), so run this again whenever hillsv1.db or peaks.jet change.
+#
+# usage: python makemanifest.py <assets folder>
+
+if len(sys.argv) != 2:
+	print("usage: python makemanifest.py <assets folder>")
+	sys.exit(1)
+
+assets = sys.argv[1]
+lines = []
+for name in sorted(os.listdir(assets)):
+	path = os.path.join(assets, name)
+	if name == 'manifest.txt' or not os.path.isfile(path):
+		continue
+	crc = 0
+	size = 0
+	f = open(path, 'rb')
+	while True:
+		chunk = f.read(1024 * 1024)
+		if not chunk:
+			break
+		crc = zlib.crc32(chunk, crc)
+		size += len(chunk)
+	f.close()
+	lines.append("%s %d %08x\n" % (name, size, crc & 0xffffffff))
+	print("%s %d bytes" % (name, size))
+
+of = open(os.path.join(assets, 'manifest.txt'), 'w')
+of.writelines(lines)
+of.close()
@@ -0,0 +1,149 @@
+import math, struct, sys
+
+# script to convert a ~ separated hills csv file (id, name, longitude, latitude, height, link,
+# itemtype - the same layout that is imported into hillsv1.db) into the binary peak file read
+# by PeakFile.java. An optional eighth column holds the prominence (DROP_HEIGHT in the merge
+# pipeline, see how_to_merge_datasets_oracle.txt) where it is known.
+#
+# Each record gets an importance byte, used by LabelRanker.java to pick which hills to label.
+# It combines height, prominence and isolation (distance to the nearest higher hill, worked out
+# here) on log scales.
+#
+# usage: python csv2peaks.py <data version> <in.csv> <out file>
+#
+# The data version must match mDatabaseVersion in HillDatabase.java, otherwise the app ignores
+# the file and falls back to the sqlite database. Copy the output to the assets folder as
+# peaks.jet (aapt doesn't compress .jet files, so the app can map it straight out of the apk).
+
+MAGIC = 0x534d4850 # "SMHP"
+FORMAT_VERSION = 2
+HEADER_SIZE = 32
+RECORD_SIZE = 32
+
+# must match HillIndex.java
+CELL_DEGREES = 0.1
+COLUMNS = 3600
+ROWS = 1800
+
+def row(lat):
+	return min(ROWS - 1, max(0, int(math.floor((lat + 90) / CELL_DEGREES))))
+
+def column(lon):
+	return min(COLUMNS - 1, max(0, int(math.floor((lon + 180) / CELL_DEGREES))))
+
+# must match LabelRanker.java
+MAX_HEIGHT_METRES = 9000.0
+# isolation is only searched for this far; anything more isolated scores the same
+MAX_ISOLATION_KM = 50.0
+EARTH_RADIUS_KM = 6371.0
+ISOLATION_CELL_DEGREES = 0.5
+
+def log_scale(value, top):
+	if value <= 0:
+		return 0.0
+	return min(1.0, math.log(1 + value) / math.log(1 + top))
+
+def distance_km(lat1, lon1, lat2, lon2):
+	p1, p2 = math.radians(lat1), math.radians(lat2)
+	dlat = p2 - p1
+	dlon = math.radians(lon2 - lon1)
+	a = math.sin(dlat / 2) ** 2 + math.cos(p1) * math.cos(p2) * math.sin(dlon / 2) ** 2
+	return EARTH_RADIUS_KM * 2 * math.atan2(math.sqrt(a), math.sqrt(max(0.0, 1 - a)))
+
+def isolations(hills):
+	# distance from each hill to the nearest higher one, up to MAX_ISOLATION_KM, using a coarse
+	# grid so only nearby cells are searched
+	cells = {}
+	for i, h in enumerate(hills):
+		c = (int(math.floor(h[2] / 1e6 / ISOLATION_CELL_DEGREES)), int(math.floor(h[3] / 1e6 / ISOLATION_CELL_DEGREES)))
+		cells.setdefault(c, []).append(i)
+	dlat = int(math.ceil(MAX_ISOLATION_KM / 111.0 / ISOLATION_CELL_DEGREES))
+	result = []
+	for h in hills:
+		lat, lon, height = h[2] / 1e6, h[3] / 1e6, h[4]
+		coslat = max(math.cos(math.radians(lat)), 0.01)
+		dlon = min(int(math.ceil(MAX_ISOLATION_KM / (111.0 * coslat) / ISOLATION_CELL_DEGREES)), int(360 / ISOLATION_CELL_DEGREES))
+		row, col = int(math.floor(lat / ISOLATION_CELL_DEGREES)), int(math.floor(lon / ISOLATION_CELL_DEGREES))
+		best = MAX_ISOLATION_KM
+		for r in range(row - dlat, row + dlat + 1):
+			for c in range(col - dlon, col + dlon + 1):
+				# wrap round the antimeridian
+				wc = (c + int(180 / ISOLATION_CELL_DEGREES)) % int(360 / ISOLATION_CELL_DEGREES) - int(180 / ISOLATION_CELL_DEGREES)
+				for j in cells.get((r, wc), ()):
+					o = hills[j]
+					if o[4] > height:
+						best = min(best, distance_km(lat, lon, o[2] / 1e6, o[3] / 1e6))
+		result.append(best)
+	return result
+
+def importance(height, prominence, isolation):
+	hs = log_scale(height, MAX_HEIGHT_METRES)
+	iso = log_scale(isolation, MAX_ISOLATION_KM)
+	if prominence is None:
+		score = 0.7 * hs + 0.3 * iso
+	else:
+		score = 0.5 * hs + 0.3 * log_scale(prominence, MAX_HEIGHT_METRES) + 0.2 * iso
+	# 0 means unknown to PeakFile, so the scale starts at 1
+	return 1 + int(round(max(0.0, min(1.0, score)) * 254))
+
+def utf8(s):
+	if not isinstance(s, bytes):
+		s = s.encode('utf-8')
+	return s
+
+if len(sys.argv) != 4:
+	print("usage: python csv2peaks.py <data version> <in.csv> <out file>")
+	sys.exit(1)
+
+version = int(sys.argv[1])
+hills = []
+skipped = 0
+f = open(sys.argv[2], 'rb')
+for lineno, line in enumerate(f):
+	fields = line.rstrip(b'\r\n').split(b'~')
+	if len(fields) < 7:
+		skipped += 1
+		continue
+	try:
+		hid = int(fields[0])
+		lon = float(fields[2])
+		lat = float(fields[3])
+		height = float(fields[4])
+		prominence = float(fields[7]) if len(fields) > 7 and fields[7].strip() else None
+	except ValueError:
+		print("line %d: bad value, skipped" % (lineno + 1))
+		skipped += 1
+		continue
+	# the app reads these back as int / 1e6, so compute the cell from the same value
+	late6 = int(round(lat * 1e6))
+	lone6 = int(round(lon * 1e6))
+	key = row(late6 / 1e6) * COLUMNS + column(lone6 / 1e6)
+	name, link, itemtype = utf8(fields[1]), utf8(fields[5]), utf8(fields[6])
+	if len(name) > 0xffff or len(link) > 0xffff or len(itemtype) > 0xff:
+		print("line %d: text too long, skipped" % (lineno + 1))
+		skipped += 1
+		continue
+	hills.append((key, hid, late6, lone6, height, name, link, itemtype, prominence))
+f.close()
+
+hills.sort(key=lambda h: (h[0], h[1]))
+
+records = []
+text = []
+textlen = 0
+for h, isolation in zip(hills, isolations(hills)):
+	key, hid, late6, lone6, height, name, link, itemtype, prominence = h
+	records.append(struct.pack('>iiiifiHHBB2x', key, hid, late6, lone6, height, textlen,
+		len(name), len(link), len(itemtype), importance(height, prominence, isolation)))
+	text.append(name + link + itemtype)
+	textlen += len(name) + len(link) + len(itemtype)
+
+textoffset = HEADER_SIZE + RECORD_SIZE * len(records)
+of = open(sys.argv[3], 'wb')
+of.write(struct.pack('>iiiiiiii', MAGIC, FORMAT_VERSION, version, len(records),
+	HEADER_SIZE, RECORD_SIZE, textoffset, textlen))
+of.write(b''.join(records))
+of.write(b''.join(text))
+of.close()
+
+print("wrote %d hills (%d skipped), %d bytes" % (len(records), skipped, textoffset + textlen))
@@ -0,0 +1,181 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Smoothing for noisy angles (compass azimuth, pitch). Every add() and every query is O(1),
+ * whatever the window size. The variation figure keeps the scale the old filteredDirection used,
+ * (variance of cos + variance of sin) * 1000, so the on-screen variation dial reads the same.
+ */
+public abstract class AngleFilter {
+
+	public static final String MODE_MEAN = "mean";
+	public static final String MODE_EXPONENTIAL = "exponential";
+	public static final String MODE_KALMAN = "kalman";
+
+	public abstract void add(double radians);
+
+	// smoothed angle in radians, -PI..PI
+	public abstract double getAngle();
+
+	public abstract int getVariation();
+
+	public static AngleFilter create(String mode, int window) {
+		window = Math.max(window, 2);
+		if (MODE_EXPONENTIAL.equals(mode)) return new Exponential(window);
+		if (MODE_KALMAN.equals(mode)) return new Kalman(window);
+		return new CircularMean(window);
+	}
+
+	/*
+	 * Circular mean over the last 'window' readings, kept as running sums of sin and cos. Slots
+	 * not yet filled count as zero vectors, as they did with the old arrays. Since cos^2+sin^2=1,
+	 * the summed variance of the components only needs the number of filled slots and the sums.
+	 */
+	static class CircularMean extends AngleFilter {
+		private final int window;
+		private final double sinevalues[];
+		private final double cosvalues[];
+		private int index = 0;
+		private int filled = 0;
+		private double sums = 0;
+		private double sumc = 0;
+		private double angle = 0;
+
+		CircularMean(int window) {
+			this.window = window;
+			sinevalues = new double[window];
+			cosvalues = new double[window];
+		}
+
+		public void add(double d) {
+			double s = Math.sin(d);
+			double c = Math.cos(d);
+			sums += s - sinevalues[index];
+			sumc += c - cosvalues[index];
+			sinevalues[index] = s;
+			cosvalues[index] = c;
+			index++;
+			if (filled < window) filled++;
+			if (index == window)
+			{
+				// re-sum once per lap so rounding in the running sums can't build up
+				index = 0;
+				sums = 0;
+				sumc = 0;
+				for (int a = 0; a < window; a++)
+				{
+					sums += sinevalues[a];
+					sumc += cosvalues[a];
+				}
+			}
+			angle = Math.atan2(sums / window, sumc / window);
+		}
+
+		public double getAngle() { return angle; }
+
+		public int getVariation() {
+			double q = (filled - (sums * sums + sumc * sumc) / window) / (window - 1);
+			return (int)(Math.max(q, 0) * 1000);
+		}
+	}
+
+	/*
+	 * Exponentially weighted mean of the unit vector, with a smoothing factor that gives the
+	 * same centre of mass as a window of the given size. The variance is the exponentially
+	 * weighted (Welford-style) variance of each component.
+	 */
+	static class Exponential extends AngleFilter {
+		private final double alpha;
+		private boolean first = true;
+		private double means = 0, meanc = 0;
+		private double vars = 0, varc = 0;
+
+		Exponential(int window) {
+			alpha = 2.0 / (window + 1);
+		}
+
+		public void add(double d) {
+			double s = Math.sin(d);
+			double c = Math.cos(d);
+			if (first)
+			{
+				first = false;
+				means = s;
+				meanc = c;
+				return;
+			}
+			double ds = s - means;
+			double dc = c - meanc;
+			means += alpha * ds;
+			meanc += alpha * dc;
+			vars = (1 - alpha) * (vars + alpha * ds * ds);
+			varc = (1 - alpha) * (varc + alpha * dc * dc);
+		}
+
+		public double getAngle() { return Math.atan2(means, meanc); }
+
+		public int getVariation() { return (int)((vars + varc) * 1000); }
+	}
+
+	/*
+	 * One-state Kalman filter on the angle itself, with innovations wrapped to -PI..PI. The
+	 * process noise is chosen so the steady-state gain roughly matches the exponential filter
+	 * for the same window. The variation is an exponentially weighted mean of the squared
+	 * innovation, which for small errors is close to the cos/sin variance used by the others.
+	 */
+	static class Kalman extends AngleFilter {
+		private static final double MEASUREMENT_NOISE = 1.0;
+		private final double processNoise;
+		private final double alpha;
+		private boolean first = true;
+		private double angle = 0;
+		private double p = MEASUREMENT_NOISE;
+		private double innovationVar = 0;
+
+		Kalman(int window) {
+			alpha = 2.0 / (window + 1);
+			// steady-state gain k satisfies q = k^2 r / (1 - k)
+			processNoise = alpha * alpha * MEASUREMENT_NOISE / (1 - alpha);
+		}
+
+		public void add(double d) {
+			if (first)
+			{
+				first = false;
+				angle = Math.atan2(Math.sin(d), Math.cos(d));
+				return;
+			}
+			p += processNoise;
+			double innovation = d - angle;
+			innovation = Math.atan2(Math.sin(innovation), Math.cos(innovation));
+			double k = p / (p + MEASUREMENT_NOISE);
+			angle += k * innovation;
+			if (angle > Math.PI) angle -= 2 * Math.PI;
+			else if (angle < -Math.PI) angle += 2 * Math.PI;
+			p *= (1 - k);
+			innovationVar += alpha * (innovation * innovation - innovationVar);
+		}
+
+		public double getAngle() { return angle; }
+
+		public int getVariation() { return (int)(innovationVar * 1000); }
+	}
+}
@@ -0,0 +1,202 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/*
+ * Copies a file out of the apk assets in large chunks, verified against the size and CRC32
+ * listed for it in assets/manifest.txt (written by Database/tools/manifest/makemanifest.py).
+ * The data goes to dest + ".part" and is only renamed to dest once it is complete and checked,
+ * so an existing dest is always a whole copy. If the app is killed part way through, the next
+ * copy carries on from the end of the .part file instead of starting again.
+ */
+public class AssetCopier {
+
+	public interface Listener {
+		// called on the copying thread after every chunk; total is -1 if unknown
+		void onCopyProgress(String asset, long copied, long total);
+	}
+
+	static final String MANIFEST = "manifest.txt";
+	private static final int CHUNK_SIZE = 256 * 1024;
+
+	private final Context mContext;
+	private final byte[] mBuffer = new byte[CHUNK_SIZE];
+	private long mExpectedSize = -1;
+	private long mExpectedCrc = -1;
+
+	public AssetCopier(Context context) {
+		mContext = context;
+	}
+
+	// whether dest holds a finished copy of the asset (checks the size only, not the checksum)
+	public boolean isCopied(String asset, File dest) {
+		if (!dest.exists()) return false;
+		readManifest(asset);
+		return mExpectedSize < 0 || dest.length() == mExpectedSize;
+	}
+
+	public boolean copy(String asset, File dest, Listener listener) {
+		readManifest(asset);
+		long total = mExpectedSize >= 0 ? mExpectedSize : assetLength(asset);
+		File part = new File(dest.getPath() + ".part");
+		long start = System.currentTimeMillis();
+		CRC32 crc = new CRC32();
+		long copied = 0;
+		InputStream in = null;
+		FileOutputStream out = null;
+		try {
+			if (part.exists() && total >= 0 && part.length() <= total)
+			{
+				copied = checksum(part, crc);
+				Log.d("showmehills", "Resuming copy of " + asset + " at " + copied + " bytes");
+			}
+			in = mContext.getAssets().open(asset);
+			skipFully(in, copied);
+			out = new FileOutputStream(part, copied > 0);
+			int n;
+			while ((n = in.read(mBuffer)) > 0)
+			{
+				out.write(mBuffer, 0, n);
+				crc.update(mBuffer, 0, n);
+				copied += n;
+				if (listener != null) listener.onCopyProgress(asset, copied, total);
+			}
+			out.flush();
+			out.getFD().sync();
+		} catch (IOException e) {
+			// keep the .part file so the next attempt can resume
+			Log.e("showmehills", "Copy of " + asset + " failed after " + copied + " bytes: " + e.getMessage());
+			return false;
+		} finally {
+			close(in);
+			close(out);
+		}
+
+		if (mExpectedSize >= 0 && (copied != mExpectedSize || crc.getValue() != mExpectedCrc))
+		{
+			Log.e("showmehills", "Copy of " + asset + " failed check: " + copied + " bytes, crc "
+					+ Long.toHexString(crc.getValue()) + ", expected " + mExpectedSize + " bytes, crc " + Long.toHexString(mExpectedCrc));
+			part.delete();
+			return false;
+		}
+		if (mExpectedSize < 0) Log.d("showmehills", "No manifest entry for " + asset + ", copy not verified");
+
+		dest.delete();
+		if (!part.renameTo(dest))
+		{
+			Log.e("showmehills", "Can't rename " + part + " to " + dest);
+			return false;
+		}
+
+		long millis = Math.max(System.currentTimeMillis() - start, 1);
+		// for tracking cold start time; the stats dump reports the throughput
+		PipelineStats.get().countCopy(copied, millis);
+		Log.d("showmehills", "Copied " + asset + " (" + copied + " bytes) in " + millis + "ms, " + (copied / millis) + " KB/s");
+		return true;
+	}
+
+	// manifest lines are "name size crc32", with the crc in hex
+	private void readManifest(String asset) {
+		mExpectedSize = -1;
+		mExpectedCrc = -1;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(mContext.getAssets().open(MANIFEST)));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.trim().split("\\s+");
+				if (fields.length == 3 && fields[0].equals(asset))
+				{
+					mExpectedSize = Long.parseLong(fields[1]);
+					mExpectedCrc = Long.parseLong(fields[2], 16);
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// no manifest; copies can't be checked
+		} catch (NumberFormatException e) {
+			Log.e("showmehills", "Bad manifest entry for " + asset);
+			mExpectedSize = -1;
+		} finally {
+			close(reader);
+		}
+	}
+
+	// only known when aapt stored the asset uncompressed
+	private long assetLength(String asset) {
+		try {
+			AssetFileDescriptor afd = mContext.getAssets().openFd(asset);
+			long length = afd.getLength();
+			afd.close();
+			return length;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	private long checksum(File file, CRC32 crc) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		long length = 0;
+		try {
+			int n;
+			while ((n = in.read(mBuffer)) > 0)
+			{
+				crc.update(mBuffer, 0, n);
+				length += n;
+			}
+		} finally {
+			in.close();
+		}
+		return length;
+	}
+
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+		while (bytes > 0)
+		{
+			long n = in.skip(bytes);
+			if (n <= 0) throw new IOException("asset shorter than partial copy");
+			bytes -= n;
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
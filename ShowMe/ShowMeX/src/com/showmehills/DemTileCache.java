@@ -0,0 +1,152 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Least recently used cache of SRTM elevation tiles. Tiles are the standard one degree .hgt
+ * files (N56W004.hgt etc., 1201x1201 or 3601x3601 big-endian shorts, north row first), read
+ * from a local directory and memory-mapped rather than loaded. Tiles that aren't on disk are
+ * cached too, as an empty tile, so missing coverage doesn't mean a file lookup per sample.
+ * get() may be called from several threads at once.
+ */
+public class DemTileCache {
+	static final short VOID = -32768;
+
+	public static class Tile {
+		private final ShortBuffer samples;
+		private final int size;
+		private final int south, west;
+
+		Tile(ShortBuffer samples, int size, int south, int west) {
+			this.samples = samples;
+			this.size = size;
+			this.south = south;
+			this.west = west;
+		}
+
+		public boolean isEmpty() { return samples == null; }
+
+		public boolean contains(double lat, double lon) {
+			return lat >= south && lat < south + 1 && lon >= west && lon < west + 1;
+		}
+
+		// bilinear interpolation in metres, or NaN if there's no data here
+		public double elevation(double lat, double lon) {
+			if (samples == null) return Double.NaN;
+			double y = (south + 1 - lat) * (size - 1);
+			double x = (lon - west) * (size - 1);
+			int row = Math.min(size - 2, Math.max(0, (int)y));
+			int col = Math.min(size - 2, Math.max(0, (int)x));
+			double fy = y - row, fx = x - col;
+			int i = row * size + col;
+			short h00 = samples.get(i), h01 = samples.get(i + 1);
+			short h10 = samples.get(i + size), h11 = samples.get(i + size + 1);
+			if (h00 == VOID || h01 == VOID || h10 == VOID || h11 == VOID)
+			{
+				// voids are usually steep ground or water; take whatever neighbour is valid
+				short h = h00 != VOID ? h00 : h01 != VOID ? h01 : h10 != VOID ? h10 : h11;
+				return h == VOID ? Double.NaN : h;
+			}
+			return (h00 * (1 - fx) + h01 * fx) * (1 - fy) + (h10 * (1 - fx) + h11 * fx) * fy;
+		}
+	}
+
+	private final File mDirectory;
+	private final LinkedHashMap<Integer, Tile> mTiles;
+	private int mHits = 0;
+	private int mMisses = 0;
+
+	public DemTileCache(File directory, final int maxTiles) {
+		mDirectory = directory;
+		mTiles = new LinkedHashMap<Integer, Tile>(maxTiles * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+				return size() > maxTiles;
+			}
+		};
+	}
+
+	// the tile covering this point; never null, but may be empty
+	public synchronized Tile get(double lat, double lon) {
+		int south = (int)Math.floor(lat);
+		int west = (int)Math.floor(lon);
+		Integer key = Integer.valueOf(key(south, west));
+		Tile tile = mTiles.get(key);
+		if (tile != null)
+		{
+			mHits++;
+			return tile;
+		}
+		mMisses++;
+		tile = load(south, west);
+		mTiles.put(key, tile);
+		return tile;
+	}
+
+	public synchronized int getHits() { return mHits; }
+
+	public synchronized int getMisses() { return mMisses; }
+
+	static int key(int south, int west) {
+		return (south + 90) * 360 + (west + 180);
+	}
+
+	static String fileName(int south, int west) {
+		return String.format(Locale.US, "%c%02d%c%03d.hgt",
+				south < 0 ? 'S' : 'N', Math.abs(south), west < 0 ? 'W' : 'E', Math.abs(west));
+	}
+
+	private Tile load(int south, int west) {
+		if (mDirectory == null) return new Tile(null, 0, south, west);
+		File file = new File(mDirectory, fileName(south, west));
+		if (!file.exists()) return new Tile(null, 0, south, west);
+		int size = (int)Math.round(Math.sqrt(file.length() / 2));
+		if ((long)size * size * 2 != file.length())
+		{
+			Log.e("showmehills", "Not an SRTM tile: " + file);
+			return new Tile(null, 0, south, west);
+		}
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				ShortBuffer samples = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asShortBuffer();
+				Log.d("showmehills", "Mapped elevation tile " + file.getName());
+				return new Tile(samples, size, south, west);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e("showmehills", "Can't read " + file + ": " + e.getMessage());
+			return new Tile(null, 0, south, west);
+		}
+	}
+}
@@ -19,14 +19,7 @@
 
 package com.showmehills;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.File;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -38,34 +31,103 @@ import android.location.Location;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-	public class HillDatabase extends SQLiteOpenHelper{
+	public class HillDatabase extends SQLiteOpenHelper implements HillQueryWorker.Queries{
 		private static String DB_PATH = "/data/data/com.showmehills/databases/";		 
 	    private static String DB_NAME = "hillsv1.db";	
 	    private static int mDatabaseVersion = 9;
 	    private SQLiteDatabase myDataBase; 	 
 	    private final Context myContext;
 	    private boolean mDbCopied = false;
-	    public ArrayList<Hills> localhills = new ArrayList<Hills>();
+	    private volatile AssetCopier.Listener mCopyListener = null;
+	    // the peak file if the apk has one, otherwise an index built once from the mountains
+	    // table; shared by every HillDatabase instance
+	    private static HillSource sIndex = null;
+	    // k-d tree over sIndex for nearest-hills queries, built the first time one is asked for
+	    private static PeakTree sTree = null;
+	    // Building the index or tree can take seconds, so they have a lock of their own and the
+	    // database calls under the class lock don't queue behind them; only reading the whole
+	    // table (when there's no peak file) holds both, as the connection must stay open. Where
+	    // both are needed sIndexLock is taken first, which is why resetIndex only marks the index
+	    // as stale.
+	    private static final Object sIndexLock = new Object();
+	    private static volatile boolean sIndexStale = false;
+	    private static final double EARTH_RADIUS_KM = 6371;
+	    // how far the observer may move before the candidate hills are queried again
+	    private static final double REQUERY_RADIUS_KM = 0.5;
+	    // candidate hills from the last query, with their offsets from the anchor position
+	    private final HillIndex.RecordList mQueryResult = new HillIndex.RecordList();
+	    private double[] mCandidateEast = new double[0];
+	    private double[] mCandidateNorth = new double[0];
+	    private double[] mCandidateLat = new double[0];
+	    private double[] mCandidateLon = new double[0];
+	    private double[] mCandidateSinLat = new double[0];
+	    private double[] mCandidateCosLat = new double[0];
+	    private final GeodesyKernel mGeodesy = new GeodesyKernel();
+	    private final RangeQueryPlanner mPlanner = new RangeQueryPlanner();
+	    private String mCandidateGeodesyMode = null;
+	    private HillSource mCandidateIndex = null;
+	    private float mCandidateMaxDistance = -1;
+	    private double mAnchorLatitude = 0;
+	    private double mAnchorLongitude = 0;
+	    // SRTM tiles and horizon profiles shared by every instance
+	    private static DemTileCache sDem = null;
+	    private static final int DEM_TILES = 16;
+	    private static HorizonCache sHorizons = null;
+	    private static final int HORIZON_PROFILES = 32;
+	    private static final double HORIZON_CELL_METRES = 100;
+	    private static final double HORIZON_ALTITUDE_METRES = 25;
+	    private final HorizonMarcher mMarcher = new HorizonMarcher();
+	    // scratch for NearestHills
+	    private final PeakTree.Neighbours mNeighbours = new PeakTree.Neighbours();
+	    private double[] mNearEast = new double[0];
+	    private double[] mNearNorth = new double[0];
+	    private double[] mNearLat = new double[0];
+	    private double[] mNearLon = new double[0];
+	    private double[] mNearSinLat = new double[0];
+	    private double[] mNearCosLat = new double[0];
 
 	    public HillDatabase(Context context) {	 
 	    	super(context, DB_NAME, null, 1);
 	        this.myContext = context;
 	    }	
+
+	    // progress of the first-run copy of the database out of the apk
+	    public void setCopyListener(AssetCopier.Listener listener) {
+	    	mCopyListener = listener;
+	    }
 	 
+	    // the lock is the class, which getIndex takes (after sIndexLock) when it creates the database
 	    public void createDataBase(){
+	    	synchronized (HillDatabase.class) {
+	    		createDataBaseLocked();
+	    	}
+	    }
+
+	    public boolean checkDataBase(){
+	    	synchronized (HillDatabase.class) {
+	    		return checkDataBaseLocked();
+	    	}
+	    }
+
+	    private void createDataBaseLocked(){
 	    	// made some changes in the database, but need to update it in existing installs!
 	    	// so need to add a version number
-	    	// for now just update db every time
+	    	// copies are renamed into place only once complete, so an existing file is a whole
+	    	// database; checkDataBase then checks its version
 	    	boolean dbExist = checkDataBase();	 
 	    	if(dbExist){
 	    		//do nothing - database already exist
 	    	}else{	 
+	    		// only needed to create the databases directory; the copy replaces this file
 	        	this.getReadableDatabase();	 
+	        	super.close();
 	        	copyDataBase();
 	    	}	 
 	    }
 	 
-	    public boolean checkDataBase(){
+	    // opens a database that is already there, but never copies one
+	    private boolean checkDataBaseLocked(){
+	    	if (!mDbCopied) mDbCopied = new AssetCopier(myContext).isCopied(DB_NAME, new File(DB_PATH + DB_NAME));
 	    	if (!mDbCopied) return false;
 	    	if (myDataBase != null)
 	    	{
@@ -86,14 +148,14 @@ import android.util.Log;
 	    			return false;
 	    		}
 	    		
-				String qu = "select ver from dbversions limit 1";				
-				Cursor cursor = getReadableDatabase().rawQuery( qu, null);
-				if(cursor.moveToFirst()) {
-					if (cursor.getInt(0) != mDatabaseVersion)
+				long ver = HillQueries.readVersion(myDataBase);
+				if (ver >= 0) {
+					if (ver != mDatabaseVersion)
 					{
-						Log.d("showmehills", "Old database ("+cursor.getInt(0)+"). Updating!");
+						Log.d("showmehills", "Old database ("+ver+"). Updating!");
 						myDataBase.close();
 						myDataBase = null;
+						resetIndex();
 						if (myContext.deleteDatabase(DB_NAME))
 						{
 							Log.d("showmehills", "Deleted old database " + myContext.getDatabasePath(DB_NAME));
@@ -104,7 +166,7 @@ import android.util.Log;
 						}
 						return false;
 					}
-				}				
+				}
 	    	}catch(SQLiteException e){	 
 	    		//database does't exist yet.
 	    		e.printStackTrace();
@@ -115,64 +177,22 @@ import android.util.Log;
 	 
 	    private void copyDataBase() {	 
 	    	Log.d("showmehills", "Attempting to copy database " + DB_NAME + " from assets to " + DB_PATH + DB_NAME);
-	    	InputStream myInput;
-			try {
-				myInput = myContext.getAssets().open(DB_NAME);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return;
-			}
-	    	String outFileName = DB_PATH + DB_NAME;
-	    	OutputStream myOutput;
-	    	long bytesCopied = 0;
-			try {
-				myOutput = new FileOutputStream(outFileName);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-		    	try {
-					myInput.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-		    	return;
-			}
-	    	byte[] buffer = new byte[1024];
-	    	int length;
-	    	try {
-				while ((length = myInput.read(buffer))>0){
-					myOutput.write(buffer, 0, length);
-					bytesCopied += length;
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-
-		    	try {
-					myInput.close();
-			    	myOutput.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
-		    	return;
-			}
-	    	try {
-				myOutput.flush();
-		    	myOutput.close();
-		    	myInput.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	    	if (!new AssetCopier(myContext).copy(DB_NAME, new File(DB_PATH + DB_NAME), mCopyListener)) return;
 	    	mDbCopied = true;
-	    	Log.d("showmehills", "Database copied successfully (" + bytesCopied + " bytes), attempting to check database again...");
+	    	resetIndex();
+	    	Log.d("showmehills", "Database copied successfully, attempting to check database again...");
 	    	// should be created, so now open
 	    	checkDataBase();
 	    }
 	 
 	    @Override
-		public synchronized void close() {	 
+		public void close() {	 
+			synchronized (HillDatabase.class) {
 	    	    if(myDataBase != null)
 	    		    myDataBase.close();
 	    	    myDataBase = null;
 	    	    super.close();	 
+			}
 		}
 	 
 		@Override
@@ -180,128 +200,368 @@ import android.util.Log;
 	 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+
+		// called with the class lock held, so getIndex drops the index the next time it runs
+		private static void resetIndex() {
+			sIndexStale = true;
+		}
+
+		// .hgt files go in Android/data/<package>/files/dem on the sd card
+		private DemTileCache getDem() {
+			synchronized (sIndexLock) {
+				if (sDem == null)
+				{
+					File dir = myContext.getExternalFilesDir("dem");
+					sDem = new DemTileCache(dir != null ? dir : new File(myContext.getFilesDir(), "dem"), DEM_TILES);
+				}
+				return sDem;
+			}
+		}
+
+		private HorizonCache getHorizonCache() {
+			synchronized (sIndexLock) {
+				if (sHorizons == null)
+				{
+					sHorizons = new HorizonCache(HORIZON_PROFILES, HORIZON_CELL_METRES, HORIZON_ALTITUDE_METRES);
+					sHorizons.load(new File(myContext.getCacheDir(), "horizons.bin"));
+				}
+				return sHorizons;
+			}
+		}
+
+		public void saveHorizonCache() {
+			HorizonCache horizons;
+			synchronized (sIndexLock) {
+				horizons = sHorizons;
+			}
+			if (horizons != null) horizons.save(new File(myContext.getCacheDir(), "horizons.bin"));
+		}
+
+		// the cached profile for this spot, or a newly marched one; null without elevation data
+		private HorizonProfile getHorizon(double lat, double lon, double altitude, float maxdistance) {
+			HorizonCache horizons = getHorizonCache();
+			HorizonProfile profile = horizons.get(lat, lon, altitude, maxdistance);
+			if (profile == null)
+			{
+				profile = mMarcher.compute(getDem(), lat, lon, altitude, maxdistance);
+				if (profile != null) horizons.put(lat, lon, altitude, profile);
+			}
+			return profile;
+		}
+
+		private HillSource getIndex() {
+			synchronized (sIndexLock) {
+				if (sIndexStale)
+				{
+					sIndexStale = false;
+					sIndex = null;
+				}
+				if (sIndex == null) sIndex = PeakFile.open(myContext, mDatabaseVersion);
+				if (sIndex == null)
+				{
+					// no peak file, so the SQLite database has to be copied out and read in full
+					createDataBase();
+					synchronized (HillDatabase.class) {
+						if (myDataBase != null) sIndex = buildIndex();
+					}
+				}
+				return sIndex;
+			}
+		}
+
+		private PeakTree getTree(HillSource index) {
+			synchronized (sIndexLock) {
+				if (sTree == null || sTree.getSource() != index)
+				{
+					long start = System.currentTimeMillis();
+					sTree = new PeakTree(index);
+					Log.d("showmehills", "Built tree of " + sTree.size() + " hills in " + (System.currentTimeMillis() - start) + "ms");
+				}
+				return sTree;
+			}
+		}
+
+		/*
+		 * A hill's details, on the query worker. They come from the peak file when there is one,
+		 * where record (from the snapshot the hill was shown in, or -1) saves a search for the id;
+		 * only without it is the SQLite database read, and copied out first if need be. source is
+		 * the snapshot's, or null to load the index as a query would. False if the hill isn't there.
+		 */
+		public boolean readHillDetail(int id, HillSource source, int record, HillDetail out) {
+			if (source == null) source = getIndex();
+			if (source instanceof PeakFile)
+			{
+				PeakFile peaks = (PeakFile)source;
+				if (record < 0 || record >= peaks.size() || peaks.id(record) != id) record = peaks.find(id);
+				if (record < 0) return false;
+				out.id = id;
+				out.name = peaks.name(record);
+				out.height = peaks.height(record);
+				out.link = peaks.link(record);
+				out.type = peaks.itemType(record);
+				return true;
+			}
+			synchronized (HillDatabase.class) {
+				createDataBaseLocked();
+				if (!checkDataBaseLocked()) return false;
+				try {
+					return HillQueries.readDetail(myDataBase, id, out);
+				}
+				catch(SQLiteException e){
+					Log.e("showmehills", "bad database read: " + e.getMessage());
+					return false;
+				}
+			}
+		}
+
+		// one full read of the mountains table; every later range query is answered from memory
+		private HillIndex buildIndex() {
+			long start = System.currentTimeMillis();
+			Cursor cursor;
+			try {
+				cursor = myDataBase.rawQuery(HillQueries.ALL_HILLS, null);
+			}
+	    	catch(SQLiteException e){
+	    		return null;
+	    	}
+	        if (cursor == null) return null;
+
+	        HillIndex index = new HillIndex(cursor.getCount());
+			if(cursor.moveToFirst()) {
+	        	do {
+	        		try {
+	        			index.add(cursor.getInt(HillQueries.ALL_ID),
+	        					cursor.getString(HillQueries.ALL_NAME),
+	        					cursor.getDouble(HillQueries.ALL_LONGITUDE),
+	        					cursor.getDouble(HillQueries.ALL_LATITUDE),
+	        					cursor.getDouble(HillQueries.ALL_HEIGHT));
+					} catch(Exception e)
+					{
+						Log.e("showmehills", "bad database read: " + e.getMessage());
+					}
+	        	} while (cursor.moveToNext());
+			}
+			cursor.close();
+			index.seal();
+			Log.d("showmehills", "Indexed " + index.size() + " hills in " + (System.currentTimeMillis() - start) + "ms");
+			return index;
+		}
 	 
-		public void SetDirections(Location curLocation)
+		/*
+		 * Fills localhills with the hills in range of curLocation, nearest first. Keeps query state
+		 * between calls, so it must always be called from the same thread (see HillQueryWorker).
+		 */
+		public void SetDirections(Location curLocation, HillStore localhills)
 		{
 			if (curLocation == null) return;
 			
-			if (myDataBase == null)
-			{
-				createDataBase();
-				if (myDataBase == null) return;
-			}
-			
 			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(myContext);
 			String md = prefs.getString("distance", "25");
 			if (md == "") md = "25";
-	        Float maxdistance = Float.parseFloat(md);
+	        float maxdistance = Float.parseFloat(md);
 	        
 			md = prefs.getString("mindistance", "0");
 			if (md == "") md = "0";
-	        Float mindistance = Float.parseFloat(md);
+	        float mindistance = Float.parseFloat(md);
 	        
-			localhills.clear();
-			
+			HillSource index = getIndex();
+			localhills.clear(index);
+			if (index == null) return;
+
 			double curLatitude = curLocation.getLatitude();
 			double curLongitude = curLocation.getLongitude();
+
+			// While the observer stays within REQUERY_RADIUS_KM of where the candidates were last
+			// queried, only their distances and directions need refreshing.
+			double dNorth = Math.toRadians(curLatitude - mAnchorLatitude) * EARTH_RADIUS_KM;
+			double dEast = Math.toRadians(curLongitude - mAnchorLongitude) * EARTH_RADIUS_KM * Math.cos(Math.toRadians(mAnchorLatitude));
+			long queryMicros = -1;
+			String geodesyMode = prefs.getString("geodesy", GeodesyKernel.MODE_EXACT);
+			if (mCandidateIndex != index || maxdistance != mCandidateMaxDistance
+					|| !geodesyMode.equals(mCandidateGeodesyMode)
+					|| Math.sqrt(dNorth * dNorth + dEast * dEast) > REQUERY_RADIUS_KM)
+			{
+				long queryStart = System.nanoTime();
+				queryCandidates(index, curLatitude, curLongitude, maxdistance, geodesyMode);
+				queryMicros = (System.nanoTime() - queryStart) / 1000;
+				dNorth = 0;
+				dEast = 0;
+			}
+
+			// terrain occlusion; a profile from the same horizon cache cell is reused
+			HorizonProfile horizon = null;
+			long horizonMicros = -1;
+			if (prefs.getBoolean("occlusion", false))
+			{
+				long horizonStart = System.nanoTime();
+				horizon = getHorizon(curLatitude, curLongitude,
+						curLocation.hasAltitude() ? curLocation.getAltitude() : Double.NaN, maxdistance);
+				horizonMicros = (System.nanoTime() - horizonStart) / 1000;
+			}
+
+			int tooNear = 0, tooFar = 0, hidden = 0;
+			double east, north, brng, distance;
+			double altitude = curLocation.getAltitude();
+			double drop = GeodesyKernel.dropPerKmSquared(prefs.getString("elevationmodel", GeodesyKernel.ELEVATION_REFRACTION));
 			
-			// use a rule of thumb for distance between lines of lat & long
-			// 1 line of latitude = 111km
-			// 1 line of longitude = sin(latitude)* 111km. 
-			String qu = "select * from mountains where latitude between " +
-			(curLatitude - (maxdistance/111.0 )) + " and " + (curLatitude + (maxdistance/111.0 ))
-			+ " and longitude between " +
-			(curLongitude - (maxdistance/(111.0 * Math.sin(curLatitude * Math.PI / 180)))) + " and " +
-			(curLongitude + (maxdistance/(111.0 * Math.sin(curLatitude * Math.PI / 180))));
-			
-			Cursor cursor;
-			try {
-				cursor = getReadableDatabase().rawQuery( qu, null);
-			}	
-	    	catch(SQLiteException e){	 
-	    		return;	 
-	    	}
-	        if (cursor == null) return;
-	        
-			int tooNear = 0, tooFar = 0;
-			if(cursor.moveToFirst()) {
-				double dLat, dLon, lat1, lat2;
-				double x, y, brng, a, c, dheight;
-				Hills h;
-				
-	        	do {
-	        		try {
-		        		h = new Hills( 
-		        				cursor.getInt(cursor.getColumnIndex("_id")),
-		        				cursor.getString(cursor.getColumnIndex("name")),
-		        				cursor.getDouble(cursor.getColumnIndex("longitude")),
-		        				cursor.getDouble(cursor.getColumnIndex("latitude")),
-		        				cursor.getDouble(cursor.getColumnIndex("height")));
-		        		
-						dLat = Math.toRadians(h.latitude - curLatitude); 
-						dLon =  Math.toRadians(h.longitude - curLongitude); 
-						lat1 = Math.toRadians(curLatitude);
-						lat2 = Math.toRadians(h.latitude);
-						
-						// direction calculation
-						y = Math.sin(dLon) * Math.cos(lat2);
-						x = Math.cos(lat1)*Math.sin(lat2) -
-						        Math.sin(lat1)*Math.cos(lat2)*Math.cos(dLon);
-						brng = Math.atan2(y, x)  * 180 / Math.PI;
-						
-						h.direction = (brng<0)?brng+360:brng;
-						
-						// distance calculation				
-						a = Math.sin(dLat/2) * Math.sin(dLat/2) +
-						        Math.cos(lat2) * Math.cos(lat1) * 
-						        Math.sin(dLon/2) * Math.sin(dLon/2); 
-						c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a)); 
-						h.distance = Math.floor(10 * 6371 * c) / 10.0; // Distance in km
-	
-						// vertical angle
-						dheight = h.height - curLocation.getAltitude();
-						
-						h.visualElevation = Math.atan2(dheight, h.distance*1000);
-		        		
-						if (h.distance > maxdistance)
-						{
-							tooFar++;
-						}
-						else if (h.distance < mindistance)
-						{
-							tooNear++;
-						}
-						else
-						{
-			        		//Log.d("showmehills", "Adding " + h.hillname + "@"+h.longitude+","+h.latitude);
-			        		localhills.add(h);
-						}
-					} catch(Exception e)
-					{
-						Log.e("showmehills", "bad database read: " + e.getMessage());
-					}			
-	        	} while (cursor.moveToNext());
-	        }
-	        Log.d("showmehills", "Added " + localhills.size() + " markers; skipped " + tooNear + " too near, " + tooFar + " too far.");
-/*
- * for testing:
-			localhills.add(new Hills(0,"London Eye",   -0.119700, 51.5033,   135));
-			localhills.add(new Hills(0,"Shard",        -0.086667, 51.504444, 308));
-			localhills.add(new Hills(0,"1 Canada Sq",  -0.019611, 51.505, 240));
-			localhills.add(new Hills(0,"BT Tower",     -0.138900, 51.5215, 191));
-			localhills.add(new Hills(0,"Gherkin",      -0.080278, 51.514444, 180));
-			*/
-
-			Collections.sort(localhills, new Comparator<Object>(){
-				 
-	            public int compare(Object o1, Object o2) {
-	                Hills p1 = (Hills) o1;
-	                Hills p2 = (Hills) o2;
-	               if (p1.distance==p2.distance) return 0;
-	               if (p1.distance < p2.distance) return -1;
-	               return 1;
-	            }
-	 
-	        });
+			for (int r = 0; r < mQueryResult.size; r++) {
+				int rec = mQueryResult.records[r];
+				east = mCandidateEast[r] - dEast;
+				north = mCandidateNorth[r] - dNorth;
+
+				distance = Math.floor(10 * Math.sqrt(east * east + north * north)) / 10.0; // Distance in km
+				if (distance > maxdistance)
+				{
+					tooFar++;
+					continue;
+				}
+				else if (distance < mindistance)
+				{
+					tooNear++;
+					continue;
+				}
+
+				// direction calculation
+				brng = Math.toDegrees(Math.atan2(east, north));
+
+				double height = index.height(rec);
+				int row = localhills.add(index.id(rec), rec, index.longitude(rec), index.latitude(rec), (float)height);
+				localhills.directions[row] = (brng<0)?brng+360:brng;
+				localhills.importances[row] = index.importance(rec);
+				localhills.distances[row] = distance;
+				// vertical angle, lowered for the earth's curvature (less refraction) if wanted
+				localhills.visualElevations[row] = Math.atan2(height - altitude - drop*distance*distance, distance*1000);
+				if (horizon != null && horizon.isHidden(localhills.directions[row], distance, height))
+				{
+					localhills.hidden[row] = true;
+					hidden++;
+				}
+			}
+	        Log.d("showmehills", "Added " + localhills.size() + " markers; skipped " + tooNear + " too near, " + tooFar + " too far"
+	        		+ (queryMicros >= 0 ? "; requeried in " + queryMicros + "us." : "; incremental update.")
+	        		+ (horizonMicros >= 0 ? " Horizon in " + horizonMicros + "us (cache " + getHorizonCache().getHits() + " hits, " + getHorizonCache().getMisses() + " misses), "
+	        				+ (horizon != null ? horizon.getCoveredRays() : 0) + " rays with terrain, " + hidden + " hidden." : ""));
+
+			PipelineStats.get().countQuery(mQueryResult.size, localhills.size());
+
+			localhills.sortByDistance();
+			localhills.buildAzimuthBuckets();
+		}
+
+		/*
+		 * Finds every hill that could come within maxdistance while the observer stays inside
+		 * REQUERY_RADIUS_KM of this position, and records each one's distance and bearing
+		 * (see GeodesyKernel) as east/north offsets on the tangent plane at this anchor position.
+		 */
+		private void queryCandidates(HillSource index, double curLatitude, double curLongitude, float maxdistance,
+				String geodesyMode) {
+			double reach = maxdistance + REQUERY_RADIUS_KM;
+
+			mQueryResult.clear();
+			mPlanner.plan(curLatitude, curLongitude, reach);
+			mPlanner.query(index, mQueryResult);
+			Log.d("showmehills", "Range query: " + mPlanner.getBoxCount() + " boxes, " + mPlanner.getLastInBoxes()
+					+ " hills in boxes, " + mQueryResult.size + " in range");
+
+			int n = mQueryResult.size;
+			if (mCandidateEast.length < n)
+			{
+				int capacity = mQueryResult.records.length;
+				mCandidateEast = new double[capacity];
+				mCandidateNorth = new double[capacity];
+				mCandidateLat = new double[capacity];
+				mCandidateLon = new double[capacity];
+				mCandidateSinLat = new double[capacity];
+				mCandidateCosLat = new double[capacity];
+			}
+
+			// gather the coordinates, then work out every offset in one batch
+			for (int r = 0; r < n; r++) {
+				int rec = mQueryResult.records[r];
+				mCandidateLat[r] = index.latitude(rec);
+				mCandidateLon[r] = index.longitude(rec);
+				mCandidateSinLat[r] = index.sinLatitude(rec);
+				mCandidateCosLat[r] = index.cosLatitude(rec);
+			}
+			mGeodesy.setMode(geodesyMode);
+			mGeodesy.setObserver(curLatitude, curLongitude);
+			mGeodesy.offsets(mCandidateLat, mCandidateLon, mCandidateSinLat, mCandidateCosLat, n,
+					mCandidateEast, mCandidateNorth);
+
+			mCandidateIndex = index;
+			mCandidateGeodesyMode = geodesyMode;
+			mCandidateMaxDistance = maxdistance;
+			mAnchorLatitude = curLatitude;
+			mAnchorLongitude = curLongitude;
+		}
+
+		/*
+		 * Fills localhills with at most limit hills between the minimum and maximum distance,
+		 * nearest first, straight from the k-d tree: only the hills that are kept are ever looked
+		 * at, and they come back in order, so nothing needs sorting. There is no terrain
+		 * occlusion here; SetDirections is still the full query for the camera view.
+		 */
+		public void NearestHills(Location curLocation, int limit, HillStore localhills)
+		{
+			if (curLocation == null) return;
+
+			SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(myContext);
+			String md = prefs.getString("distance", "25");
+			if (md == "") md = "25";
+	        float maxdistance = Float.parseFloat(md);
+
+			md = prefs.getString("mindistance", "0");
+			if (md == "") md = "0";
+	        float mindistance = Float.parseFloat(md);
+
+			HillSource index = getIndex();
+			localhills.clear(index);
+			if (index == null) return;
+
+			double curLatitude = curLocation.getLatitude();
+			double curLongitude = curLocation.getLongitude();
+			long start = System.nanoTime();
+			getTree(index).annulus(curLatitude, curLongitude, mindistance, maxdistance, limit, mNeighbours);
+
+			int n = mNeighbours.size();
+			if (mNearEast.length < n)
+			{
+				mNearEast = new double[n];
+				mNearNorth = new double[n];
+				mNearLat = new double[n];
+				mNearLon = new double[n];
+				mNearSinLat = new double[n];
+				mNearCosLat = new double[n];
+			}
+			for (int i = 0; i < n; i++) {
+				int rec = mNeighbours.record(i);
+				mNearLat[i] = index.latitude(rec);
+				mNearLon[i] = index.longitude(rec);
+				mNearSinLat[i] = index.sinLatitude(rec);
+				mNearCosLat[i] = index.cosLatitude(rec);
+			}
+			// only the directions are taken from here; the tree has the distances already
+			mGeodesy.setMode(GeodesyKernel.MODE_EXACT);
+			mGeodesy.setObserver(curLatitude, curLongitude);
+			mGeodesy.offsets(mNearLat, mNearLon, mNearSinLat, mNearCosLat, n, mNearEast, mNearNorth);
+
+			double altitude = curLocation.getAltitude();
+			double drop = GeodesyKernel.dropPerKmSquared(prefs.getString("elevationmodel", GeodesyKernel.ELEVATION_REFRACTION));
+			for (int i = 0; i < n; i++) {
+				int rec = mNeighbours.record(i);
+				double distance = Math.floor(10 * mNeighbours.distance(i)) / 10.0;
+				double brng = Math.toDegrees(Math.atan2(mNearEast[i], mNearNorth[i]));
+				double height = index.height(rec);
+				int row = localhills.add(index.id(rec), rec, mNearLon[i], mNearLat[i], (float)height);
+				localhills.directions[row] = (brng<0)?brng+360:brng;
+				localhills.importances[row] = index.importance(rec);
+				localhills.distances[row] = distance;
+				localhills.visualElevations[row] = Math.atan2(height - altitude - drop*distance*distance, distance*1000);
+			}
+			Log.d("showmehills", "Nearest " + n + " of up to " + limit + " hills in " + (System.nanoTime() - start) / 1000 + "us");
+			PipelineStats.get().countQuery(n, n);
+
+			// already nearest first
+			localhills.buildAzimuthBuckets();
 		}
 	}
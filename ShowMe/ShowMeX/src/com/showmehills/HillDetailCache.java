@@ -0,0 +1,107 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * The details of the hills most likely to be tapped, so HillInfo can usually show a hill without
+ * touching the database. It is an LRU cache of up to CAPACITY HillDetails by id: a LinkedHashMap
+ * in access order, which drops its least recently used entry when a new one would take it past
+ * the limit. HillQueryWorker fills it after each query with the hills that rank highest for a
+ * label (see warm()), and HillQueryWorker.loadDetail adds any other hill HillInfo asks for.
+ *
+ * One instance is shared by the process (see HillService); the methods are synchronized as the
+ * query thread fills it while the UI thread reads it.
+ */
+public class HillDetailCache {
+	static final int CAPACITY = 128;
+
+	private final int mCapacity;
+	private final LinkedHashMap<Integer, HillDetail> mDetails;
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mEvictions = 0;
+	private long mWarmed = 0;
+
+	public HillDetailCache() {
+		this(CAPACITY);
+	}
+
+	HillDetailCache(int capacity) {
+		mCapacity = capacity;
+		mDetails = new LinkedHashMap<Integer, HillDetail>(capacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, HillDetail> eldest) {
+				if (size() <= mCapacity) return false;
+				mEvictions++;
+				return true;
+			}
+		};
+	}
+
+	// the hill's details, or null if they'll have to be read; counts as a hit or a miss
+	public synchronized HillDetail get(int id) {
+		HillDetail detail = mDetails.get(id);
+		if (detail != null) mHits++;
+		else mMisses++;
+		return detail;
+	}
+
+	// whether the hill is cached, making it the most recently used if so; not counted
+	public synchronized boolean touch(int id) {
+		return mDetails.get(id) != null;
+	}
+
+	public synchronized void put(HillDetail detail) {
+		mDetails.put(detail.id, detail);
+	}
+
+	// as put, for details read ahead of being asked for
+	public synchronized void warm(HillDetail detail) {
+		mDetails.put(detail.id, detail);
+		mWarmed++;
+	}
+
+	public synchronized int size() { return mDetails.size(); }
+
+	public synchronized long getHits() { return mHits; }
+
+	public synchronized long getMisses() { return mMisses; }
+
+	public synchronized long getEvictions() { return mEvictions; }
+
+	public synchronized long getWarmed() { return mWarmed; }
+
+	// fraction of lookups answered from the cache, 0 before the first
+	public synchronized float hitRate() {
+		long lookups = mHits + mMisses;
+		return lookups > 0 ? (float)mHits / lookups : 0;
+	}
+
+	// one line for the stats dump and the log
+	public synchronized String summary() {
+		return "hill details: " + mDetails.size() + "/" + mCapacity + " cached, " + mHits + " hits, " + mMisses
+				+ " misses (" + Math.round(hitRate() * 100) + "%), " + mWarmed + " read ahead, " + mEvictions + " evicted";
+	}
+}
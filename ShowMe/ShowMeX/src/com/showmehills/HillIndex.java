@@ -0,0 +1,223 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.util.Arrays;
+
+/*
+ * Resident lat/lon grid index over the mountains table. It is filled once from the database,
+ * then sealed, after which every record is stored in grid cell order. A cell key is
+ * row * COLUMNS + column, so all the cells of one grid row that fall inside a query box have
+ * consecutive keys and can be found with a single binary search per row. The cost of a range
+ * lookup therefore depends on the size of the box, not on the number of hills in the database.
+ */
+public class HillIndex implements HillSource {
+	static final double CELL_DEGREES = 0.1;
+	static final int COLUMNS = 3600;
+	static final int ROWS = 1800;
+
+	private int count = 0;
+	private boolean sealed = false;
+	int[] cellKeys;
+	int[] ids;
+	String[] names;
+	double[] longitudes;
+	double[] latitudes;
+	double[] heights;
+	// filled in by seal()
+	double[] sinLatitudes;
+	double[] cosLatitudes;
+	float[] importances;
+
+	// reusable list of record numbers, so repeated queries don't allocate
+	public static class RecordList {
+		int[] records = new int[256];
+		int size = 0;
+
+		void clear() { size = 0; }
+
+		void add(int record) {
+			if (size == records.length) records = grow(records, size * 2);
+			records[size++] = record;
+		}
+	}
+
+	public HillIndex(int capacity) {
+		capacity = Math.max(capacity, 16);
+		ids = new int[capacity];
+		names = new String[capacity];
+		longitudes = new double[capacity];
+		latitudes = new double[capacity];
+		heights = new double[capacity];
+	}
+
+	public int size() { return count; }
+
+	public int id(int record) { return ids[record]; }
+
+	public String name(int record) { return names[record]; }
+
+	public double longitude(int record) { return longitudes[record]; }
+
+	public double latitude(int record) { return latitudes[record]; }
+
+	public double height(int record) { return heights[record]; }
+
+	public double sinLatitude(int record) { return sinLatitudes[record]; }
+
+	public double cosLatitude(int record) { return cosLatitudes[record]; }
+
+	// the mountains table has no prominence, so this is from height alone
+	public float importance(int record) { return importances[record]; }
+
+	public void add(int id, String name, double lon, double lat, double height) {
+		if (sealed) throw new IllegalStateException("HillIndex already sealed");
+		if (count == ids.length) grow(count * 2);
+		ids[count] = id;
+		names[count] = name;
+		longitudes[count] = lon;
+		latitudes[count] = lat;
+		heights[count] = height;
+		count++;
+	}
+
+	/*
+	 * Sort the records into cell order. Sorting packed (key, record) longs keeps this free of
+	 * boxing, which matters when the planet file holds hundreds of thousands of peaks.
+	 */
+	public void seal() {
+		if (sealed) return;
+		long[] order = new long[count];
+		for (int i = 0; i < count; i++)
+		{
+			order[i] = ((long)cellKey(latitudes[i], longitudes[i]) << 32) | i;
+		}
+		Arrays.sort(order);
+
+		int[] sIds = new int[count];
+		String[] sNames = new String[count];
+		double[] sLons = new double[count];
+		double[] sLats = new double[count];
+		double[] sHeights = new double[count];
+		cellKeys = new int[count];
+		sinLatitudes = new double[count];
+		cosLatitudes = new double[count];
+		importances = new float[count];
+		for (int i = 0; i < count; i++)
+		{
+			int r = (int)(order[i] & 0xffffffffL);
+			cellKeys[i] = (int)(order[i] >>> 32);
+			sIds[i] = ids[r];
+			sNames[i] = names[r];
+			sLons[i] = longitudes[r];
+			sLats[i] = latitudes[r];
+			sHeights[i] = heights[r];
+			double rad = Math.toRadians(sLats[i]);
+			sinLatitudes[i] = Math.sin(rad);
+			cosLatitudes[i] = Math.cos(rad);
+			importances[i] = LabelRanker.heightImportance(sHeights[i]);
+		}
+		ids = sIds;
+		names = sNames;
+		longitudes = sLons;
+		latitudes = sLats;
+		heights = sHeights;
+		sealed = true;
+	}
+
+	/*
+	 * Adds to result the record number of every hill inside the box. Longitudes outside
+	 * -180..180 are clamped, as the between clauses of the old SQL query effectively did.
+	 */
+	public void query(double minLat, double maxLat, double minLon, double maxLon, RecordList result) {
+		if (!sealed) throw new IllegalStateException("HillIndex not sealed");
+		minLat = Math.max(minLat, -90);
+		maxLat = Math.min(maxLat, 90);
+		minLon = Math.max(minLon, -180);
+		maxLon = Math.min(maxLon, 180);
+		if (minLat > maxLat || minLon > maxLon) return;
+
+		int firstRow = row(minLat);
+		int lastRow = row(maxLat);
+		int firstCol = column(minLon);
+		int lastCol = column(maxLon);
+		for (int r = firstRow; r <= lastRow; r++)
+		{
+			int lastKey = r * COLUMNS + lastCol;
+			for (int i = lowerBound(r * COLUMNS + firstCol); i < count && cellKeys[i] <= lastKey; i++)
+			{
+				double lat = latitudes[i];
+				double lon = longitudes[i];
+				if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon)
+				{
+					result.add(i);
+				}
+			}
+		}
+	}
+
+	private int lowerBound(int key) {
+		int lo = 0, hi = count;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (cellKeys[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private void grow(int capacity) {
+		int[] nIds = new int[capacity];
+		String[] nNames = new String[capacity];
+		double[] nLons = new double[capacity];
+		double[] nLats = new double[capacity];
+		double[] nHeights = new double[capacity];
+		System.arraycopy(ids, 0, nIds, 0, count);
+		System.arraycopy(names, 0, nNames, 0, count);
+		System.arraycopy(longitudes, 0, nLons, 0, count);
+		System.arraycopy(latitudes, 0, nLats, 0, count);
+		System.arraycopy(heights, 0, nHeights, 0, count);
+		ids = nIds;
+		names = nNames;
+		longitudes = nLons;
+		latitudes = nLats;
+		heights = nHeights;
+	}
+
+	// Arrays.copyOf isn't available before API level 9; shared by the classes that keep int columns
+	static int[] grow(int[] a, int capacity) {
+		int[] b = new int[capacity];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	static int row(double lat) {
+		return Math.min(ROWS - 1, Math.max(0, (int)Math.floor((lat + 90) / CELL_DEGREES)));
+	}
+
+	static int column(double lon) {
+		return Math.min(COLUMNS - 1, Math.max(0, (int)Math.floor((lon + 180) / CELL_DEGREES)));
+	}
+
+	static int cellKey(double lat, double lon) {
+		return row(lat) * COLUMNS + column(lon);
+	}
+}
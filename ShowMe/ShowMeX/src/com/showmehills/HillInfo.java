@@ -22,15 +22,15 @@ package com.showmehills;
 import com.showmehills.R;
 
 import android.app.Activity;
-import android.database.Cursor;
-import android.database.SQLException;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.TextView;
 
 public class HillInfo extends Activity{
 
-	private HillDatabase myDbHelper;
+	private HillService mHills;
+	// set on the UI thread, so details that arrive after the activity has gone are dropped
+	private boolean mDestroyed = false;
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -41,22 +41,33 @@ public class HillInfo extends Activity{
 		Bundle b = getIntent().getExtras();
 		int hillid = b.getInt("key", 0);		
 
-		myDbHelper = new HillDatabase(this); 
-		myDbHelper.createDataBase(); 
-		
-		// if database couldn't be created then we can't do much
-		if (!myDbHelper.checkDataBase()) return;
-		String qu = "select * from mountains where _id = '"+hillid+"'";
-		Log.d("showmehills", "query: "+qu);
-		Cursor cursor = myDbHelper.getReadableDatabase().rawQuery( qu, null);
-		if (cursor.moveToFirst())
+		// shown until the details arrive, which is at once if they were read ahead
+		((TextView) findViewById(R.id.hillname)).setText(R.string.hill_lookup);
+		((TextView) findViewById(R.id.hillheight)).setText("");
+		((TextView) findViewById(R.id.hilltype)).setText("");
+		((TextView) findViewById(R.id.infolink)).setText("");
+
+		mHills = HillService.get(this);
+		mHills.acquire();
+		mHills.requestHillDetail(hillid, new HillQueryWorker.DetailListener() {
+			public void onHillDetail(int id, final HillDetail hill) {
+				runOnUiThread(new Runnable() {
+					public void run() { showHill(hill); }
+				});
+			}
+		});
+	}
+
+	private void showHill(HillDetail hill) {
+		if (mDestroyed) return;
+		Log.d("showmehills", mHills.getDetailCache().summary());
+		if (hill != null)
 		{
 			TextView t = (TextView) findViewById(R.id.hillname);
-			String n = cursor.getString(cursor.getColumnIndex("name"));
-			t.setText(n);
+			t.setText(hill.name);
 			
 			t = (TextView) findViewById(R.id.hillheight);
-			double h = cursor.getDouble(cursor.getColumnIndex("height"));
+			double h = hill.height;
 			if (h>0)
 			{
 				t.setText(""+h);
@@ -66,48 +77,26 @@ public class HillInfo extends Activity{
 				t.setText("");
 			}
 			
+			t = (TextView) findViewById(R.id.hilltype);
+			t.setText(hill.type != null ? hill.type : "");
+			
 			t = (TextView) findViewById(R.id.infolink);
-			n = cursor.getString(cursor.getColumnIndex("link"));
-			t.setText("web: "+n);
+			t.setText("web: "+hill.link);
 			
 		}
 		else
 		{
+			((TextView) findViewById(R.id.hillname)).setText("");
 			Log.d("showmehills", "zero item count.");
 		}
-		cursor.close();
-	}
-	
-	@Override
-	protected void onResume() {
-		super.onResume();
-		
-		try {	 
-			myDbHelper.checkDataBase();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
-	}
-
-	@Override
-	protected void onPause() {
-		super.onPause();
-		
-		try {	 
-			myDbHelper.close();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
 	}
 	
+	// the database is shared, and stays open while other activities use it
 	@Override
-	protected void onStop()
+	protected void onDestroy()
 	{
-		try {	 
-			myDbHelper.close();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
-		super.onStop();
+		mDestroyed = true;
+		mHills.release();
+		super.onDestroy();
 	}
 }
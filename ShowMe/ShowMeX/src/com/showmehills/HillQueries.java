@@ -0,0 +1,92 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/*
+ * The SQL run against the hills database, in one place. Each query fetches only the columns its
+ * caller reads, and the column constants are their positions in that projection, so nothing is
+ * looked up by name per row. Values are always bound rather than pasted into the text, so each
+ * query's text never changes and SQLite's statement cache on the connection compiles it once; the
+ * version check, which returns a single value, is a compiled SQLiteStatement.
+ *
+ * The range queries the views make are answered by the in-memory HillIndex (or the peak file),
+ * not by SQL; HILLS_IN_BOX, the query they replaced, is kept only so the tests can check them
+ * against it and time them. So the only lookup the database needs an index for is a hill by _id. The bundled
+ * database doesn't declare _id as its primary key, so the index is built into it when it is made
+ * (Database/tools/dbindex/indexes.sql); the app only ever opens it read-only. HillQueriesTest
+ * checks the query plans against a database built the same way.
+ */
+public class HillQueries {
+	// every hill, read once to build the in-memory index
+	static final String ALL_HILLS = "select _id, name, longitude, latitude, height from mountains";
+	static final int ALL_ID = 0;
+	static final int ALL_NAME = 1;
+	static final int ALL_LONGITUDE = 2;
+	static final int ALL_LATITUDE = 3;
+	static final int ALL_HEIGHT = 4;
+
+	// one hill's details, for HillInfo
+	static final String HILL_DETAIL = "select name, height, link, itemtype from mountains where _id = ?";
+	static final int DETAIL_NAME = 0;
+	static final int DETAIL_HEIGHT = 1;
+	static final int DETAIL_LINK = 2;
+	static final int DETAIL_TYPE = 3;
+
+	// every hill in a box, as SetDirections used to ask for them; not run by the app (see above).
+	// The columns hold text, so they are cast to compare as numbers
+	static final String HILLS_IN_BOX = "select _id from mountains where cast(latitude as real) between ? and ?"
+			+ " and cast(longitude as real) between ? and ?";
+	static final int BOX_ID = 0;
+
+	static final String VERSION = "select ver from dbversions limit 1";
+
+	// the database's version, or -1 if it doesn't say
+	static long readVersion(SQLiteDatabase db) {
+		SQLiteStatement statement = db.compileStatement(VERSION);
+		try {
+			return statement.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return -1;
+		} finally {
+			statement.close();
+		}
+	}
+
+	// fills out with hill id's details; false if there is no such hill
+	static boolean readDetail(SQLiteDatabase db, int id, HillDetail out) {
+		Cursor cursor = db.rawQuery(HILL_DETAIL, new String[] { Integer.toString(id) });
+		try {
+			if (!cursor.moveToFirst()) return false;
+			out.id = id;
+			out.name = cursor.getString(DETAIL_NAME);
+			out.height = cursor.getDouble(DETAIL_HEIGHT);
+			out.link = cursor.getString(DETAIL_LINK);
+			out.type = cursor.getString(DETAIL_TYPE);
+			return true;
+		} finally {
+			cursor.close();
+		}
+	}
+}
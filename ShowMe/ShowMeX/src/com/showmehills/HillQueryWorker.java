@@ -0,0 +1,319 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.location.Location;
+import android.util.Log;
+
+/*
+ * Runs HillDatabase.SetDirections on a single background thread and publishes each result as a
+ * snapshot that is never modified while it is visible. Three HillStores are cycled so that the
+ * worker always has one to fill that is neither published nor being drawn.
+ *
+ * Readers call acquire() to get the current snapshot and release() when done with it; acquire()
+ * marks the snapshot as in use and checks it is still the published one, so the worker can never
+ * recycle a store the renderer is holding. Only one reader thread (the UI thread) is supported,
+ * and acquire/release must not be nested. There is one worker for the process (see HillService),
+ * so whichever view opens next starts from the last snapshot any of them asked for.
+ *
+ * Location updates are coalesced on the way in: a query starts no sooner than
+ * mMinIntervalNanos after the last one started, only the latest location waiting for it is used,
+ * and a location within mMinMovementMetres of the one last queried is dropped altogether unless
+ * it comes from requestRefresh(). With a single thread at most one query is ever running. Every
+ * update that didn't get a query of its own is counted in PipelineStats.
+ */
+public class HillQueryWorker {
+	static final long DEFAULT_MIN_INTERVAL_MS = 1000;
+	static final float DEFAULT_MIN_MOVEMENT_METRES = 5;
+	private static final double METRES_PER_DEGREE = GeodesyKernel.EARTH_RADIUS_KM * 1000 * Math.PI / 180;
+	// hills whose details are read ahead after each query, well under HillDetailCache.CAPACITY so
+	// the ones from the last few places stay cached too
+	static final int WARM_DETAILS = 64;
+
+	public interface Listener {
+		// called on the worker thread after a new snapshot has been published
+		void onHillsUpdated();
+	}
+
+	public interface DetailListener {
+		// called on the worker thread, or at once by HillService if the details were cached;
+		// detail is null if the hill can't be found
+		void onHillDetail(int id, HillDetail detail);
+	}
+
+	// what the worker runs on its thread: HillDatabase, or a stand-in in the unit tests
+	public interface Queries {
+		void SetDirections(Location curLocation, HillStore localhills);
+
+		void NearestHills(Location curLocation, int limit, HillStore localhills);
+
+		boolean checkDataBase();
+
+		boolean readHillDetail(int id, HillSource source, int record, HillDetail out);
+
+		void saveHorizonCache();
+
+		void close();
+	}
+
+	private final Queries mDb;
+	private final HillDetailCache mDetails;
+	private final LabelRanker mRanker = new LabelRanker();
+	private int[] mWarmRows = new int[256];
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private final ScheduledExecutorService mExecutor;
+	private final HillStore[] mStores = { new HillStore(256), new HillStore(256), new HillStore(256) };
+	private final AtomicReference<HillStore> mPublished = new AtomicReference<HillStore>(mStores[0]);
+	private final AtomicReference<HillStore> mInUse = new AtomicReference<HillStore>(null);
+	// latest requested location; a task is only queued when this goes from null to non-null
+	private final AtomicReference<Location> mPending = new AtomicReference<Location>(null);
+	// when above zero, only this many of the nearest hills are fetched (see HillDatabase.NearestHills)
+	private volatile int mNearestLimit = 0;
+	private volatile long mMinIntervalNanos = DEFAULT_MIN_INTERVAL_MS * 1000000L;
+	private volatile float mMinMovementMetres = DEFAULT_MIN_MOVEMENT_METRES;
+	// written by the worker when a query starts
+	private volatile Location mLastQueried = null;
+	private long mLastStartNanos = 0;
+
+	private final Runnable mQueryTask = new Runnable() {
+		public void run() {
+			// the interval is measured here on the worker, the only thread that knows for certain
+			// when the last query started
+			long wait = mLastStartNanos + mMinIntervalNanos - System.nanoTime();
+			if (mLastStartNanos != 0 && wait > 0)
+			{
+				try {
+					mExecutor.schedule(this, wait, TimeUnit.NANOSECONDS);
+				} catch (RejectedExecutionException e) {
+					Log.d("showmehills", "query worker already shut down");
+				}
+				return;
+			}
+			Location loc = mPending.get();
+			if (loc == null) return;
+			// both are set before mPending is cleared, so a request that finds nothing pending
+			// is compared with this query's location
+			mLastQueried = loc;
+			mLastStartNanos = System.nanoTime();
+			loc = mPending.getAndSet(null);
+			mLastQueried = loc;
+			HillStore back = spareStore();
+			int limit = mNearestLimit;
+			long start = System.nanoTime();
+			if (limit > 0) mDb.NearestHills(loc, limit, back);
+			else mDb.SetDirections(loc, back);
+			PipelineStats.get().record(PipelineStats.QUERY, System.nanoTime() - start);
+			mPublished.set(back);
+			for (Listener listener : mListeners) listener.onHillsUpdated();
+			// the map's nearest hills can't be tapped for details
+			if (limit == 0) warmDetails(back);
+		}
+	};
+
+	public HillQueryWorker(Queries db, HillDetailCache details) {
+		mDb = db;
+		mDetails = details;
+		mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "showmehills-query");
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	// for views that only ever show a few dozen hills, such as the map; 0 for all of them
+	public void setNearestLimit(int limit) {
+		mNearestLimit = limit;
+	}
+
+	public void setMinInterval(long millis) {
+		mMinIntervalNanos = millis * 1000000L;
+	}
+
+	public void setMinMovement(float metres) {
+		mMinMovementMetres = metres;
+	}
+
+	// for a new location; ignored if it's too close to the last one queried
+	public void requestUpdate(Location loc) {
+		if (loc == null) return;
+		Location last = mLastQueried;
+		if (last != null && mPending.get() == null && movedMetres(last, loc) < mMinMovementMetres)
+		{
+			PipelineStats.get().countCoalesced();
+			return;
+		}
+		schedule(loc);
+	}
+
+	// for when something other than the location has changed, such as the preferences
+	public void requestRefresh(Location loc) {
+		if (loc == null) return;
+		schedule(loc);
+	}
+
+	// newer requests replace ones that haven't started yet
+	private void schedule(Location loc) {
+		if (mPending.getAndSet(loc) != null)
+		{
+			PipelineStats.get().countCoalesced();
+			return;
+		}
+		// the task puts itself off until the interval is up
+		submit(mQueryTask);
+	}
+
+	/*
+	 * Reads ahead the details of the WARM_DETAILS hills in a new snapshot that LabelRanker rates
+	 * highest, in any direction, so that a tapped label can usually be shown from the cache.
+	 * Hills already cached are only marked as recently used.
+	 */
+	private void warmDetails(HillStore hills) {
+		int n = hills.size();
+		if (n == 0) return;
+		if (mWarmRows.length < n)
+		{
+			mWarmRows = new int[Math.max(mWarmRows.length * 2, n)];
+		}
+		for (int r = 0; r < n; r++) mWarmRows[r] = r;
+		// the snapshot is nearest first, so its last hill is the farthest
+		int best = mRanker.select(hills, mWarmRows, n, WARM_DETAILS, hills.distances[n - 1], mWarmRows);
+		int read = 0;
+		for (int i = 0; i < best; i++)
+		{
+			int row = mWarmRows[i];
+			int id = hills.ids[row];
+			if (mDetails.touch(id)) continue;
+			HillDetail detail = new HillDetail();
+			if (!mDb.readHillDetail(id, hills.source(), hills.nameRefs[row], detail)) continue;
+			mDetails.warm(detail);
+			read++;
+		}
+		if (read > 0) Log.d("showmehills", "Read ahead " + read + " hill details; " + mDetails.summary());
+	}
+
+	/*
+	 * Reads a hill's details after any query already queued, caches them and passes them to
+	 * listener on the worker thread. The published snapshot is only ever refilled by the worker,
+	 * so it can be searched here for the hill's record without acquiring it.
+	 */
+	public void loadDetail(final int id, final DetailListener listener) {
+		submit(new Runnable() {
+			public void run() {
+				HillStore hills = mPublished.get();
+				int record = -1;
+				for (int row = 0; row < hills.size(); row++)
+				{
+					if (hills.ids[row] == id)
+					{
+						record = hills.nameRefs[row];
+						break;
+					}
+				}
+				HillDetail detail = new HillDetail();
+				if (mDb.readHillDetail(id, hills.source(), record, detail)) mDetails.put(detail);
+				else detail = null;
+				listener.onHillDetail(id, detail);
+			}
+		});
+	}
+
+	// straight-line distance, near enough over the few metres that matter here
+	private static double movedMetres(Location a, Location b) {
+		double north = (b.getLatitude() - a.getLatitude()) * METRES_PER_DEGREE;
+		double dLon = b.getLongitude() - a.getLongitude();
+		if (dLon > 180) dLon -= 360;
+		else if (dLon < -180) dLon += 360;
+		double east = dLon * METRES_PER_DEGREE * Math.cos(Math.toRadians(a.getLatitude()));
+		double up = (a.hasAltitude() && b.hasAltitude()) ? b.getAltitude() - a.getAltitude() : 0;
+		return Math.sqrt(north * north + east * east + up * up);
+	}
+
+	public HillStore acquire() {
+		HillStore s;
+		do {
+			s = mPublished.get();
+			mInUse.set(s);
+		} while (mPublished.get() != s);
+		return s;
+	}
+
+	public void release() {
+		mInUse.set(null);
+	}
+
+	public void openDatabase() {
+		submit(new Runnable() {
+			public void run() { mDb.checkDataBase(); }
+		});
+	}
+
+	public void closeDatabase() {
+		submit(new Runnable() {
+			public void run() {
+				mDb.saveHorizonCache();
+				mDb.close();
+			}
+		});
+	}
+
+	// keeps what has been worked out in case the process is killed in the background
+	public void saveCaches() {
+		submit(new Runnable() {
+			public void run() { mDb.saveHorizonCache(); }
+		});
+	}
+
+	private void submit(Runnable task) {
+		try {
+			mExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			Log.d("showmehills", "query worker already shut down");
+		}
+	}
+
+	private HillStore spareStore() {
+		HillStore published = mPublished.get();
+		HillStore inUse = mInUse.get();
+		for (HillStore s : mStores)
+		{
+			if (s != published && s != inUse) return s;
+		}
+		// can't happen with three stores and a single reader
+		throw new IllegalStateException("no spare HillStore");
+	}
+}
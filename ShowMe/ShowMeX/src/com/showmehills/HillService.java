@@ -0,0 +1,82 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import android.content.Context;
+
+/*
+ * The hill data for the whole process, owned by ShowMeApplication: one HillDatabase and one
+ * HillQueryWorker, shared by the camera view, the map and the hill details. Switching between
+ * them doesn't reopen SQLite or rerun the version check, the query state that lets
+ * SetDirections update incrementally is kept, and a view that opens can show the last
+ * snapshot at once while its own query runs.
+ *
+ * Each activity calls acquire() in onCreate and release() in onDestroy. The database is opened
+ * for the first user and closed after the last; the worker thread and its snapshots last as
+ * long as the process, as does the cache of hill details that lets HillInfo open without
+ * reading the database.
+ */
+public class HillService {
+	private final HillDatabase mDb;
+	private final HillQueryWorker mWorker;
+	private final HillDetailCache mDetails = new HillDetailCache();
+	private int mUsers = 0;
+
+	HillService(Context context) {
+		mDb = new HillDatabase(context.getApplicationContext());
+		mWorker = new HillQueryWorker(mDb, mDetails);
+	}
+
+	public static HillService get(Context context) {
+		return ((ShowMeApplication)context.getApplicationContext()).getHillService();
+	}
+
+	public synchronized void acquire() {
+		if (mUsers++ == 0) mWorker.openDatabase();
+	}
+
+	public synchronized void release() {
+		if (mUsers == 0) return;
+		if (--mUsers == 0) mWorker.closeDatabase();
+	}
+
+	public HillDatabase getDatabase() {
+		return mDb;
+	}
+
+	public HillQueryWorker getWorker() {
+		return mWorker;
+	}
+
+	public HillDetailCache getDetailCache() {
+		return mDetails;
+	}
+
+	/*
+	 * Passes a hill's details to listener: at once if the worker has read them ahead (the usual
+	 * case for a tapped label), otherwise from the worker thread once it has read and cached them,
+	 * so the caller never waits for the database.
+	 */
+	public void requestHillDetail(int id, HillQueryWorker.DetailListener listener) {
+		HillDetail detail = mDetails.get(id);
+		if (detail != null) listener.onHillDetail(id, detail);
+		else mWorker.loadDetail(id, listener);
+	}
+}
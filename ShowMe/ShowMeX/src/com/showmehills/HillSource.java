@@ -0,0 +1,49 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Read-only access to the full set of hills, addressed by record number. Implemented by the
+ * in-memory HillIndex built from the SQLite database and by the memory-mapped PeakFile.
+ */
+public interface HillSource {
+	int size();
+
+	// adds to result the record number of every hill inside the box
+	void query(double minLat, double maxLat, double minLon, double maxLon, HillIndex.RecordList result);
+
+	int id(int record);
+
+	String name(int record);
+
+	double longitude(int record);
+
+	double latitude(int record);
+
+	// sine and cosine of the latitude, for GeodesyKernel
+	double sinLatitude(int record);
+
+	double cosLatitude(int record);
+
+	double height(int record);
+
+	// 0..1, how much the hill deserves a label (see LabelRanker)
+	float importance(int record);
+}
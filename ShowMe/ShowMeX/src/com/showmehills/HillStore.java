@@ -0,0 +1,192 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * The hills near the current location, stored as parallel primitive columns rather than one
+ * object per hill. Names are not copied: each row keeps the record number of the hill in the
+ * HillSource it came from. The store is cleared and refilled on every location update,
+ * and only allocates when it has to grow, so steady-state updates create no garbage.
+ */
+public class HillStore {
+	private int size = 0;
+	private int serial = 0;
+	private HillSource source;
+	int[] ids;
+	int[] nameRefs;
+	double[] longitudes;
+	double[] latitudes;
+	float[] heights;
+	float[] importances; // from the HillSource, for LabelRanker
+	double[] directions;
+	double[] distances;
+	double[] visualElevations; // vertical angle looking at peak
+	boolean[] hidden; // behind nearer terrain (see HorizonProfile)
+
+	// one-degree azimuth buckets: rows with direction in [b, b+1) are
+	// bucketRows[bucketStart[b]] .. bucketRows[bucketStart[b+1]-1], nearest first
+	static final int AZIMUTH_BUCKETS = 360;
+	final int[] bucketStart = new int[AZIMUTH_BUCKETS + 1];
+	int[] bucketRows;
+
+	public HillStore(int capacity) {
+		allocate(Math.max(capacity, 16));
+	}
+
+	public int size() { return size; }
+
+	public String name(int row) { return source.name(nameRefs[row]); }
+
+	// what nameRefs are record numbers in; null before the first fill
+	public HillSource source() { return source; }
+
+	// changes every time the store is refilled, so readers can tell a reused store has new contents
+	public int serial() { return serial; }
+
+	public void clear(HillSource hills) {
+		source = hills;
+		size = 0;
+		serial++;
+	}
+
+	// returns the new row, whose direction, distance and elevation the caller fills in
+	public int add(int id, int nameRef, double lon, double lat, float height) {
+		if (size == ids.length) grow(size * 2);
+		ids[size] = id;
+		nameRefs[size] = nameRef;
+		longitudes[size] = lon;
+		latitudes[size] = lat;
+		heights[size] = height;
+		importances[size] = 0;
+		hidden[size] = false;
+		return size++;
+	}
+
+	/*
+	 * In-place sort of all columns by distance, nearest first. Replaces Collections.sort so that
+	 * no comparator or boxed values are created per update.
+	 */
+	public void sortByDistance() {
+		quickSort(0, size - 1);
+	}
+
+	/*
+	 * Counting sort of the rows into azimuth buckets. Must be called after sortByDistance, since
+	 * filling in row order keeps each bucket in distance order. Hidden rows are left out.
+	 */
+	public void buildAzimuthBuckets() {
+		if (bucketRows == null || bucketRows.length < ids.length) bucketRows = new int[ids.length];
+		int[] start = bucketStart;
+		for (int b = 0; b <= AZIMUTH_BUCKETS; b++) start[b] = 0;
+		for (int r = 0; r < size; r++)
+		{
+			if (!hidden[r]) start[bucket(directions[r]) + 1]++;
+		}
+		for (int b = 0; b < AZIMUTH_BUCKETS; b++) start[b + 1] += start[b];
+		for (int r = 0; r < size; r++)
+		{
+			if (hidden[r]) continue;
+			int b = bucket(directions[r]);
+			bucketRows[start[b]++] = r;
+		}
+		// the fill loop advanced each start to the next bucket's start; shift back
+		for (int b = AZIMUTH_BUCKETS; b > 0; b--) start[b] = start[b - 1];
+		start[0] = 0;
+	}
+
+	static int bucket(double direction) {
+		int b = (int)Math.floor(direction) % AZIMUTH_BUCKETS;
+		return b < 0 ? b + AZIMUTH_BUCKETS : b;
+	}
+
+	private void quickSort(int lo, int hi) {
+		while (hi - lo > 12)
+		{
+			double pivot = distances[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (distances[i] < pivot) i++;
+				while (distances[j] > pivot) j--;
+				if (i <= j) swap(i++, j--);
+			}
+			// recurse into the smaller half to bound the stack depth
+			if (j - lo < hi - i)
+			{
+				quickSort(lo, j);
+				lo = i;
+			}
+			else
+			{
+				quickSort(i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++)
+		{
+			for (int j = i; j > lo && distances[j - 1] > distances[j]; j--) swap(j - 1, j);
+		}
+	}
+
+	private void swap(int a, int b) {
+		int ti = ids[a]; ids[a] = ids[b]; ids[b] = ti;
+		ti = nameRefs[a]; nameRefs[a] = nameRefs[b]; nameRefs[b] = ti;
+		double td = longitudes[a]; longitudes[a] = longitudes[b]; longitudes[b] = td;
+		td = latitudes[a]; latitudes[a] = latitudes[b]; latitudes[b] = td;
+		float tf = heights[a]; heights[a] = heights[b]; heights[b] = tf;
+		tf = importances[a]; importances[a] = importances[b]; importances[b] = tf;
+		td = directions[a]; directions[a] = directions[b]; directions[b] = td;
+		td = distances[a]; distances[a] = distances[b]; distances[b] = td;
+		td = visualElevations[a]; visualElevations[a] = visualElevations[b]; visualElevations[b] = td;
+		boolean tb = hidden[a]; hidden[a] = hidden[b]; hidden[b] = tb;
+	}
+
+	private void allocate(int capacity) {
+		ids = new int[capacity];
+		nameRefs = new int[capacity];
+		longitudes = new double[capacity];
+		latitudes = new double[capacity];
+		heights = new float[capacity];
+		importances = new float[capacity];
+		directions = new double[capacity];
+		distances = new double[capacity];
+		visualElevations = new double[capacity];
+		hidden = new boolean[capacity];
+	}
+
+	private void grow(int capacity) {
+		int[] oIds = ids, oNameRefs = nameRefs;
+		double[] oLons = longitudes, oLats = latitudes;
+		float[] oHeights = heights, oImportances = importances;
+		double[] oDirs = directions, oDists = distances, oElevs = visualElevations;
+		boolean[] oHidden = hidden;
+		allocate(capacity);
+		System.arraycopy(oIds, 0, ids, 0, size);
+		System.arraycopy(oNameRefs, 0, nameRefs, 0, size);
+		System.arraycopy(oLons, 0, longitudes, 0, size);
+		System.arraycopy(oLats, 0, latitudes, 0, size);
+		System.arraycopy(oHeights, 0, heights, 0, size);
+		System.arraycopy(oImportances, 0, importances, 0, size);
+		System.arraycopy(oDirs, 0, directions, 0, size);
+		System.arraycopy(oDists, 0, distances, 0, size);
+		System.arraycopy(oElevs, 0, visualElevations, 0, size);
+		System.arraycopy(oHidden, 0, hidden, 0, size);
+	}
+}
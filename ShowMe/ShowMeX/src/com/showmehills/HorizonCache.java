@@ -0,0 +1,168 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/*
+ * Least recently used cache of HorizonProfiles, keyed by the observer's position rounded to a
+ * grid of cellMetres squares and altitudeMetres bands. Standing still at a viewpoint, or coming
+ * back to it, reuses the profile instead of marching the rays again. The cache can be saved to
+ * and loaded from a file so profiles survive a restart. All methods are thread safe.
+ */
+public class HorizonCache {
+	private static final int FILE_MAGIC = 0x534d4843; // "SMHC"
+	private static final int FILE_VERSION = 2;
+	private static final double METRES_PER_DEGREE = Math.PI * 6371000 / 180;
+	// GPS fixes without an altitude get a band of their own
+	private static final int NO_ALTITUDE = 0x7fff;
+
+	private final double mCellMetres;
+	private final double mAltitudeMetres;
+	private final int mCapacity;
+	private final LinkedHashMap<Long, HorizonProfile> mProfiles;
+	private int mHits = 0;
+	private int mMisses = 0;
+	private boolean mDirty = false;
+
+	public HorizonCache(int capacity, double cellMetres, double altitudeMetres) {
+		mCapacity = capacity;
+		mCellMetres = cellMetres;
+		mAltitudeMetres = altitudeMetres;
+		mProfiles = new LinkedHashMap<Long, HorizonProfile>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, HorizonProfile> eldest) {
+				return size() > mCapacity;
+			}
+		};
+	}
+
+	// a profile for this cell and max distance, or null
+	public synchronized HorizonProfile get(double lat, double lon, double altitude, float maxDistanceKm) {
+		HorizonProfile profile = mProfiles.get(Long.valueOf(key(lat, lon, altitude)));
+		if (profile != null && profile.maxDistance == maxDistanceKm)
+		{
+			mHits++;
+			return profile;
+		}
+		mMisses++;
+		return null;
+	}
+
+	// altitude is the GPS altitude the profile was asked for, not the one it ended up using
+	public synchronized void put(double lat, double lon, double altitude, HorizonProfile profile) {
+		mProfiles.put(Long.valueOf(key(lat, lon, altitude)), profile);
+		mDirty = true;
+	}
+
+	public synchronized int getHits() { return mHits; }
+
+	public synchronized int getMisses() { return mMisses; }
+
+	public synchronized int size() { return mProfiles.size(); }
+
+	/*
+	 * Cell coordinates packed into a long: 21 bits of latitude cell, 22 of longitude cell and
+	 * 16 of altitude band, which covers the globe for cells down to 10m. Longitude cells are
+	 * scaled by the cosine of the latitude cell so they stay roughly square.
+	 */
+	long key(double lat, double lon, double altitude) {
+		long latCell = (long)Math.floor(lat * METRES_PER_DEGREE / mCellMetres);
+		double cos = Math.max(Math.cos(Math.toRadians((latCell + 0.5) * mCellMetres / METRES_PER_DEGREE)), 0.01);
+		long lonCell = (long)Math.floor(lon * METRES_PER_DEGREE * cos / mCellMetres);
+		long band = Double.isNaN(altitude) ? NO_ALTITUDE : (long)Math.floor(altitude / mAltitudeMetres);
+		return ((latCell & 0x1fffff) << 38) | ((lonCell & 0x3fffff) << 16) | (band & 0xffff);
+	}
+
+	public synchronized void load(File file) {
+		if (!file.exists()) return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) return;
+			if (in.readDouble() != mCellMetres || in.readDouble() != mAltitudeMetres) return;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				long key = in.readLong();
+				mProfiles.put(Long.valueOf(key), HorizonProfile.read(in));
+			}
+			Log.d("showmehills", "Loaded " + count + " horizon profiles");
+		} catch (IOException e) {
+			Log.e("showmehills", "Can't read horizon cache: " + e.getMessage());
+			mProfiles.clear();
+		} finally {
+			close(in);
+		}
+	}
+
+	// only writes if something has been added since the last load or save
+	public synchronized void save(File file) {
+		if (!mDirty) return;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeDouble(mCellMetres);
+			out.writeDouble(mAltitudeMetres);
+			out.writeInt(mProfiles.size());
+			// oldest first, so loading puts them back in the same LRU order
+			for (Map.Entry<Long, HorizonProfile> e : mProfiles.entrySet())
+			{
+				out.writeLong(e.getKey().longValue());
+				e.getValue().write(out);
+			}
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file)) throw new IOException("can't rename " + tmp);
+			mDirty = false;
+			Log.d("showmehills", "Saved " + mProfiles.size() + " horizon profiles; " + mHits + " hits, " + mMisses + " misses");
+		} catch (IOException e) {
+			Log.e("showmehills", "Can't save horizon cache: " + e.getMessage());
+			tmp.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c == null) return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
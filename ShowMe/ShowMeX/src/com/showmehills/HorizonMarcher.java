@@ -0,0 +1,204 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Works out a HorizonProfile from DemTileCache elevation data by marching each ray outwards
+ * and keeping the highest elevation angle seen up to every step. The rays are split into
+ * sectors and marched on all cores. compute() must only be called from one thread at a time.
+ */
+public class HorizonMarcher {
+	private static final double EARTH_RADIUS_KM = 6371;
+	private static final double DEGREES_PER_KM = 180 / (Math.PI * EARTH_RADIUS_KM);
+	private static final double EYE_HEIGHT = 1.7;
+	// terrain is always judged with curvature and refraction, whatever the label preference
+	static final double DROP = GeodesyKernel.dropPerKmSquared(GeodesyKernel.ELEVATION_REFRACTION);
+	private static final float NO_TERRAIN = (float)(-Math.PI / 2);
+	// rises smaller than this aren't kept; well inside HorizonProfile's tolerance
+	private static final float MIN_RISE = (float)Math.toRadians(0.02);
+
+	private static ExecutorService sPool = null;
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private float[] mStepDistances = new float[0];
+	private float[] mMaxAngles = new float[0]; // [ray * steps + step]
+
+	// observer for the current compute()
+	private DemTileCache mDem;
+	private double mLatitude, mLongitude, mAltitude, mCosLatitude;
+	private final Sector[] mSectors;
+	private CountDownLatch mDone;
+
+	private class Sector implements Runnable {
+		final int firstRay, lastRay;
+
+		Sector(int firstRay, int lastRay) {
+			this.firstRay = firstRay;
+			this.lastRay = lastRay;
+		}
+
+		public void run() {
+			try {
+				for (int ray = firstRay; ray < lastRay; ray++) march(ray);
+			} finally {
+				if (mDone != null) mDone.countDown();
+			}
+		}
+	}
+
+	public HorizonMarcher() {
+		int sectors = Math.max(1, THREADS);
+		mSectors = new Sector[sectors];
+		for (int i = 0; i < sectors; i++)
+		{
+			mSectors[i] = new Sector(HorizonProfile.RAYS * i / sectors, HorizonProfile.RAYS * (i + 1) / sectors);
+		}
+	}
+
+	private static synchronized ExecutorService pool() {
+		if (sPool == null)
+		{
+			sPool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "showmehills-horizon");
+					t.setPriority(Thread.MIN_PRIORITY);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sPool;
+	}
+
+	/*
+	 * Works out the horizon for an observer at this position. altitude is the GPS altitude,
+	 * or NaN if there isn't one; it is raised to eye height above the ground if it's lower.
+	 * Returns null if there is no elevation data around the observer.
+	 */
+	public HorizonProfile compute(DemTileCache dem, double lat, double lon, double altitude, float maxDistanceKm) {
+		mStepDistances = HorizonProfile.steps(maxDistanceKm);
+		int steps = mStepDistances.length;
+		if (mMaxAngles.length < HorizonProfile.RAYS * steps) mMaxAngles = new float[HorizonProfile.RAYS * steps];
+		mDem = dem;
+		mLatitude = lat;
+		mLongitude = lon;
+		mCosLatitude = Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+		double ground = dem.get(lat, lon).elevation(lat, lon);
+		if (Double.isNaN(ground)) mAltitude = Double.isNaN(altitude) ? 0 : altitude;
+		else mAltitude = Double.isNaN(altitude) ? ground + EYE_HEIGHT : Math.max(altitude, ground + EYE_HEIGHT);
+
+		if (mSectors.length == 1)
+		{
+			mDone = null;
+			mSectors[0].run();
+		}
+		else
+		{
+			mDone = new CountDownLatch(mSectors.length);
+			ExecutorService pool = pool();
+			for (Sector s : mSectors) pool.execute(s);
+			try {
+				mDone.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return compact(lat, lon, maxDistanceKm);
+	}
+
+	// march one ray outwards, filling in its running maximum angles
+	private void march(int ray) {
+		double azimuth = Math.toRadians(ray * 360.0 / HorizonProfile.RAYS);
+		double dLat = Math.cos(azimuth) * DEGREES_PER_KM;
+		double dLon = Math.sin(azimuth) * DEGREES_PER_KM / mCosLatitude;
+		float[] distances = mStepDistances;
+		float[] angles = mMaxAngles;
+		int steps = distances.length;
+		int base = ray * steps;
+		float max = NO_TERRAIN;
+		DemTileCache.Tile tile = null;
+		for (int s = 0; s < steps; s++)
+		{
+			double d = distances[s];
+			double lat = mLatitude + d * dLat;
+			double lon = mLongitude + d * dLon;
+			// rays that cross the antimeridian carry on in the tiles at the other edge of the map
+			if (lon >= 180) lon -= 360;
+			else if (lon < -180) lon += 360;
+			if (tile == null || !tile.contains(lat, lon)) tile = mDem.get(lat, lon);
+			double h = tile.elevation(lat, lon);
+			if (!Double.isNaN(h))
+			{
+				float angle = (float)Math.atan2(h - mAltitude - DROP * d * d, d * 1000);
+				if (angle > max) max = angle;
+			}
+			angles[base + s] = max;
+		}
+	}
+
+	// keep only the steps where each ray's maximum goes up by at least MIN_RISE
+	private HorizonProfile compact(double lat, double lon, float maxDistanceKm) {
+		int steps = mStepDistances.length;
+		float[] angles = mMaxAngles;
+		int changes = 0;
+		for (int ray = 0; ray < HorizonProfile.RAYS; ray++)
+		{
+			float last = NO_TERRAIN;
+			for (int i = ray * steps, end = i + steps; i < end; i++)
+			{
+				if (angles[i] >= last + MIN_RISE || last == NO_TERRAIN && angles[i] > NO_TERRAIN)
+				{
+					last = angles[i];
+					changes++;
+				}
+			}
+		}
+		if (changes == 0) return null;
+
+		int[] rayStart = new int[HorizonProfile.RAYS + 1];
+		short[] changeSteps = new short[changes];
+		float[] changeAngles = new float[changes];
+		int n = 0;
+		for (int ray = 0; ray < HorizonProfile.RAYS; ray++)
+		{
+			rayStart[ray] = n;
+			float last = NO_TERRAIN;
+			int base = ray * steps;
+			for (int s = 0; s < steps; s++)
+			{
+				if (angles[base + s] >= last + MIN_RISE || last == NO_TERRAIN && angles[base + s] > NO_TERRAIN)
+				{
+					last = angles[base + s];
+					changeSteps[n] = (short)s;
+					changeAngles[n] = last;
+					n++;
+				}
+			}
+		}
+		rayStart[HorizonProfile.RAYS] = n;
+		return new HorizonProfile(lat, lon, mAltitude, maxDistanceKm, rayStart, changeSteps, changeAngles);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+ * The terrain horizon seen from one observer position, as worked out by HorizonMarcher. There
+ * is a ray every half degree of azimuth, sampled at steps that start at roughly the 90m SRTM
+ * spacing and get longer further out. For each ray only the steps where the highest terrain
+ * angle so far goes up are kept, which is a few dozen values rather than hundreds, so a
+ * profile is small enough to cache and save (see HorizonCache). Profiles don't change once
+ * made and can be shared between threads.
+ */
+public class HorizonProfile {
+	static final int RAYS = 720;
+	// ground this close to the peak belongs to the peak itself
+	private static final double PEAK_CLEARANCE_KM = 0.25;
+	// allows for SRTM heights disagreeing with surveyed summit heights
+	private static final double TOLERANCE = Math.toRadians(0.2);
+
+	private static float sStepsMaxDistance = -1;
+	private static float[] sSteps = null;
+
+	final double latitude, longitude, altitude;
+	final float maxDistance;
+	private final float[] stepDistances;
+	// the changes for ray r are changeSteps/changeAngles[rayStart[r] .. rayStart[r+1]-1]
+	private final int[] rayStart;
+	private final short[] changeSteps;
+	private final float[] changeAngles;
+	private final int coveredRays;
+
+	HorizonProfile(double latitude, double longitude, double altitude, float maxDistance,
+			int[] rayStart, short[] changeSteps, float[] changeAngles) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.altitude = altitude;
+		this.maxDistance = maxDistance;
+		this.stepDistances = steps(maxDistance);
+		this.rayStart = rayStart;
+		this.changeSteps = changeSteps;
+		this.changeAngles = changeAngles;
+		int covered = 0;
+		for (int r = 0; r < RAYS; r++)
+		{
+			if (rayStart[r + 1] > rayStart[r]) covered++;
+		}
+		coveredRays = covered;
+	}
+
+	/*
+	 * Distances in km of the sample steps out to maxDistanceKm. Every profile for the same
+	 * distance shares one array.
+	 */
+	static synchronized float[] steps(float maxDistanceKm) {
+		if (maxDistanceKm != sStepsMaxDistance)
+		{
+			int n = 0;
+			for (double d = 0.1; d <= maxDistanceKm; d += Math.max(0.09, d * 0.01)) n++;
+			float[] steps = new float[n];
+			n = 0;
+			for (double d = 0.1; d <= maxDistanceKm; d += Math.max(0.09, d * 0.01)) steps[n++] = (float)d;
+			sSteps = steps;
+			sStepsMaxDistance = maxDistanceKm;
+		}
+		return sSteps;
+	}
+
+	public double getObserverAltitude() { return altitude; }
+
+	// number of rays that found any elevation data
+	public int getCoveredRays() { return coveredRays; }
+
+	// whether nearer terrain rises above a peak of this height, direction and distance
+	public boolean isHidden(double direction, double distanceKm, double height) {
+		int step = stepBefore(distanceKm - PEAK_CLEARANCE_KM);
+		if (step < 0) return false;
+		int ray = (int)Math.round(direction * RAYS / 360.0) % RAYS;
+		if (ray < 0) ray += RAYS;
+		// last change at or before this step
+		int lo = rayStart[ray], hi = rayStart[ray + 1];
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (changeSteps[mid] <= step) lo = mid + 1;
+			else hi = mid;
+		}
+		if (lo == rayStart[ray]) return false;
+		double angle = Math.atan2(height - altitude - HorizonMarcher.DROP * distanceKm * distanceKm, distanceKm * 1000);
+		return angle + TOLERANCE < changeAngles[lo - 1];
+	}
+
+	// index of the last step nearer than distanceKm, or -1
+	private int stepBefore(double distanceKm) {
+		int lo = 0, hi = stepDistances.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (stepDistances[mid] < distanceKm) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo - 1;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeDouble(latitude);
+		out.writeDouble(longitude);
+		out.writeDouble(altitude);
+		out.writeFloat(maxDistance);
+		int changes = rayStart[RAYS];
+		out.writeInt(changes);
+		for (int r = 0; r <= RAYS; r++) out.writeInt(rayStart[r]);
+		for (int i = 0; i < changes; i++)
+		{
+			out.writeShort(changeSteps[i]);
+			out.writeFloat(changeAngles[i]);
+		}
+	}
+
+	static HorizonProfile read(DataInputStream in) throws IOException {
+		double latitude = in.readDouble();
+		double longitude = in.readDouble();
+		double altitude = in.readDouble();
+		float maxDistance = in.readFloat();
+		int changes = in.readInt();
+		if (changes < 0 || changes > RAYS * Short.MAX_VALUE) throw new IOException("bad horizon profile");
+		int[] rayStart = new int[RAYS + 1];
+		for (int r = 0; r <= RAYS; r++) rayStart[r] = in.readInt();
+		short[] changeSteps = new short[changes];
+		float[] changeAngles = new float[changes];
+		for (int i = 0; i < changes; i++)
+		{
+			changeSteps[i] = in.readShort();
+			changeAngles[i] = in.readFloat();
+		}
+		return new HorizonProfile(latitude, longitude, altitude, maxDistance, rayStart, changeSteps, changeAngles);
+	}
+}
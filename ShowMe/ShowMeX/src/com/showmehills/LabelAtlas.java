@@ -0,0 +1,353 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/*
+ * Pre-rasterised hill labels. Each label (name and suffix, black outline and white fill) is
+ * drawn once into a shared bitmap, packed in shelves, and after that every frame only copies
+ * its rectangle to the screen: one drawBitmap instead of two to four drawText calls, which
+ * each have to lay out and outline the glyphs again.
+ *
+ * Sprites are keyed on hill id, and only used while the label's name, suffix and text size
+ * are the ones they were drawn with. When a new snapshot arrives, retain() drops the sprites
+ * of hills that have left it and keeps the rest, so a label is only drawn again when its text
+ * changes (its distance or bearing ticks over, or it moves to another size). Dropped sprites'
+ * rectangles are reused for new ones that fit. When the bitmap is full, the sprites not drawn
+ * since the snapshot arrived go too, and if it is then still too fragmented to place a label,
+ * everything is dropped and drawn again as it comes into view. If a label doesn't fit at all,
+ * add() returns -1 and the caller draws it the old way.
+ */
+public class LabelAtlas {
+	static final int WIDTH = 1024;
+	static final int HEIGHT = 512;
+	// room for the outline, which is drawn 2px wide, around the glyphs
+	private static final int PAD = 2;
+	// narrower leftovers of a reused rectangle aren't worth keeping
+	private static final int MIN_FREE_WIDTH = 16;
+
+	private Bitmap mBitmap;
+	private Canvas mCanvas;
+	private final Rect mSrc = new Rect();
+	private final Rect mDst = new Rect();
+	private final Paint mBlitPaint = new Paint();
+	private final Paint.FontMetrics mMetrics = new Paint.FontMetrics();
+
+	// current shelf
+	private int mShelfX = 0, mShelfY = 0, mShelfHeight = 0;
+
+	// hill id to sprite
+	private final SparseIntArray mSprites = new SparseIntArray();
+
+	// per sprite; a width of 0 means the sprite is unused
+	private int mCount = 0;
+	private int[] mIds = new int[64];
+	private String[] mNames = new String[64], mSuffixes = new String[64];
+	private float[] mSizes = new float[64];
+	private int[] mLefts = new int[64], mTops = new int[64], mWidths = new int[64], mHeights = new int[64];
+	// top of the sprite relative to the label's tick line
+	private int[] mOffsets = new int[64];
+	// the snapshot each sprite was last drawn in, and last found in
+	private int[] mDrawn = new int[64], mKept = new int[64];
+	private int mStamp = 0;
+	// unused sprite numbers
+	private int[] mSpare = new int[64];
+	private int mSpareCount = 0;
+	private int mLiveArea = 0;
+
+	// rectangles given back by dropped sprites
+	private int mFreeCount = 0;
+	private int[] mFreeLefts = new int[64], mFreeTops = new int[64], mFreeWidths = new int[64], mFreeHeights = new int[64];
+
+	public LabelAtlas() {
+		mBlitPaint.setFilterBitmap(false);
+	}
+
+	// false if the bitmap can't be had, in which case the caller should draw text directly
+	public boolean isAvailable() {
+		if (mBitmap == null)
+		{
+			try {
+				mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+				mCanvas = new Canvas(mBitmap);
+			} catch (OutOfMemoryError e) {
+				Log.d("showmehills", "no memory for the label atlas");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// drops every sprite, for when the label colours or sizes have changed
+	public void reset() {
+		if (mBitmap != null) mBitmap.eraseColor(Color.TRANSPARENT);
+		mShelfX = 0;
+		mShelfY = 0;
+		mShelfHeight = 0;
+		mSprites.clear();
+		for (int i = 0; i < mCount; i++)
+		{
+			mNames[i] = null;
+			mSuffixes[i] = null;
+		}
+		mCount = 0;
+		mSpareCount = 0;
+		mFreeCount = 0;
+		mLiveArea = 0;
+	}
+
+	public void release() {
+		if (mBitmap != null) mBitmap.recycle();
+		mBitmap = null;
+		mCanvas = null;
+		reset();
+	}
+
+	public int size() { return mSprites.size(); }
+
+	// drops the sprites of hills that aren't in this snapshot
+	public void retain(HillStore hills) {
+		mStamp++;
+		for (int row = 0; row < hills.size(); row++)
+		{
+			int sprite = mSprites.get(hills.ids[row], -1);
+			if (sprite >= 0) mKept[sprite] = mStamp;
+		}
+		for (int i = mSprites.size() - 1; i >= 0; i--)
+		{
+			int sprite = mSprites.valueAt(i);
+			if (mKept[sprite] != mStamp) drop(sprite);
+		}
+	}
+
+	// the sprite for this hill's label, or -1 if it has none with this text and size
+	public int find(int id, String name, String suffix, float size) {
+		int sprite = mSprites.get(id, -1);
+		if (sprite < 0) return -1;
+		if (mSizes[sprite] == size && name.equals(mNames[sprite])
+				&& (suffix == null ? mSuffixes[sprite] == null : suffix.equals(mSuffixes[sprite])))
+		{
+			mDrawn[sprite] = mStamp;
+			return sprite;
+		}
+		drop(sprite);
+		return -1;
+	}
+
+	/*
+	 * Rasterises a label, laid out as DrawOnTop draws it: the name centred with its baseline 5px
+	 * above the tick line, or a line higher when there is a suffix, which then takes that line.
+	 * The paints must already have the text size and the colours of a fully opaque label.
+	 * Replaces any sprite the hill had; returns the new sprite, or -1 if there's no room.
+	 */
+	public int add(int id, String name, float nameWidth, String suffix, float suffixWidth, float size,
+			Paint strokePaint, Paint textPaint) {
+		if (!isAvailable()) return -1;
+		int old = mSprites.get(id, -1);
+		if (old >= 0) drop(old);
+		strokePaint.getFontMetrics(mMetrics);
+		float firstBaseline = -5 - (suffix != null ? size : 0);
+		int top = (int)Math.floor(firstBaseline + mMetrics.top) - PAD;
+		int bottom = (int)Math.ceil(-5 + mMetrics.bottom) + PAD;
+		int width = (int)Math.ceil(Math.max(nameWidth, suffix != null ? suffixWidth : 0)) + 2 * PAD;
+		int height = bottom - top;
+		if (width > WIDTH || height > HEIGHT) return -1;
+
+		int sprite = allocate(width, height);
+		if (sprite < 0)
+		{
+			// make room from the hills that are in the snapshot but out of view
+			for (int i = mSprites.size() - 1; i >= 0; i--)
+			{
+				int s = mSprites.valueAt(i);
+				if (mDrawn[s] != mStamp) drop(s);
+			}
+			sprite = allocate(width, height);
+		}
+		if (sprite < 0 && mLiveArea < WIDTH * HEIGHT / 2)
+		{
+			// mostly holes too small to use: start again
+			reset();
+			sprite = allocate(width, height);
+		}
+		if (sprite < 0) return -1;
+
+		int x = mLefts[sprite] + width / 2;
+		int y = mTops[sprite] - top;
+		mCanvas.drawText(name, x, y + firstBaseline, strokePaint);
+		mCanvas.drawText(name, x, y + firstBaseline, textPaint);
+		if (suffix != null)
+		{
+			mCanvas.drawText(suffix, x, y - 5, strokePaint);
+			mCanvas.drawText(suffix, x, y - 5, textPaint);
+		}
+
+		mIds[sprite] = id;
+		mNames[sprite] = name;
+		mSuffixes[sprite] = suffix;
+		mSizes[sprite] = size;
+		mOffsets[sprite] = top;
+		mDrawn[sprite] = mStamp;
+		mKept[sprite] = mStamp;
+		mSprites.put(id, sprite);
+		mLiveArea += width * height;
+		return sprite;
+	}
+
+	// draws a sprite centred on x, over the tick line at labelpt
+	public void draw(Canvas canvas, int sprite, int x, int labelpt, int alpha) {
+		int w = mWidths[sprite];
+		mSrc.set(mLefts[sprite], mTops[sprite], mLefts[sprite] + w, mTops[sprite] + mHeights[sprite]);
+		mDst.left = x - w / 2;
+		mDst.top = labelpt + mOffsets[sprite];
+		mDst.right = mDst.left + w;
+		mDst.bottom = mDst.top + mHeights[sprite];
+		mBlitPaint.setAlpha(alpha);
+		canvas.drawBitmap(mBitmap, mSrc, mDst, mBlitPaint);
+	}
+
+	// a sprite with room for width x height, from a freed rectangle or the shelves, or -1
+	private int allocate(int width, int height) {
+		int left, top;
+		int best = -1;
+		for (int f = 0; f < mFreeCount; f++)
+		{
+			if (mFreeWidths[f] >= width && mFreeHeights[f] >= height
+					&& (best < 0 || mFreeWidths[f] * mFreeHeights[f] < mFreeWidths[best] * mFreeHeights[best]))
+			{
+				best = f;
+			}
+		}
+		if (best >= 0)
+		{
+			left = mFreeLefts[best];
+			top = mFreeTops[best];
+			int rest = mFreeWidths[best] - width;
+			if (rest >= MIN_FREE_WIDTH)
+			{
+				mFreeLefts[best] += width;
+				mFreeWidths[best] = rest;
+			}
+			else
+			{
+				removeFree(best);
+			}
+			// clear what the old sprite left there
+			mCanvas.save();
+			mCanvas.clipRect(left, top, left + width, top + height);
+			mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+			mCanvas.restore();
+		}
+		else
+		{
+			if (mShelfX + width > WIDTH)
+			{
+				mShelfY += mShelfHeight;
+				mShelfX = 0;
+				mShelfHeight = 0;
+			}
+			if (mShelfY + height > HEIGHT) return -1;
+			left = mShelfX;
+			top = mShelfY;
+			mShelfX += width;
+			mShelfHeight = Math.max(mShelfHeight, height);
+		}
+
+		int sprite;
+		if (mSpareCount > 0)
+		{
+			sprite = mSpare[--mSpareCount];
+		}
+		else
+		{
+			ensureCapacity(mCount + 1);
+			sprite = mCount++;
+		}
+		mLefts[sprite] = left;
+		mTops[sprite] = top;
+		mWidths[sprite] = width;
+		mHeights[sprite] = height;
+		return sprite;
+	}
+
+	private void drop(int sprite) {
+		mSprites.delete(mIds[sprite]);
+		mNames[sprite] = null;
+		mSuffixes[sprite] = null;
+		mLiveArea -= mWidths[sprite] * mHeights[sprite];
+		addFree(mLefts[sprite], mTops[sprite], mWidths[sprite], mHeights[sprite]);
+		mWidths[sprite] = 0;
+		if (mSpareCount == mSpare.length) mSpare = HillIndex.grow(mSpare, mSpareCount * 2);
+		mSpare[mSpareCount++] = sprite;
+	}
+
+	private void addFree(int left, int top, int width, int height) {
+		if (mFreeCount == mFreeLefts.length)
+		{
+			int n = mFreeCount * 2;
+			mFreeLefts = HillIndex.grow(mFreeLefts, n);
+			mFreeTops = HillIndex.grow(mFreeTops, n);
+			mFreeWidths = HillIndex.grow(mFreeWidths, n);
+			mFreeHeights = HillIndex.grow(mFreeHeights, n);
+		}
+		mFreeLefts[mFreeCount] = left;
+		mFreeTops[mFreeCount] = top;
+		mFreeWidths[mFreeCount] = width;
+		mFreeHeights[mFreeCount] = height;
+		mFreeCount++;
+	}
+
+	private void removeFree(int f) {
+		int last = --mFreeCount;
+		mFreeLefts[f] = mFreeLefts[last];
+		mFreeTops[f] = mFreeTops[last];
+		mFreeWidths[f] = mFreeWidths[last];
+		mFreeHeights[f] = mFreeHeights[last];
+	}
+
+	private void ensureCapacity(int n) {
+		if (n <= mWidths.length) return;
+		int capacity = Math.max(n, mWidths.length * 2);
+		mIds = HillIndex.grow(mIds, capacity);
+		mLefts = HillIndex.grow(mLefts, capacity);
+		mTops = HillIndex.grow(mTops, capacity);
+		mWidths = HillIndex.grow(mWidths, capacity);
+		mHeights = HillIndex.grow(mHeights, capacity);
+		mOffsets = HillIndex.grow(mOffsets, capacity);
+		mDrawn = HillIndex.grow(mDrawn, capacity);
+		mKept = HillIndex.grow(mKept, capacity);
+		float[] sizes = new float[capacity];
+		System.arraycopy(mSizes, 0, sizes, 0, mSizes.length);
+		mSizes = sizes;
+		String[] names = new String[capacity], suffixes = new String[capacity];
+		System.arraycopy(mNames, 0, names, 0, mNames.length);
+		System.arraycopy(mSuffixes, 0, suffixes, 0, mSuffixes.length);
+		mNames = names;
+		mSuffixes = suffixes;
+	}
+}
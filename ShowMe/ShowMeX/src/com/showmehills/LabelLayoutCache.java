@@ -0,0 +1,114 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Measured label text for the hills in the current snapshot, keyed by hill id and text size
+ * tier: the name's width, and the formatted "(bearing distance height)" suffix and its width.
+ * The overlay only changes text size in whole steps, so each hill has a handful of tiers at
+ * most. Entries live in flat arrays with an open-addressed table, so a lookup allocates
+ * nothing.
+ */
+public class LabelLayoutCache {
+	private static final long EMPTY = -1;
+
+	private long[] keys;
+	private int[] slots;
+	private int count = 0;
+	float[] widths;
+	String[] suffixes;
+	float[] suffixWidths;
+
+	public LabelLayoutCache() {
+		allocate(64);
+	}
+
+	public void clear() {
+		for (int i = 0; i < keys.length; i++) keys[i] = EMPTY;
+		for (int i = 0; i < count; i++) suffixes[i] = null;
+		count = 0;
+	}
+
+	public static int tier(float textSize) {
+		return (int)(textSize * 16);
+	}
+
+	// returns the slot holding this label, or -1
+	public int find(int hillId, int tier) {
+		long key = key(hillId, tier);
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask)
+		{
+			if (keys[i] == key) return slots[i];
+		}
+		return -1;
+	}
+
+	// returns a new slot for this label; the caller fills in widths and suffixes
+	public int add(int hillId, int tier) {
+		if ((count + 1) * 2 > keys.length) rehash(keys.length * 2);
+		int slot = count++;
+		insert(key(hillId, tier), slot);
+		return slot;
+	}
+
+	private void insert(long key, int slot) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY) i = (i + 1) & mask;
+		keys[i] = key;
+		slots[i] = slot;
+	}
+
+	private void rehash(int tableSize) {
+		long[] oKeys = keys;
+		int[] oSlots = slots;
+		float[] oWidths = widths;
+		String[] oSuffixes = suffixes;
+		float[] oSuffixWidths = suffixWidths;
+		allocate(tableSize);
+		System.arraycopy(oWidths, 0, widths, 0, count);
+		System.arraycopy(oSuffixes, 0, suffixes, 0, count);
+		System.arraycopy(oSuffixWidths, 0, suffixWidths, 0, count);
+		for (int i = 0; i < oKeys.length; i++)
+		{
+			if (oKeys[i] != EMPTY) insert(oKeys[i], oSlots[i]);
+		}
+	}
+
+	private void allocate(int tableSize) {
+		keys = new long[tableSize];
+		for (int i = 0; i < tableSize; i++) keys[i] = EMPTY;
+		slots = new int[tableSize];
+		int entries = tableSize / 2;
+		widths = new float[entries];
+		suffixes = new String[entries];
+		suffixWidths = new float[entries];
+	}
+
+	private static long key(int hillId, int tier) {
+		return ((long)hillId << 32) | (tier & 0xffffffffL);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32);
+	}
+}
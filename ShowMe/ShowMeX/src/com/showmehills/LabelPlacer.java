@@ -0,0 +1,251 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Places label rectangles on the screen one at a time, in priority order, so that none overlap.
+ * Each label sits centred over its hill and is moved up from the lowest allowed position until
+ * it fits, jumping straight above whatever label is in the way; a label that fitted last frame
+ * tries its old position first, so labels don't jump about as the view turns.
+ *
+ * Placed rectangles are registered in a uniform grid of CELL_SIZE pixel cells, kept as linked
+ * lists in flat arrays. An overlap test only looks at the rectangles in the few cells the new
+ * one covers, and a touch only at those in one cell, so both cost the same however many labels
+ * there are. Cells are emptied by bumping a frame stamp rather than by clearing the grid.
+ * Nothing is allocated once the arrays have grown.
+ */
+public class LabelPlacer {
+	static final int CELL_SIZE = 32;
+	private static final int EMPTY = -1;
+
+	private int mColumns = 0, mRows = 0;
+	private int[] mCellHead = new int[0];
+	private int[] mCellStamp = new int[0];
+	private int mStamp = 0;
+	private int[] mEntryRect = new int[64];
+	private int[] mEntryNext = new int[64];
+	private int mEntries = 0;
+
+	private int mCount = 0;
+	private int[] mIds = new int[32];
+	private int[] mLefts = new int[32], mTops = new int[32], mRights = new int[32], mBottoms = new int[32];
+
+	// where each hill id's label ended up (its bottom edge), this frame and last frame
+	private int[] mKeys = new int[64], mPrevKeys = new int[64];
+	private int[] mValues = new int[64], mPrevValues = new int[64];
+
+	public LabelPlacer() {
+		fill(mKeys, EMPTY);
+		fill(mPrevKeys, EMPTY);
+	}
+
+	public int size() { return mCount; }
+
+	public int id(int i) { return mIds[i]; }
+
+	public int left(int i) { return mLefts[i]; }
+
+	public int top(int i) { return mTops[i]; }
+
+	public int right(int i) { return mRights[i]; }
+
+	public int bottom(int i) { return mBottoms[i]; }
+
+	// starts a new frame on a screen of this size; this frame's placements become last frame's
+	public void begin(int width, int height) {
+		int columns = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+		int rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+		if (columns * rows > mCellHead.length)
+		{
+			mCellHead = new int[columns * rows];
+			mCellStamp = new int[columns * rows];
+			mStamp = 0;
+		}
+		mColumns = columns;
+		mRows = rows;
+		mStamp++;
+		mEntries = 0;
+		mCount = 0;
+
+		int[] t = mPrevKeys; mPrevKeys = mKeys; mKeys = t;
+		t = mPrevValues; mPrevValues = mValues; mValues = t;
+		fill(mKeys, EMPTY);
+	}
+
+	/*
+	 * Places a label of the given size centred on x, with its bottom edge no lower than maxBottom
+	 * and its top no higher than minTop. It moves up at least step pixels at a time, and past the
+	 * top of any label in the way. Returns the bottom edge it was placed at, or Integer.MIN_VALUE
+	 * if there is nowhere it fits.
+	 */
+	public int place(int id, int x, int halfWidth, int height, int minTop, int maxBottom, int step) {
+		int left = x - halfWidth, right = x + halfWidth;
+		step = Math.max(1, step);
+		int bottom = Integer.MIN_VALUE;
+		int previous = lookup(mPrevKeys, mPrevValues, id);
+		if (previous != Integer.MIN_VALUE && previous <= maxBottom && previous - height >= minTop
+				&& blockingTop(left, previous - height, right, previous) == Integer.MAX_VALUE)
+		{
+			bottom = previous;
+		}
+		else
+		{
+			for (int b = maxBottom; b - height >= minTop; )
+			{
+				int blocker = blockingTop(left, b - height, right, b);
+				if (blocker == Integer.MAX_VALUE)
+				{
+					bottom = b;
+					break;
+				}
+				b = Math.min(b - step, blocker);
+			}
+		}
+		if (bottom == Integer.MIN_VALUE) return bottom;
+		add(id, left, bottom - height, right, bottom);
+		return bottom;
+	}
+
+	// the id of the label at this point, or -1
+	public int hitTest(int x, int y) {
+		if (x < 0 || y < 0) return -1;
+		int col = x / CELL_SIZE, row = y / CELL_SIZE;
+		if (col >= mColumns || row >= mRows) return -1;
+		int cell = row * mColumns + col;
+		if (mCellStamp[cell] != mStamp) return -1;
+		for (int e = mCellHead[cell]; e != EMPTY; e = mEntryNext[e])
+		{
+			int r = mEntryRect[e];
+			if (x >= mLefts[r] && x < mRights[r] && y >= mTops[r] && y < mBottoms[r]) return mIds[r];
+		}
+		return -1;
+	}
+
+	// the top of a placed label this rectangle overlaps, or Integer.MAX_VALUE if none
+	private int blockingTop(int left, int top, int right, int bottom) {
+		int c0 = column(left), c1 = column(right - 1);
+		int r0 = row(top), r1 = row(bottom - 1);
+		for (int row = r0; row <= r1; row++)
+		{
+			for (int col = c0; col <= c1; col++)
+			{
+				int cell = row * mColumns + col;
+				if (mCellStamp[cell] != mStamp) continue;
+				for (int e = mCellHead[cell]; e != EMPTY; e = mEntryNext[e])
+				{
+					int r = mEntryRect[e];
+					if (left < mRights[r] && right > mLefts[r] && top < mBottoms[r] && bottom > mTops[r]) return mTops[r];
+				}
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	private void add(int id, int left, int top, int right, int bottom) {
+		if (mCount == mIds.length)
+		{
+			int n = mCount * 2;
+			mIds = HillIndex.grow(mIds, n);
+			mLefts = HillIndex.grow(mLefts, n);
+			mTops = HillIndex.grow(mTops, n);
+			mRights = HillIndex.grow(mRights, n);
+			mBottoms = HillIndex.grow(mBottoms, n);
+		}
+		int r = mCount++;
+		mIds[r] = id;
+		mLefts[r] = left;
+		mTops[r] = top;
+		mRights[r] = right;
+		mBottoms[r] = bottom;
+
+		int c0 = column(left), c1 = column(right - 1);
+		int r0 = row(top), r1 = row(bottom - 1);
+		for (int row = r0; row <= r1; row++)
+		{
+			for (int col = c0; col <= c1; col++)
+			{
+				int cell = row * mColumns + col;
+				if (mCellStamp[cell] != mStamp)
+				{
+					mCellStamp[cell] = mStamp;
+					mCellHead[cell] = EMPTY;
+				}
+				if (mEntries == mEntryRect.length)
+				{
+					mEntryRect = HillIndex.grow(mEntryRect, mEntries * 2);
+					mEntryNext = HillIndex.grow(mEntryNext, mEntries * 2);
+				}
+				mEntryRect[mEntries] = r;
+				mEntryNext[mEntries] = mCellHead[cell];
+				mCellHead[cell] = mEntries++;
+			}
+		}
+		remember(id, bottom);
+	}
+
+	// rectangles off the screen edges are counted in the edge cells
+	private int column(int x) {
+		return Math.min(mColumns - 1, Math.max(0, x / CELL_SIZE));
+	}
+
+	private int row(int y) {
+		return Math.min(mRows - 1, Math.max(0, y / CELL_SIZE));
+	}
+
+	private void remember(int id, int bottom) {
+		if ((mCount + 1) * 2 > mKeys.length)
+		{
+			int[] oKeys = mKeys, oValues = mValues;
+			mKeys = new int[oKeys.length * 2];
+			mValues = new int[oKeys.length * 2];
+			fill(mKeys, EMPTY);
+			for (int i = 0; i < oKeys.length; i++)
+			{
+				if (oKeys[i] != EMPTY) insert(mKeys, mValues, oKeys[i], oValues[i]);
+			}
+		}
+		insert(mKeys, mValues, id, bottom);
+	}
+
+	private static void insert(int[] keys, int[] values, int key, int value) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	private static int lookup(int[] keys, int[] values, int key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask)
+		{
+			if (keys[i] == key) return values[i];
+		}
+		return Integer.MIN_VALUE;
+	}
+
+	private static int hash(int key) {
+		return key * 0x9E3779B9 >>> 16;
+	}
+
+	private static void fill(int[] a, int v) {
+		for (int i = 0; i < a.length; i++) a[i] = v;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Chooses which of the hills in view get a label when there is only room for a few. Each hill
+ * is scored on its importance (height, prominence and isolation, worked out offline by
+ * csv2peaks.py, or height alone without a peak file), how high it stands in the view, and how
+ * far away it is. The best POOL_FACTOR * limit are kept with a bounded min-heap, then picked
+ * greedily from a max-heap, each pick lowering the score of the hills within
+ * SEPARATION_DEGREES of it so that one crowded ridge doesn't take every label. Penalties only
+ * ever grow, so a popped hill whose score is out of date is pushed back rather than rescored
+ * everywhere (lazy greedy). The work is O(n log limit) for n hills in view, with no allocation
+ * once the arrays have grown.
+ */
+public class LabelRanker {
+	static final double W_IMPORTANCE = 1.0;
+	static final double W_ELEVATION = 0.5;
+	static final double ELEVATION_SCALE_DEGREES = 5;
+	static final double W_DISTANCE = 0.5;
+	static final double SEPARATION_DEGREES = 2;
+	static final double SEPARATION_PENALTY = 0.35;
+	static final int POOL_FACTOR = 3;
+
+	// also used by csv2peaks.py, which must be kept in step
+	static final double MAX_HEIGHT_METRES = 9000;
+
+	private int[] mRows = new int[64];
+	private double[] mBase = new double[64];
+	private double[] mScores = new double[64];
+	private int mSize = 0;
+	private int mChosen = 0;
+
+	/*
+	 * Importance from height alone, 0..1 on a log scale, for hill sources that have no
+	 * precomputed importance.
+	 */
+	public static float heightImportance(double height) {
+		if (height <= 0) return 0;
+		return (float)Math.min(1, Math.log(1 + height) / Math.log(1 + MAX_HEIGHT_METRES));
+	}
+
+	public double score(HillStore hills, int row, double maxDistance) {
+		double elevation = Math.toDegrees(hills.visualElevations[row]) / ELEVATION_SCALE_DEGREES;
+		elevation = Math.max(-1, Math.min(1, elevation));
+		double distance = maxDistance > 0 ? Math.min(1, hills.distances[row] / maxDistance) : 0;
+		return W_IMPORTANCE * hills.importances[row] + W_ELEVATION * elevation - W_DISTANCE * distance;
+	}
+
+	/*
+	 * Writes the best limit of rows[0..count) to out, best first, and returns how many were
+	 * written. out may be the rows array.
+	 */
+	public int select(HillStore hills, int[] rows, int count, int limit, double maxDistance, int[] out) {
+		if (limit <= 0) return 0;
+		int pool = Math.min(count, limit * POOL_FACTOR);
+		if (mRows.length < pool)
+		{
+			mRows = new int[pool];
+			mBase = new double[pool];
+			mScores = new double[pool];
+		}
+
+		// the best pool rows, in a min-heap on score
+		mSize = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int row = rows[i];
+			double s = score(hills, row, maxDistance);
+			if (mSize < pool)
+			{
+				mSize++;
+				siftUp(mSize - 1, row, s, s, false);
+			}
+			else if (s > mScores[0])
+			{
+				siftDown(0, row, s, s, mSize, false);
+			}
+		}
+
+		// greedy picks from a max-heap; the chosen rows collect at the end of the arrays
+		for (int i = (mSize >> 1) - 1; i >= 0; i--) siftDown(i, mRows[i], mBase[i], mScores[i], mSize, true);
+		mChosen = 0;
+		int heap = mSize;
+		while (heap > 0 && mChosen < limit)
+		{
+			int row = mRows[0];
+			double base = mBase[0];
+			double stored = mScores[0];
+			double s = base - SEPARATION_PENALTY * neighbours(hills, row);
+			heap--;
+			if (heap > 0) siftDown(0, mRows[heap], mBase[heap], mScores[heap], heap, true);
+			if (s < stored && heap > 0 && s < mScores[0])
+			{
+				// no longer the best: put it back with its new score
+				siftUp(heap, row, base, s, true);
+				heap++;
+				continue;
+			}
+			// the heap shrank by one, which frees the slot for the pick
+			mRows[heap] = row;
+			mChosen++;
+		}
+
+		// picks were stored from the end backwards
+		int n = mChosen;
+		for (int i = 0; i < n; i++) out[i] = mRows[mSize - 1 - i];
+		return n;
+	}
+
+	// chosen hills within SEPARATION_DEGREES of this one
+	private int neighbours(HillStore hills, int row) {
+		double direction = hills.directions[row];
+		int near = 0;
+		for (int i = mSize - mChosen; i < mSize; i++)
+		{
+			double d = Math.abs(hills.directions[mRows[i]] - direction);
+			if (d > 180) d = 360 - d;
+			if (d < SEPARATION_DEGREES) near++;
+		}
+		return near;
+	}
+
+	private void siftUp(int i, int row, double base, double s, boolean max) {
+		while (i > 0)
+		{
+			int parent = (i - 1) >> 1;
+			if (max ? mScores[parent] >= s : mScores[parent] <= s) break;
+			mRows[i] = mRows[parent];
+			mBase[i] = mBase[parent];
+			mScores[i] = mScores[parent];
+			i = parent;
+		}
+		mRows[i] = row;
+		mBase[i] = base;
+		mScores[i] = s;
+	}
+
+	private void siftDown(int i, int row, double base, double s, int n, boolean max) {
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= n) break;
+			if (child + 1 < n && (max ? mScores[child + 1] > mScores[child] : mScores[child + 1] < mScores[child])) child++;
+			if (max ? mScores[child] <= s : mScores[child] >= s) break;
+			mRows[i] = mRows[child];
+			mBase[i] = mBase[child];
+			mScores[i] = mScores[child];
+			i = child;
+		}
+		mRows[i] = row;
+		mBase[i] = base;
+		mScores[i] = s;
+	}
+}
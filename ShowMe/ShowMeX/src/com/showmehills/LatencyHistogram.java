@@ -0,0 +1,127 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Latencies of one stage over its last CAPACITY samples, in microseconds. The samples are kept
+ * in a ring, so old ones drop out, and are also counted in log-linear buckets: one per
+ * microsecond below LINEAR, then eight per power of two, so a bucket is never more than 12.5%
+ * wide. A percentile is then one pass over the buckets instead of a sort, and is reported as the
+ * top of its bucket.
+ *
+ * Nothing is allocated after construction. The methods are synchronized because some stages are
+ * recorded on the query thread while the HUD reads them on the UI thread; the lock is never
+ * contended for long.
+ */
+public class LatencyHistogram {
+	static final int CAPACITY = 512;
+	private static final int LINEAR = 16;
+	private static final int SUB_BITS = 3;
+	// LINEAR is 2^4, and a positive int has at most 31 bits
+	static final int BUCKETS = LINEAR + (31 - 4) * (1 << SUB_BITS);
+
+	private final int[] mSamples = new int[CAPACITY];
+	private final int[] mCounts = new int[BUCKETS];
+	private int mHead = 0;
+	private int mSize = 0;
+	private long mSum = 0;
+	private long mTotal = 0;
+
+	public synchronized void record(long nanos) {
+		long micros = nanos / 1000;
+		int v = (int)Math.max(0, Math.min(Integer.MAX_VALUE, micros));
+		if (mSize == CAPACITY)
+		{
+			int old = mSamples[mHead];
+			mCounts[bucket(old)]--;
+			mSum -= old;
+		}
+		else
+		{
+			mSize++;
+		}
+		mSamples[mHead] = v;
+		mCounts[bucket(v)]++;
+		mSum += v;
+		mHead = (mHead + 1) % CAPACITY;
+		mTotal++;
+	}
+
+	// samples in the window
+	public synchronized int size() { return mSize; }
+
+	// samples ever recorded
+	public synchronized long total() { return mTotal; }
+
+	public synchronized long mean() {
+		return mSize > 0 ? mSum / mSize : 0;
+	}
+
+	public synchronized long max() {
+		int max = 0;
+		for (int i = 0; i < mSize; i++) max = Math.max(max, mSamples[i]);
+		return max;
+	}
+
+	// the latency that fraction p (0..1) of the window is at or below, to within a bucket
+	public synchronized long percentile(double p) {
+		if (mSize == 0) return 0;
+		long target = Math.max(1, (long)Math.ceil(p * mSize));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++)
+		{
+			seen += mCounts[b];
+			if (seen >= target) return upperBound(b);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	public synchronized void reset() {
+		for (int b = 0; b < BUCKETS; b++) mCounts[b] = 0;
+		mHead = 0;
+		mSize = 0;
+		mSum = 0;
+		mTotal = 0;
+	}
+
+	// writes the non-empty buckets as "top:count" pairs, for the stats dump
+	public synchronized void appendBuckets(StringBuilder sb) {
+		for (int b = 0; b < BUCKETS; b++)
+		{
+			if (mCounts[b] == 0) continue;
+			sb.append(' ').append(upperBound(b)).append(':').append(mCounts[b]);
+		}
+	}
+
+	static int bucket(int v) {
+		if (v < LINEAR) return v;
+		int e = 31 - Integer.numberOfLeadingZeros(v);
+		int sub = (v >>> (e - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return LINEAR + ((e - 4) << SUB_BITS) + sub;
+	}
+
+	// the largest value that falls in bucket b
+	static long upperBound(int b) {
+		if (b < LINEAR) return b;
+		int e = 4 + ((b - LINEAR) >> SUB_BITS);
+		int sub = (b - LINEAR) & ((1 << SUB_BITS) - 1);
+		return ((long)((1 << SUB_BITS) + sub + 1) << (e - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/*
+ * Combines location fixes from every provider into one position, and says when that position
+ * has changed enough to be worth recomputing the hills for.
+ *
+ * The filter is a one-dimensional Kalman filter on the position, with the variance in square
+ * metres: between fixes the observer is assumed to wander at up to SPEED_METRES_PER_SECOND, so the
+ * estimate's variance grows with time, and each fix is weighted by its reported accuracy, made
+ * worse by how old it already was when it arrived. A precise GPS fix therefore takes over at
+ * once, a coarse network fix only nudges a recent GPS position, and a last known location from
+ * an hour ago counts for little as soon as anything fresh turns up. Fixes are kept apart by the
+ * name of the provider that made them, and one no newer than the last from its provider is
+ * ignored: the passive provider repeats other providers' fixes under their names.
+ *
+ * update() returns true only when the fused position has moved more than MIN_MOVE_METRES (or
+ * a fraction of its accuracy, whichever is more), its accuracy has changed by ACCURACY_CHANGE,
+ * or its altitude by ALTITUDE_CHANGE_METRES, since it last returned true.
+ *
+ * This is plain Java with no Android types, so a trace of fixes logged by RapidGPSLock can be
+ * fed back through replay() off the device to see how many updates a change would save.
+ */
+public class LocationFusion {
+	static final double SPEED_METRES_PER_SECOND = 3;
+	static final double MIN_MOVE_METRES = 10;
+	static final double MOVE_ACCURACY_FRACTION = 0.5;
+	static final double ACCURACY_CHANGE = 1.5;
+	static final double ALTITUDE_CHANGE_METRES = 25;
+	// used for fixes that don't say how accurate they are
+	static final double DEFAULT_ACCURACY_METRES = 100;
+	// altitude is usually about this much less precise than the horizontal position
+	static final double ALTITUDE_ERROR_FACTOR = 1.5;
+	static final String TRACE_PREFIX = "fix,";
+
+	private static final double METRES_PER_DEGREE = GeodesyKernel.EARTH_RADIUS_KM * 1000 * Math.PI / 180;
+	// variance added per millisecond of wandering
+	private static final double DRIFT_PER_MS = SPEED_METRES_PER_SECOND * SPEED_METRES_PER_SECOND / 1000;
+
+	private boolean mHasEstimate = false;
+	private double mLatitude, mLongitude, mVariance;
+	private long mTime;
+	private boolean mHasAltitude = false;
+	private double mAltitude, mAltitudeVariance;
+	private long mAltitudeTime;
+
+	private boolean mHasPublished = false;
+	private double mPubLatitude, mPubLongitude, mPubAccuracy;
+	private boolean mPubHasAltitude = false;
+	private double mPubAltitude;
+
+	// time of the newest fix from each provider seen so far
+	private String[] mProviders = new String[4];
+	private long[] mLastFix = new long[4];
+	private int mProviderCount = 0;
+
+	private long mFixes = 0;
+	private long mRepeats = 0;
+	private long mPublished = 0;
+
+	/*
+	 * Adds a fix taken at time by the named provider, arriving at now, both in milliseconds.
+	 * accuracy is in metres, 0 if unknown; altitude is NaN if unknown. Returns true if the fused
+	 * position should be passed on.
+	 */
+	public boolean update(String provider, long time, long now, double latitude, double longitude,
+			double accuracy, double altitude) {
+		mFixes++;
+		int source = sourceOf(provider);
+		if (time <= mLastFix[source])
+		{
+			mRepeats++;
+			return false;
+		}
+		mLastFix[source] = time;
+		if (accuracy <= 0) accuracy = DEFAULT_ACCURACY_METRES;
+		double fixVariance = accuracy * accuracy;
+
+		if (!mHasEstimate)
+		{
+			mHasEstimate = true;
+			mLatitude = latitude;
+			mLongitude = longitude;
+			mVariance = fixVariance;
+			mTime = time;
+		}
+		else
+		{
+			double gain = gain(mVariance, mTime, fixVariance, time);
+			double dLon = longitude - mLongitude;
+			if (dLon > 180) dLon -= 360;
+			else if (dLon < -180) dLon += 360;
+			mLatitude += gain * (latitude - mLatitude);
+			mLongitude += gain * dLon;
+			if (mLongitude > 180) mLongitude -= 360;
+			else if (mLongitude < -180) mLongitude += 360;
+			mVariance = (1 - gain) * (mVariance + Math.max(0, time - mTime) * DRIFT_PER_MS);
+			mTime = Math.max(mTime, time);
+		}
+
+		if (!Double.isNaN(altitude))
+		{
+			double altitudeVariance = fixVariance * ALTITUDE_ERROR_FACTOR * ALTITUDE_ERROR_FACTOR;
+			if (!mHasAltitude)
+			{
+				mHasAltitude = true;
+				mAltitude = altitude;
+				mAltitudeVariance = altitudeVariance;
+				mAltitudeTime = time;
+			}
+			else
+			{
+				double gain = gain(mAltitudeVariance, mAltitudeTime, altitudeVariance, time);
+				mAltitude += gain * (altitude - mAltitude);
+				mAltitudeVariance = (1 - gain) * (mAltitudeVariance + Math.max(0, time - mAltitudeTime) * DRIFT_PER_MS);
+				mAltitudeTime = Math.max(mAltitudeTime, time);
+			}
+		}
+
+		if (!isMeaningfulChange(now)) return false;
+		mHasPublished = true;
+		mPubLatitude = mLatitude;
+		mPubLongitude = mLongitude;
+		mPubAccuracy = getAccuracy(now);
+		mPubHasAltitude = mHasAltitude;
+		mPubAltitude = mAltitude;
+		mPublished++;
+		return true;
+	}
+
+	private int sourceOf(String provider) {
+		if (provider == null) provider = "";
+		for (int i = 0; i < mProviderCount; i++)
+		{
+			if (mProviders[i].equals(provider)) return i;
+		}
+		if (mProviderCount == mProviders.length)
+		{
+			String[] providers = new String[mProviderCount * 2];
+			long[] lastFix = new long[mProviderCount * 2];
+			System.arraycopy(mProviders, 0, providers, 0, mProviderCount);
+			System.arraycopy(mLastFix, 0, lastFix, 0, mProviderCount);
+			mProviders = providers;
+			mLastFix = lastFix;
+		}
+		mProviders[mProviderCount] = provider;
+		mLastFix[mProviderCount] = Long.MIN_VALUE;
+		return mProviderCount++;
+	}
+
+	/*
+	 * How far to move the estimate towards a fix: the estimate has drifted since it was made if the
+	 * fix is newer, and the fix counts for less the older it is than the estimate.
+	 */
+	private static double gain(double variance, long time, double fixVariance, long fixTime) {
+		if (fixTime > time) variance += (fixTime - time) * DRIFT_PER_MS;
+		else fixVariance += (time - fixTime) * DRIFT_PER_MS;
+		return variance / (variance + fixVariance);
+	}
+
+	private boolean isMeaningfulChange(long now) {
+		if (!mHasPublished) return true;
+		double accuracy = getAccuracy(now);
+		if (accuracy * ACCURACY_CHANGE < mPubAccuracy || accuracy > mPubAccuracy * ACCURACY_CHANGE) return true;
+		double north = (mLatitude - mPubLatitude) * METRES_PER_DEGREE;
+		double dLon = mLongitude - mPubLongitude;
+		if (dLon > 180) dLon -= 360;
+		else if (dLon < -180) dLon += 360;
+		double east = dLon * METRES_PER_DEGREE * Math.cos(Math.toRadians(mLatitude));
+		double moved = Math.sqrt(north * north + east * east);
+		if (moved > Math.max(MIN_MOVE_METRES, MOVE_ACCURACY_FRACTION * accuracy)) return true;
+		if (mHasAltitude != mPubHasAltitude) return true;
+		return mHasAltitude && Math.abs(mAltitude - mPubAltitude) > ALTITUDE_CHANGE_METRES;
+	}
+
+	public boolean hasEstimate() { return mHasEstimate; }
+
+	public double getLatitude() { return mLatitude; }
+
+	public double getLongitude() { return mLongitude; }
+
+	// time of the newest fix in the estimate
+	public long getTime() { return mTime; }
+
+	// one standard deviation in metres, allowing for the time since the last fix
+	public double getAccuracy(long now) {
+		return Math.sqrt(mVariance + Math.max(0, now - mTime) * DRIFT_PER_MS);
+	}
+
+	public boolean hasAltitude() { return mHasAltitude; }
+
+	public double getAltitude() { return mAltitude; }
+
+	public long getFixes() { return mFixes; }
+
+	// fixes a provider had already delivered
+	public long getRepeats() { return mRepeats; }
+
+	// times update() returned true
+	public long getPublished() { return mPublished; }
+
+	// a fix as a line of a trace, in the form replay() reads
+	public static String traceLine(String provider, long time, long now, double latitude, double longitude,
+			double accuracy, double altitude) {
+		return TRACE_PREFIX + provider + "," + time + "," + now + "," + latitude + "," + longitude + "," + accuracy
+				+ "," + (Double.isNaN(altitude) ? "" : Double.toString(altitude));
+	}
+
+	/*
+	 * Feeds every fix in a trace through this filter and returns how many were published. Lines
+	 * that don't contain a fix are skipped, and so is anything before the fix on a line, so a
+	 * logcat capture can be used as it is.
+	 */
+	public int replay(BufferedReader in) throws IOException {
+		int published = 0;
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			int start = line.indexOf(TRACE_PREFIX);
+			if (start < 0) continue;
+			String[] f = line.substring(start + TRACE_PREFIX.length()).split(",", -1);
+			if (f.length < 7) continue;
+			try {
+				double altitude = f[6].trim().length() == 0 ? Double.NaN : Double.parseDouble(f[6].trim());
+				if (update(f[0].trim(), Long.parseLong(f[1]), Long.parseLong(f[2]),
+						Double.parseDouble(f[3]), Double.parseDouble(f[4]), Double.parseDouble(f[5]), altitude))
+				{
+					published++;
+				}
+			} catch (NumberFormatException e) {
+				// a damaged line in the capture
+			}
+		}
+		return published;
+	}
+}
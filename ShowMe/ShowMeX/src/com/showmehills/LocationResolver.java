@@ -23,23 +23,20 @@ package com.showmehills;
 
 import android.location.Location;
 import android.location.LocationListener;
-import android.location.LocationManager;
 import android.os.Bundle;
 
+// stays subscribed to its provider until RapidGPSLock.switchOff()
 public class LocationResolver implements LocationListener 
 {
 	String provider;
 	private RapidGPSLock locationMgrImpl;
-	private LocationManager lm;
 	
-	public LocationResolver(LocationManager lm, String provider, RapidGPSLock locationMgrImpl){
-		this.lm = lm;
+	public LocationResolver(String provider, RapidGPSLock locationMgrImpl){
 		this.provider = provider;
 		this.locationMgrImpl = locationMgrImpl;
 	}
 	public void onLocationChanged(Location location) {
-		lm.removeUpdates(this);
-		locationMgrImpl.locationCallback(provider);
+		locationMgrImpl.locationCallback(location);
 	}
 
 	public void onProviderDisabled(String provider) {
@@ -19,14 +19,10 @@
 
 package com.showmehills;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.SQLException;
 import android.graphics.Matrix;
 import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
@@ -51,7 +47,18 @@ import com.showmehills.R;
 
 public class MapOverlay extends MapActivity implements IShowMeHillsActivity, SensorEventListener {
 	
-	private HillDatabase myDbHelper;
+	private HillService mHills;
+	private HillQueryWorker mHillWorker;
+	private final HillQueryWorker.Listener mHillsListener = new HillQueryWorker.Listener() {
+		public void onHillsUpdated() {
+			runOnUiThread(new Runnable() {
+				public void run() { ShowMarkers(); }
+			});
+		}
+	};
+	// each hill is its own map overlay, so only the nearest are shown
+	private static final int MAX_MAP_HILLS = 50;
+	private boolean mZoomedToHills = false;
 	private Location curLocation;
 	MapOverlayCompassItem compassOverlay;
 
@@ -69,8 +76,6 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
     private boolean mHasAccurateGravity = false;
     private boolean mHasAccurateAccelerometer = false;
     
-	Timer timer = new Timer();
-	private int GPSretryTime = 15;
 	
 	@Override
     public void onCreate(Bundle savedInstanceState) {
@@ -88,19 +93,15 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
         mGPS.switchOn();
         mGPS.findLocation();
         
-        myDbHelper = new HillDatabase(this); 
-        myDbHelper.createDataBase(); 
+        mHills = HillService.get(this);
+        mHills.acquire();
+        mHillWorker = mHills.getWorker();
+        mHillWorker.addListener(mHillsListener);
 	 		 	
         setContentView(R.layout.mapoverlay);
         MapView mapView = (MapView) findViewById(R.id.mapview);
         mapView.setBuiltInZoomControls(true);
         UpdateMarkers();
-        MapController mc = mapView.getController();
-		double fitFactor = 1.5;
-        mc.zoomToSpan((int) (Math.abs(maxLat - minLat) * fitFactor), (int)(Math.abs(maxLon - minLon) * fitFactor));
-        mc.animateTo(new GeoPoint( (maxLat + minLat)/2, (maxLon + minLon)/2 ));
-        
-		timer.scheduleAtFixedRate(new LocationTimerTask(),GPSretryTime* 1000,GPSretryTime* 1000);
     }	
 	
 	@Override
@@ -111,46 +112,45 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
 		mSensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
 		mSensorManager.registerListener(this, magnetometer, SensorManager.SENSOR_DELAY_GAME);	 
 
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new LocationTimerTask(),GPSretryTime* 1000,GPSretryTime* 1000);
-
-		UpdateMarkers();
-			 
-		myDbHelper.checkDataBase();	 
+		// the last snapshot, whichever view asked for it, is nearest first, so it can be shown
+		// straight away; then only the nearest few are fetched
+		curLocation = mGPS.getCurrentLocation();
+		ShowMarkers();
+		mHillWorker.setNearestLimit(MAX_MAP_HILLS);
+		// the preferences may have changed, so query even if we haven't moved
+		mHillWorker.requestRefresh(curLocation);
 	}
 
 	@Override
 	protected void onPause() {
 		Log.d("showmehills", "onPause");
 		super.onPause(); 
-		timer.cancel();
 		mGPS.switchOff(); 
 		mSensorManager.unregisterListener(this);
 		
-		try {	 
-			myDbHelper.close();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
+		mHillWorker.saveCaches();
 	}
+
 	@Override
-	protected void onStop()
+	protected void onDestroy()
 	{
-		try {	 
-			myDbHelper.close();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
-		super.onStop();
+		mHillWorker.removeListener(mHillsListener);
+		mHills.release();
+		super.onDestroy();
 	}
 
 	public void UpdateMarkers()
 	{
         curLocation = mGPS.getCurrentLocation();
         if (curLocation == null) return;
-        if (!myDbHelper.checkDataBase()) return;
-        myDbHelper.SetDirections(curLocation);
-        
+        mHillWorker.requestUpdate(curLocation);
+	}
+
+	// rebuilds the map overlays from the latest snapshot; runs on the UI thread
+	private void ShowMarkers()
+	{
+        if (curLocation == null) return;
+
         MapView mapView = (MapView) findViewById(R.id.mapview);
         List<Overlay> mapOverlays = mapView.getOverlays();
         mapOverlays.clear();
@@ -168,13 +168,14 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
         minLon = (int) ((curLocation.getLongitude() - 0.01)*1E6);
         maxLon = (int) ((curLocation.getLongitude() + 0.01)*1E6);
         Log.d("showmehills", "map lon-lat = " + minLat + "," + minLon);
-	    ArrayList<Hills> localhills = myDbHelper.localhills;
-		for (int h = 0; h < localhills.size(); h++)
+	    HillStore localhills = mHillWorker.acquire();
+	    int count = Math.min(localhills.size(), MAX_MAP_HILLS);
+		for (int h = 0; h < count; h++)
 		{
-			Hills h1 = localhills.get(h);
-			Log.d("showmehills", "adding " + h1.hillname);
-			GeoPoint point = new GeoPoint((int)(h1.latitude*1E6),(int)(h1.longitude*1E6));
-	        OverlayItem overlayitem = new OverlayItem(point, h1.hillname, h1.hillname);
+			String hillname = localhills.name(h);
+			Log.d("showmehills", "adding " + hillname);
+			GeoPoint point = new GeoPoint((int)(localhills.latitudes[h]*1E6),(int)(localhills.longitudes[h]*1E6));
+	        OverlayItem overlayitem = new OverlayItem(point, hillname, hillname);
 
 	        MapOverlayItem itemizedoverlay = new MapOverlayItem(drawable, this);
 	        itemizedoverlay.addOverlay(overlayitem);
@@ -185,6 +186,16 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
             maxLon = Math.max(point.getLongitudeE6(), maxLon);
             minLon = Math.min(point.getLongitudeE6(), minLon);
 		}       
+		mHillWorker.release();
+
+		if (!mZoomedToHills)
+		{
+			mZoomedToHills = true;
+	        MapController mc = mapView.getController();
+			double fitFactor = 1.5;
+	        mc.zoomToSpan((int) (Math.abs(maxLat - minLat) * fitFactor), (int)(Math.abs(maxLon - minLon) * fitFactor));
+	        mc.animateTo(new GeoPoint( (maxLat + minLat)/2, (maxLon + minLon)/2 ));
+		}
 	}
 
 	@Override
@@ -265,18 +276,4 @@ public class MapOverlay extends MapActivity implements IShowMeHillsActivity, Sen
 	public LocationManager GetLocationManager() {
 		return (LocationManager)getSystemService(Context.LOCATION_SERVICE);
 	}
-	
-	class LocationTimerTask extends TimerTask 
-	{
-		@Override
-		public void run() 
-		{
-			Log.d("showmehills", "renew GPS search");
-			runOnUiThread(new Runnable() {
-				  public void run() {
-					  mGPS.RenewLocation();
-				  }
-			});
-		}
-	}
 }
@@ -0,0 +1,145 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Turns accelerometer and magnetometer readings into azimuth/pitch/roll for the camera view.
+ * This is the same sequence ShowMeHillsActivity used to run through SensorManager and
+ * android.graphics.Matrix (getRotationMatrix, declination rotate, remapCoordinateSystem,
+ * getOrientation), written out in plain Java on preallocated buffers so a sensor event
+ * allocates nothing and the maths can be run off-device.
+ */
+public class OrientationFusion {
+	// same values as android.view.Surface.ROTATION_*
+	public static final int ROTATION_0 = 0;
+	public static final int ROTATION_90 = 1;
+	public static final int ROTATION_180 = 2;
+	public static final int ROTATION_270 = 3;
+
+	// same values as SensorManager.AXIS_*
+	private static final int AXIS_X = 1;
+	private static final int AXIS_Z = 3;
+	private static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+	private final float[] mRotation = new float[9];
+	private final float[] mRemapped = new float[9];
+	private final float[] mOrientation = new float[3];
+	private float mDeclinationCos = 1;
+	private float mDeclinationSin = 0;
+	private int mRemapX = AXIS_X;
+	private int mRemapY = AXIS_Z;
+
+	public void setDeclination(float degrees) {
+		// equivalent of Matrix.postRotate(-degrees)
+		double r = Math.toRadians(-degrees);
+		mDeclinationCos = (float)Math.cos(r);
+		mDeclinationSin = (float)Math.sin(r);
+	}
+
+	// call when the display rotation changes rather than looking it up on every event
+	public void setDisplayRotation(int rotation) {
+		switch (rotation)
+		{
+		// rotated right (landscape)
+		case ROTATION_270:
+			mRemapX = AXIS_MINUS_Z;
+			mRemapY = AXIS_X;
+			break;
+		// portrait, rotated left (landscape) and upside down all use the same mapping
+		default:
+			mRemapX = AXIS_X;
+			mRemapY = AXIS_Z;
+			break;
+		}
+	}
+
+	/*
+	 * Returns false, leaving the previous orientation in place, if the readings can't give a
+	 * rotation (free fall, or close to magnetic north/south pole).
+	 */
+	public boolean update(float[] gravity, float[] geomagnetic) {
+		if (!rotationMatrix(gravity, geomagnetic)) return false;
+
+		// declination as a closed-form rotation of the first two rows about the z axis
+		float[] r = mRotation;
+		float c = mDeclinationCos, s = mDeclinationSin;
+		for (int col = 0; col < 3; col++)
+		{
+			float r0 = r[col], r1 = r[3 + col];
+			r[col] = c * r0 - s * r1;
+			r[3 + col] = s * r0 + c * r1;
+		}
+
+		remap(r, mRemapX, mRemapY, mRemapped);
+
+		float[] o = mRemapped;
+		mOrientation[0] = (float)Math.atan2(o[1], o[4]);
+		mOrientation[1] = (float)Math.asin(-o[7]);
+		mOrientation[2] = (float)Math.atan2(-o[6], o[8]);
+		return true;
+	}
+
+	public float getAzimuth() { return mOrientation[0]; }
+
+	public float getPitch() { return mOrientation[1]; }
+
+	public float getRoll() { return mOrientation[2]; }
+
+	// SensorManager.getRotationMatrix without the inclination matrix
+	private boolean rotationMatrix(float[] gravity, float[] geomagnetic) {
+		float ax = gravity[0], ay = gravity[1], az = gravity[2];
+		float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+		float hx = ey * az - ez * ay;
+		float hy = ez * ax - ex * az;
+		float hz = ex * ay - ey * ax;
+		float normH = (float)Math.sqrt(hx * hx + hy * hy + hz * hz);
+		if (normH < 0.1f) return false;
+		float invH = 1.0f / normH;
+		hx *= invH;
+		hy *= invH;
+		hz *= invH;
+		float invA = 1.0f / (float)Math.sqrt(ax * ax + ay * ay + az * az);
+		ax *= invA;
+		ay *= invA;
+		az *= invA;
+		float[] r = mRotation;
+		r[0] = hx; r[1] = hy; r[2] = hz;
+		r[3] = ay * hz - az * hy; r[4] = az * hx - ax * hz; r[5] = ax * hy - ay * hx;
+		r[6] = ax; r[7] = ay; r[8] = az;
+		return true;
+	}
+
+	// SensorManager.remapCoordinateSystem for a 3x3 matrix
+	private static void remap(float[] in, int axisX, int axisY, float[] out) {
+		int axisZ = axisX ^ axisY;
+		int x = (axisX & 0x3) - 1;
+		int y = (axisY & 0x3) - 1;
+		int z = (axisZ & 0x3) - 1;
+		// keep the new frame right-handed
+		if (x != (z + 1) % 3 || y != (z + 2) % 3) axisZ ^= 0x80;
+		boolean sx = axisX >= 0x80, sy = axisY >= 0x80, sz = axisZ >= 0x80;
+		for (int row = 0; row < 9; row += 3)
+		{
+			out[row + x] = sx ? -in[row] : in[row];
+			out[row + y] = sy ? -in[row + 1] : in[row + 1];
+			out[row + z] = sz ? -in[row + 2] : in[row + 2];
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/*
+ * Read-only binary peak file, written by Database/tools/peakfile/csv2peaks.py and read through
+ * a MappedByteBuffer. All values are big-endian.
+ *
+ *   header (32 bytes)  "SMHP", format version, data version, record count,
+ *                      records offset, record size, text offset, text length
+ *   records            fixed 32 byte records sorted by HillIndex cell key:
+ *                      cell key, id, latitude * 1e6, longitude * 1e6, height (float),
+ *                      text offset, name length, link length (shorts),
+ *                      item type length (byte), importance (byte), 2 bytes padding
+ *   text               UTF-8 name, link and item type of each record, back to back
+ *
+ * The records use the same grid as HillIndex, so range queries work the same way, but
+ * nothing is read into memory up front: the cell keys are binary searched in place. Names
+ * are decoded when asked for and kept in a small two-way set-associative cache, since the
+ * same few dozen labels are drawn every frame; nothing is allocated in proportion to the file.
+ *
+ * Format 2 added the importance byte: 1..255 for 0..1 (see LabelRanker), worked out from the
+ * height, prominence and isolation of each hill when the file is made. Format 1 files have 0
+ * there, and the importance then comes from the height alone.
+ */
+public class PeakFile implements HillSource {
+	static final String ASSET_NAME = "peaks.jet";
+	static final int MAGIC = 0x534d4850; // "SMHP"
+	static final int FORMAT_VERSION = 2;
+	static final int OLDEST_FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = 32;
+	static final int RECORD_SIZE = 32;
+	// decoded names kept, in sets of two, most recently used first
+	static final int NAME_CACHE_SETS = 1024;
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int recordsOffset;
+	private final int textOffset;
+	private final int[] cachedRecords = new int[NAME_CACHE_SETS * 2];
+	private final String[] cachedNames = new String[NAME_CACHE_SETS * 2];
+	private byte[] scratch = new byte[64];
+
+	PeakFile(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("not a peak file");
+		if (buffer.getInt(4) < OLDEST_FORMAT_VERSION || buffer.getInt(4) > FORMAT_VERSION)
+			throw new IOException("unsupported peak file format " + buffer.getInt(4));
+		count = buffer.getInt(12);
+		recordsOffset = buffer.getInt(16);
+		textOffset = buffer.getInt(24);
+		if (buffer.getInt(20) != RECORD_SIZE
+				|| recordsOffset + (long)count * RECORD_SIZE > buffer.capacity()
+				|| textOffset + (long)buffer.getInt(28) > buffer.capacity())
+			throw new IOException("truncated peak file");
+		for (int i = 0; i < cachedRecords.length; i++) cachedRecords[i] = -1;
+	}
+
+	public int dataVersion() { return buffer.getInt(8); }
+
+	/*
+	 * Maps the peak file from the assets, or returns null if there isn't one (or it is for a
+	 * different database version), in which case the caller falls back to SQLite.
+	 * aapt leaves .jet files uncompressed, which is what lets the asset be mapped straight out
+	 * of the apk; if that fails it is copied to the files directory once and mapped from there.
+	 */
+	public static PeakFile open(Context context, int dataVersion) {
+		long start = System.currentTimeMillis();
+		PeakFile peaks = null;
+		try {
+			peaks = new PeakFile(mapAsset(context));
+		} catch (IOException e) {
+			Log.d("showmehills", "Can't map " + ASSET_NAME + " from apk: " + e.getMessage());
+			try {
+				peaks = new PeakFile(mapCopy(context, dataVersion));
+			} catch (IOException e1) {
+				Log.d("showmehills", "No peak file: " + e1.getMessage());
+				return null;
+			}
+		}
+		if (peaks.dataVersion() != dataVersion)
+		{
+			Log.d("showmehills", "Peak file is version " + peaks.dataVersion() + ", expected " + dataVersion);
+			return null;
+		}
+		Log.d("showmehills", "Mapped " + peaks.size() + " hills in " + (System.currentTimeMillis() - start) + "ms");
+		return peaks;
+	}
+
+	private static ByteBuffer mapAsset(Context context) throws IOException {
+		AssetFileDescriptor afd = context.getAssets().openFd(ASSET_NAME);
+		FileInputStream in = new FileInputStream(afd.getFileDescriptor());
+		try {
+			// the mapping stays valid after the channel is closed
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+		} finally {
+			in.close();
+			afd.close();
+		}
+	}
+
+	private static ByteBuffer mapCopy(Context context, int dataVersion) throws IOException {
+		File file = new File(context.getFilesDir(), "peaks-v" + dataVersion + ".bin");
+		AssetCopier copier = new AssetCopier(context);
+		if (!copier.isCopied(ASSET_NAME, file) && !copier.copy(ASSET_NAME, file, null))
+			throw new IOException("can't copy " + ASSET_NAME);
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	public int size() { return count; }
+
+	public int id(int record) { return buffer.getInt(recordsOffset + record * RECORD_SIZE + 4); }
+
+	// the record holding a hill, or -1; a scan of the whole file, for when the caller has no record to hand
+	public int find(int id) {
+		for (int record = 0; record < count; record++)
+		{
+			if (id(record) == id) return record;
+		}
+		return -1;
+	}
+
+	public double latitude(int record) { return buffer.getInt(recordsOffset + record * RECORD_SIZE + 8) / 1e6; }
+
+	public double longitude(int record) { return buffer.getInt(recordsOffset + record * RECORD_SIZE + 12) / 1e6; }
+
+	// not stored in the file; only needed when the candidates are requeried
+	public double sinLatitude(int record) { return Math.sin(Math.toRadians(latitude(record))); }
+
+	public double cosLatitude(int record) { return Math.cos(Math.toRadians(latitude(record))); }
+
+	public double height(int record) { return buffer.getFloat(recordsOffset + record * RECORD_SIZE + 16); }
+
+	public float importance(int record) {
+		int b = buffer.get(recordsOffset + record * RECORD_SIZE + 29) & 0xff;
+		if (b == 0) return LabelRanker.heightImportance(height(record));
+		return (b - 1) / 254f;
+	}
+
+	// the UI thread and the query worker can both ask for names
+	public synchronized String name(int record) {
+		// records are in cell order, so neighbours have nearby numbers; spread them over the sets
+		int slot = ((record * 0x9e3779b9) >>> 22 & (NAME_CACHE_SETS - 1)) * 2;
+		if (cachedRecords[slot] == record) return cachedNames[slot];
+		String name;
+		if (cachedRecords[slot + 1] == record)
+		{
+			name = cachedNames[slot + 1];
+		}
+		else
+		{
+			int r = recordsOffset + record * RECORD_SIZE;
+			name = text(buffer.getInt(r + 20), buffer.getShort(r + 24) & 0xffff);
+		}
+		cachedRecords[slot + 1] = cachedRecords[slot];
+		cachedNames[slot + 1] = cachedNames[slot];
+		cachedRecords[slot] = record;
+		cachedNames[slot] = name;
+		return name;
+	}
+
+	public String link(int record) {
+		int r = recordsOffset + record * RECORD_SIZE;
+		return text(buffer.getInt(r + 20) + (buffer.getShort(r + 24) & 0xffff), buffer.getShort(r + 26) & 0xffff);
+	}
+
+	public String itemType(int record) {
+		int r = recordsOffset + record * RECORD_SIZE;
+		int off = buffer.getInt(r + 20) + (buffer.getShort(r + 24) & 0xffff) + (buffer.getShort(r + 26) & 0xffff);
+		return text(off, buffer.get(r + 28) & 0xff);
+	}
+
+	// the UI thread and the query worker can both decode names
+	private synchronized String text(int offset, int length) {
+		if (scratch.length < length) scratch = new byte[length];
+		int base = textOffset + offset;
+		for (int i = 0; i < length; i++) scratch[i] = buffer.get(base + i);
+		try {
+			return new String(scratch, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every Java platform has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+	// same grid walk as HillIndex.query, reading the cell keys straight from the mapping
+	public void query(double minLat, double maxLat, double minLon, double maxLon, HillIndex.RecordList result) {
+		minLat = Math.max(minLat, -90);
+		maxLat = Math.min(maxLat, 90);
+		minLon = Math.max(minLon, -180);
+		maxLon = Math.min(maxLon, 180);
+		if (minLat > maxLat || minLon > maxLon) return;
+
+		int firstRow = HillIndex.row(minLat);
+		int lastRow = HillIndex.row(maxLat);
+		int firstCol = HillIndex.column(minLon);
+		int lastCol = HillIndex.column(maxLon);
+		for (int r = firstRow; r <= lastRow; r++)
+		{
+			int lastKey = r * HillIndex.COLUMNS + lastCol;
+			for (int i = lowerBound(r * HillIndex.COLUMNS + firstCol); i < count && cellKey(i) <= lastKey; i++)
+			{
+				double lat = latitude(i);
+				double lon = longitude(i);
+				if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon)
+				{
+					result.add(i);
+				}
+			}
+		}
+	}
+
+	private int cellKey(int record) {
+		return buffer.getInt(recordsOffset + record * RECORD_SIZE);
+	}
+
+	private int lowerBound(int key) {
+		int lo = 0, hi = count;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (cellKey(mid) < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
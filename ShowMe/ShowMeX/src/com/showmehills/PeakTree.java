@@ -0,0 +1,277 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Static k-d tree over every hill in a HillSource, for nearest-K, radius and annulus
+ * (min/max distance) queries. Each hill is a point on the unit sphere, so straight-line (chord)
+ * distance orders hills exactly as great circle distance does, and there is nothing special
+ * about the antimeridian or the poles.
+ *
+ * The tree is packed into flat arrays with no node objects: the node for the range [lo, hi) is
+ * the median at (lo + hi) / 2, its left subtree is [lo, mid) and its right subtree [mid + 1, hi).
+ * Each node splits on whichever axis its points are most spread along. The tree is immutable
+ * once built, so any number of threads can query it, each with its own Neighbours.
+ *
+ * Coordinates are floats, which is good to about half a metre on the ground.
+ */
+public class PeakTree {
+	private final HillSource source;
+	private final int count;
+	private final int[] records;
+	private final float[] xs, ys, zs;
+	private final byte[] axes;
+
+	/*
+	 * Results of a query, nearest first: records[i] is a record number in the source and
+	 * distances[i] its great circle distance in km. While the query runs the arrays are a
+	 * bounded max-heap on distance, so only the best k are ever kept and no full sort is done.
+	 */
+	public static class Neighbours {
+		int[] records = new int[64];
+		double[] distances = new double[64];
+		int size = 0;
+		private int limit;
+
+		public int size() { return size; }
+
+		public int record(int i) { return records[i]; }
+
+		public double distance(int i) { return distances[i]; }
+
+		void reset(int k) {
+			size = 0;
+			limit = k > 0 ? k : Integer.MAX_VALUE;
+		}
+
+		// squared chord distance a candidate must beat to be kept
+		double bound(double maxChord2) {
+			return size < limit ? maxChord2 : distances[0];
+		}
+
+		// d2 is the squared chord distance until finish() converts it
+		void offer(int record, double d2) {
+			if (size < limit)
+			{
+				if (size == records.length) grow(size * 2);
+				int i = size++;
+				// sift up
+				while (i > 0)
+				{
+					int parent = (i - 1) >> 1;
+					if (distances[parent] >= d2) break;
+					records[i] = records[parent];
+					distances[i] = distances[parent];
+					i = parent;
+				}
+				records[i] = record;
+				distances[i] = d2;
+			}
+			else if (d2 < distances[0])
+			{
+				siftDown(0, record, d2, size);
+			}
+		}
+
+		// heap sort in place into nearest first, and turn chords into km
+		void finish() {
+			for (int end = size - 1; end > 0; end--)
+			{
+				int rec = records[end];
+				double d2 = distances[end];
+				records[end] = records[0];
+				distances[end] = distances[0];
+				siftDown(0, rec, d2, end);
+			}
+			for (int i = 0; i < size; i++)
+			{
+				distances[i] = 2 * GeodesyKernel.EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(distances[i]) / 2));
+			}
+		}
+
+		private void siftDown(int i, int record, double d2, int n) {
+			while (true)
+			{
+				int child = 2 * i + 1;
+				if (child >= n) break;
+				if (child + 1 < n && distances[child + 1] > distances[child]) child++;
+				if (distances[child] <= d2) break;
+				records[i] = records[child];
+				distances[i] = distances[child];
+				i = child;
+			}
+			records[i] = record;
+			distances[i] = d2;
+		}
+
+		private void grow(int capacity) {
+			int[] nRecords = new int[capacity];
+			double[] nDistances = new double[capacity];
+			System.arraycopy(records, 0, nRecords, 0, size);
+			System.arraycopy(distances, 0, nDistances, 0, size);
+			records = nRecords;
+			distances = nDistances;
+		}
+	}
+
+	public PeakTree(HillSource source) {
+		this.source = source;
+		count = source.size();
+		records = new int[count];
+		xs = new float[count];
+		ys = new float[count];
+		zs = new float[count];
+		axes = new byte[count];
+		for (int i = 0; i < count; i++)
+		{
+			double lat = Math.toRadians(source.latitude(i));
+			double lon = Math.toRadians(source.longitude(i));
+			double cosLat = Math.cos(lat);
+			records[i] = i;
+			xs[i] = (float)(cosLat * Math.cos(lon));
+			ys[i] = (float)(cosLat * Math.sin(lon));
+			zs[i] = (float)Math.sin(lat);
+		}
+		build(0, count);
+	}
+
+	public HillSource getSource() { return source; }
+
+	public int size() { return count; }
+
+	// the k nearest hills
+	public void nearest(double lat, double lon, int k, Neighbours result) {
+		annulus(lat, lon, 0, Double.POSITIVE_INFINITY, k, result);
+	}
+
+	// the k nearest hills no further than radiusKm; k <= 0 for all of them
+	public void within(double lat, double lon, double radiusKm, int k, Neighbours result) {
+		annulus(lat, lon, 0, radiusKm, k, result);
+	}
+
+	// the k nearest hills between minKm and maxKm; k <= 0 for all of them
+	public void annulus(double lat, double lon, double minKm, double maxKm, int k, Neighbours result) {
+		result.reset(k);
+		double latRad = Math.toRadians(lat);
+		double lonRad = Math.toRadians(lon);
+		double cosLat = Math.cos(latRad);
+		double qx = cosLat * Math.cos(lonRad);
+		double qy = cosLat * Math.sin(lonRad);
+		double qz = Math.sin(latRad);
+		search(0, count, qx, qy, qz, chord2(minKm), chord2(maxKm), result);
+		result.finish();
+	}
+
+	// squared chord length of a great circle distance
+	private static double chord2(double km) {
+		if (km <= 0) return 0;
+		double angle = km / GeodesyKernel.EARTH_RADIUS_KM;
+		if (angle >= Math.PI) return 4;
+		double c = 2 * Math.sin(angle / 2);
+		return c * c;
+	}
+
+	private void search(int lo, int hi, double qx, double qy, double qz, double min2, double max2, Neighbours result) {
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			double dx = xs[mid] - qx, dy = ys[mid] - qy, dz = zs[mid] - qz;
+			double d2 = dx * dx + dy * dy + dz * dz;
+			if (d2 >= min2 && d2 <= max2) result.offer(records[mid], d2);
+
+			double diff;
+			switch (axes[mid])
+			{
+			case 0: diff = qx - xs[mid]; break;
+			case 1: diff = qy - ys[mid]; break;
+			default: diff = qz - zs[mid]; break;
+			}
+			// nearer side first, then the far side only if it could still hold something closer
+			if (diff <= 0)
+			{
+				search(lo, mid, qx, qy, qz, min2, max2, result);
+				if (diff * diff > result.bound(max2)) return;
+				lo = mid + 1;
+			}
+			else
+			{
+				search(mid + 1, hi, qx, qy, qz, min2, max2, result);
+				if (diff * diff > result.bound(max2)) return;
+				hi = mid;
+			}
+		}
+	}
+
+	private void build(int lo, int hi) {
+		while (hi - lo > 1)
+		{
+			float minX = Float.MAX_VALUE, maxX = -Float.MAX_VALUE;
+			float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+			float minZ = Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+			for (int i = lo; i < hi; i++)
+			{
+				minX = Math.min(minX, xs[i]); maxX = Math.max(maxX, xs[i]);
+				minY = Math.min(minY, ys[i]); maxY = Math.max(maxY, ys[i]);
+				minZ = Math.min(minZ, zs[i]); maxZ = Math.max(maxZ, zs[i]);
+			}
+			float sx = maxX - minX, sy = maxY - minY, sz = maxZ - minZ;
+			int axis = (sx >= sy && sx >= sz) ? 0 : (sy >= sz ? 1 : 2);
+			int mid = (lo + hi) >>> 1;
+			select(lo, hi - 1, mid, axis == 0 ? xs : axis == 1 ? ys : zs);
+			axes[mid] = (byte)axis;
+			// recurse into the smaller half to bound the stack depth
+			if (mid - lo < hi - mid - 1)
+			{
+				build(lo, mid);
+				lo = mid + 1;
+			}
+			else
+			{
+				build(mid + 1, hi);
+				hi = mid;
+			}
+		}
+	}
+
+	// quickselect: puts the k-th smallest of key[lo..hi] at k, smaller ones before, larger after
+	private void select(int lo, int hi, int k, float[] key) {
+		while (hi > lo)
+		{
+			float pivot = key[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (key[i] < pivot) i++;
+				while (key[j] > pivot) j--;
+				if (i <= j) swap(i++, j--);
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int tr = records[a]; records[a] = records[b]; records[b] = tr;
+		float t = xs[a]; xs[a] = xs[b]; xs[b] = t;
+		t = ys[a]; ys[a] = ys[b]; ys[b] = t;
+		t = zs[a]; zs[a] = zs[b]; zs[b] = t;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/*
+ * Where the time goes between a sensor reading and the labels on the screen: a LatencyHistogram
+ * per pipeline stage, and counters: sensor events, frames, hill queries and the location updates
+ * coalesced rather than queried, how many hills each query scanned and kept against how many the
+ * last frame showed, location fixes received against those that moved the position enough
+ * to be used, and the size and time of the last asset copied out of the apk (see AssetCopier).
+ *
+ * There is one instance for the process, recorded into all the time; recording is a couple of
+ * System.nanoTime calls and a few array writes, with no allocation. Each counter has a single
+ * writer thread (queries and copies the query thread, everything else the UI thread), so
+ * volatile is enough to read them from the other. The per-second rates are worked out by whoever
+ * shows them, by calling updateRates() once a frame.
+ */
+public class PipelineStats {
+	public static final int SENSOR = 0;
+	public static final int SMOOTHING = 1;
+	public static final int QUERY = 2;
+	public static final int LAYOUT = 3;
+	public static final int DRAW = 4;
+	static final String[] STAGE_NAMES = { "sensor", "smoothing", "query", "layout", "draw" };
+
+	private static final long RATE_INTERVAL_NANOS = 1000000000L;
+
+	private static final PipelineStats sInstance = new PipelineStats();
+
+	private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+
+	private volatile long mSensorEvents = 0;
+	private volatile long mFrames = 0;
+	private volatile long mQueries = 0;
+	private volatile int mLastScanned = 0;
+	private volatile int mLastKept = 0;
+	private volatile int mLastShown = 0;
+	private volatile long mFixes = 0;
+	private volatile long mFixesUsed = 0;
+	private volatile long mCoalesced = 0;
+	private volatile long mLastCopyBytes = 0;
+	private volatile long mLastCopyMillis = 0;
+
+	// rates, over the last whole RATE_INTERVAL_NANOS
+	private long mRateStart = 0;
+	private long mRateSensorEvents = 0;
+	private long mRateFrames = 0;
+	private float mSensorRate = 0;
+	private float mFrameRate = 0;
+
+	PipelineStats() {
+		for (int i = 0; i < mStages.length; i++) mStages[i] = new LatencyHistogram();
+	}
+
+	public static PipelineStats get() {
+		return sInstance;
+	}
+
+	public LatencyHistogram stage(int stage) {
+		return mStages[stage];
+	}
+
+	public void record(int stage, long nanos) {
+		mStages[stage].record(nanos);
+	}
+
+	public void countSensorEvent() {
+		mSensorEvents++;
+	}
+
+	// a frame that showed this many hill labels
+	public void countFrame(int shown) {
+		mFrames++;
+		mLastShown = shown;
+	}
+
+	// a query that looked at scanned candidate hills and kept the ones in range
+	public void countQuery(int scanned, int kept) {
+		mQueries++;
+		mLastScanned = scanned;
+		mLastKept = kept;
+	}
+
+	// a location update that was dropped or merged into another rather than queried
+	public void countCoalesced() {
+		mCoalesced++;
+	}
+
+	// a location fix, and whether it changed the position enough to be used
+	public void countFix(boolean used) {
+		mFixes++;
+		if (used) mFixesUsed++;
+	}
+
+	// an asset copied out of the apk, which is most of a cold start when it happens
+	public void countCopy(long bytes, long millis) {
+		mLastCopyBytes = bytes;
+		mLastCopyMillis = millis;
+	}
+
+	public long getSensorEvents() { return mSensorEvents; }
+
+	public long getFrames() { return mFrames; }
+
+	public long getQueries() { return mQueries; }
+
+	public long getCoalesced() { return mCoalesced; }
+
+	public int getLastScanned() { return mLastScanned; }
+
+	public int getLastKept() { return mLastKept; }
+
+	public int getLastShown() { return mLastShown; }
+
+	public long getFixes() { return mFixes; }
+
+	public long getFixesUsed() { return mFixesUsed; }
+
+	public long getLastCopyBytes() { return mLastCopyBytes; }
+
+	public long getLastCopyMillis() { return mLastCopyMillis; }
+
+	public synchronized float getSensorRate() { return mSensorRate; }
+
+	public synchronized float getFrameRate() { return mFrameRate; }
+
+	public synchronized void updateRates(long nowNanos) {
+		long elapsed = nowNanos - mRateStart;
+		if (mRateStart != 0 && elapsed < RATE_INTERVAL_NANOS) return;
+		long events = mSensorEvents, frames = mFrames;
+		if (mRateStart != 0)
+		{
+			mSensorRate = (events - mRateSensorEvents) * 1e9f / elapsed;
+			mFrameRate = (frames - mRateFrames) * 1e9f / elapsed;
+		}
+		mRateStart = nowNanos;
+		mRateSensorEvents = events;
+		mRateFrames = frames;
+	}
+
+	/*
+	 * Appends "name p50 p95 max" for a stage to sb, in microseconds. For the HUD, which passes the
+	 * same StringBuilder every frame.
+	 */
+	public void appendSummary(StringBuilder sb, int stage) {
+		LatencyHistogram h = mStages[stage];
+		sb.append(STAGE_NAMES[stage])
+			.append(" p50 ").append(h.percentile(0.5))
+			.append(" p95 ").append(h.percentile(0.95))
+			.append(" max ").append(h.max()).append("us");
+	}
+
+	// a plain text report of everything, for saving to a file
+	public void dump(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("sensor events ").append(mSensorEvents).append(" (").append(Math.round(getSensorRate())).append("/s)\n");
+		sb.append("frames ").append(mFrames).append(" (").append(Math.round(getFrameRate())).append("/s)\n");
+		sb.append("queries ").append(mQueries).append(", ").append(mCoalesced).append(" updates coalesced\n");
+		sb.append("location fixes ").append(mFixes).append(", ").append(mFixesUsed).append(" used\n");
+		sb.append("hills: last query scanned ").append(mLastScanned).append(", kept ").append(mLastKept)
+			.append("; last frame showed ").append(mLastShown).append("\n");
+		long copyBytes = mLastCopyBytes, copyMillis = mLastCopyMillis;
+		if (copyBytes > 0)
+		{
+			sb.append("last asset copy ").append(copyBytes).append(" bytes in ").append(copyMillis).append("ms (")
+				.append(copyBytes / Math.max(copyMillis, 1)).append(" KB/s)\n");
+		}
+		sb.append("stage samples window mean p50 p90 p95 p99 max (us)\n");
+		for (int i = 0; i < mStages.length; i++)
+		{
+			LatencyHistogram h = mStages[i];
+			sb.append(STAGE_NAMES[i]).append(' ').append(h.total()).append(' ').append(h.size())
+				.append(' ').append(h.mean())
+				.append(' ').append(h.percentile(0.5))
+				.append(' ').append(h.percentile(0.9))
+				.append(' ').append(h.percentile(0.95))
+				.append(' ').append(h.percentile(0.99))
+				.append(' ').append(h.max()).append('\n');
+		}
+		sb.append("buckets (top us:count)\n");
+		for (int i = 0; i < mStages.length; i++)
+		{
+			sb.append(STAGE_NAMES[i]).append(':');
+			mStages[i].appendBuckets(sb);
+			sb.append('\n');
+		}
+		out.write(sb.toString());
+	}
+}
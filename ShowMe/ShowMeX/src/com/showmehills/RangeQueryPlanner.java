@@ -0,0 +1,137 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+/*
+ * Turns "everything within radiusKm of this point" into lat/lon boxes for HillSource.query.
+ * The longitude half-width is the exact one for a spherical cap, asin(sin(r/R) / cos(lat)).
+ * A circle that crosses the antimeridian becomes two boxes, one each side of +-180, and one
+ * that reaches a pole becomes a band covering every longitude.
+ *
+ * The boxes' corners still pull in hills up to 40% further away than the radius, so by
+ * default the result is then cut down to the circle with a flat-earth distance check. The
+ * check uses the smallest cosine of latitude in the box, which can only underestimate the
+ * distance, plus a small margin, so it never drops a hill that is really inside the circle.
+ */
+public class RangeQueryPlanner {
+	private static final double KM_PER_DEGREE = GeodesyKernel.EARTH_RADIUS_KM * Math.PI / 180;
+	private static final double PREFILTER_MARGIN = 1.02;
+
+	private final double[] mMinLat = new double[2];
+	private final double[] mMaxLat = new double[2];
+	private final double[] mMinLon = new double[2];
+	private final double[] mMaxLon = new double[2];
+	private int mBoxes = 0;
+	private boolean mPrefilter = true;
+	private double mLatitude, mLongitude, mRadius, mMinCos;
+	private int mLastInBoxes = 0;
+
+	public void setPrefilter(boolean prefilter) {
+		mPrefilter = prefilter;
+	}
+
+	public int getBoxCount() { return mBoxes; }
+
+	// hills the boxes returned in the last query, before the circular prefilter
+	public int getLastInBoxes() { return mLastInBoxes; }
+
+	public void plan(double lat, double lon, double radiusKm) {
+		lon = normalise(lon);
+		mLatitude = lat;
+		mLongitude = lon;
+		mRadius = radiusKm;
+
+		double angular = radiusKm / GeodesyKernel.EARTH_RADIUS_KM;
+		double dLat = Math.toDegrees(angular);
+		double south = Math.max(lat - dLat, -90);
+		double north = Math.min(lat + dLat, 90);
+		mMinCos = Math.min(Math.cos(Math.toRadians(south)), Math.cos(Math.toRadians(north)));
+
+		double dLon = 180;
+		if (north < 90 && south > -90)
+		{
+			double s = Math.sin(angular) / Math.cos(Math.toRadians(lat));
+			if (s < 1) dLon = Math.toDegrees(Math.asin(s));
+		}
+
+		mBoxes = 0;
+		if (dLon >= 180)
+		{
+			// reaches a pole (or is huge): every longitude
+			addBox(south, north, -180, 180);
+			mMinCos = 0;
+		}
+		else if (lon - dLon < -180)
+		{
+			addBox(south, north, lon - dLon + 360, 180);
+			addBox(south, north, -180, lon + dLon);
+		}
+		else if (lon + dLon > 180)
+		{
+			addBox(south, north, lon - dLon, 180);
+			addBox(south, north, -180, lon + dLon - 360);
+		}
+		else
+		{
+			addBox(south, north, lon - dLon, lon + dLon);
+		}
+	}
+
+	// adds to result every hill in the planned boxes, and if prefiltering, inside the circle
+	public void query(HillSource source, HillIndex.RecordList result) {
+		int first = result.size;
+		for (int b = 0; b < mBoxes; b++)
+		{
+			source.query(mMinLat[b], mMaxLat[b], mMinLon[b], mMaxLon[b], result);
+		}
+		mLastInBoxes = result.size - first;
+		if (!mPrefilter || mMinCos <= 0) return;
+
+		double limit = mRadius * PREFILTER_MARGIN / KM_PER_DEGREE;
+		limit *= limit;
+		double cos2 = mMinCos * mMinCos;
+		int[] records = result.records;
+		int kept = first;
+		for (int i = first; i < result.size; i++)
+		{
+			int rec = records[i];
+			double dLat = source.latitude(rec) - mLatitude;
+			double dLon = source.longitude(rec) - mLongitude;
+			if (dLon > 180) dLon -= 360;
+			else if (dLon < -180) dLon += 360;
+			if (dLat * dLat + dLon * dLon * cos2 <= limit) records[kept++] = rec;
+		}
+		result.size = kept;
+	}
+
+	private void addBox(double minLat, double maxLat, double minLon, double maxLon) {
+		mMinLat[mBoxes] = minLat;
+		mMaxLat[mBoxes] = maxLat;
+		mMinLon[mBoxes] = minLon;
+		mMaxLon[mBoxes] = maxLon;
+		mBoxes++;
+	}
+
+	private static double normalise(double lon) {
+		while (lon >= 180) lon -= 360;
+		while (lon < -180) lon += 360;
+		return lon;
+	}
+}
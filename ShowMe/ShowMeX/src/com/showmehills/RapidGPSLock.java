@@ -25,18 +25,33 @@ import java.util.List;
 
 import android.location.Location;
 import android.location.LocationManager;
-import android.location.Criteria;
+import android.util.Log;
 
+/*
+ * Keeps one subscription open to each location provider for as long as it is switched on, and
+ * passes every fix to a LocationFusion. The activity is only told (UpdateMarkers) when the
+ * fused position has changed enough to matter, and getCurrentLocation() returns that position.
+ *
+ * GPS is asked for a fix at most every GPS_MIN_TIME_MS or GPS_MIN_DISTANCE_M, the network less
+ * often; the passive provider passes on fixes other apps asked for, which cost nothing.
+ */
 public class RapidGPSLock {
 
+	private static final long GPS_MIN_TIME_MS = 2000;
+	private static final float GPS_MIN_DISTANCE_M = 5;
+	private static final long NETWORK_MIN_TIME_MS = 30000;
+	private static final float NETWORK_MIN_DISTANCE_M = 50;
+
 	private IShowMeHillsActivity mixContext;
 	private LocationManager mLocationManager;
-	private Location curLoc;
-	private String bestLocationProvider;
+	private volatile Location curLoc;
 	private Location locationAtLastDownload;	
 	private LocationFinderState state;
 	private final LocationObserver lob;
 	private List<LocationResolver> locationResolvers;
+	private final LocationFusion fusion = new LocationFusion();
+	// log every fix as a LocationFusion trace line
+	private volatile boolean tracing = false;
 
 	public enum LocationFinderState {
 		Active, // Providing Location Information
@@ -63,67 +78,67 @@ public class RapidGPSLock {
 		hardFix.setAltitude(300);
 
 		try {
-			requestBestLocationUpdates();
-			//temporary set the current location, until a good provider is found
-			curLoc = mLocationManager.getLastKnownLocation(mLocationManager.getBestProvider(new Criteria(), true));
+			// start from what each provider last knew, until fresh fixes arrive; the fusion
+			// counts old ones for little. The caller asks for the hills itself when it's ready.
+			for (String p : mLocationManager.getAllProviders())
+			{
+				Location last = mLocationManager.getLastKnownLocation(p);
+				if (last != null) addFix(last);
+			}
 		} catch (Exception ex2) {
 			// ex2.printStackTrace();
 			curLoc = hardFix;
 		}
 	}
 	
-	public void locationCallback(String provider) 
+	public void setTracing(boolean tracing)
 	{
-		if (mLocationManager == null) return;
-		Location foundLocation = mLocationManager.getLastKnownLocation(provider);
-		if (bestLocationProvider != null) 
-		{
-			Location bestLocation = mLocationManager.getLastKnownLocation(bestLocationProvider);
-			if (bestLocation != null && foundLocation.getAccuracy() < bestLocation.getAccuracy()) 
-			{
-				curLoc = foundLocation;
-				bestLocationProvider = provider;
-				mixContext.UpdateMarkers();
-			}
-		} else 
+		this.tracing = tracing;
+	}
+
+	public void locationCallback(Location location) 
+	{
+		if (addFix(location))
 		{
-			curLoc = foundLocation;
-			bestLocationProvider = provider;
 			mixContext.UpdateMarkers();
 		}
-		setLocationAtLastDownload(curLoc);	
 	}
-	
-	private void requestBestLocationUpdates() 
+
+	// true if the fused position changed enough to pass on
+	private boolean addFix(Location location)
 	{
-		if (mLocationManager == null) return;
-		for(LocationResolver locationResolver: locationResolvers)
+		long now = System.currentTimeMillis();
+		String provider = location.getProvider();
+		double altitude = location.hasAltitude() ? location.getAltitude() : Double.NaN;
+		double accuracy = location.hasAccuracy() ? location.getAccuracy() : 0;
+		if (tracing)
 		{
-			mLocationManager.requestLocationUpdates(locationResolver.provider, 0, 0, locationResolver);
+			Log.d("showmehills", LocationFusion.traceLine(provider, location.getTime(), now,
+					location.getLatitude(), location.getLongitude(), accuracy, altitude));
 		}
-		/*for (String p : mLocationManager.getAllProviders()) 
-		{
-			if(mLocationManager.isProviderEnabled(p))
-			{				
-				LocationResolver lr = new LocationResolver(mLocationManager, p, this);
-				Log.d("showmehills", "adding resolver (" + p + " "+ lr.hashCode()+")");
-				
-				locationResolvers.add(lr);
-				mLocationManager.requestLocationUpdates(p, 0, 0, lr);
-			}
-		}*/
+		boolean changed = fusion.update(provider, location.getTime(), now,
+				location.getLatitude(), location.getLongitude(), accuracy, altitude);
+		PipelineStats.get().countFix(changed);
+		if (!changed) return false;
+
+		Location fused = new Location("fused");
+		fused.setLatitude(fusion.getLatitude());
+		fused.setLongitude(fusion.getLongitude());
+		fused.setAccuracy((float)fusion.getAccuracy(now));
+		if (fusion.hasAltitude()) fused.setAltitude(fusion.getAltitude());
+		fused.setTime(fusion.getTime());
+		curLoc = fused;
+		setLocationAtLastDownload(fused);
+		return true;
 	}
-	
+
 	public void setLocationAtLastDownload(Location locationAtLastDownload) 
 	{
 		this.locationAtLastDownload = locationAtLastDownload;
 	}
 	
 	public void setPosition(Location location) {
-		synchronized (curLoc) 
-		{
-			curLoc = location;
-		}
+		curLoc = location;
 		Location lastLoc = getLocationAtLastDownload();
 		if (lastLoc == null) 
 		{
@@ -132,13 +147,7 @@ public class RapidGPSLock {
 	}	
 	
 	public Location getCurrentLocation() {
-		if (curLoc == null) {
-			return null;
-			//throw new RuntimeException("No GPS Found");
-		}
-		synchronized (curLoc) {
-			return curLoc;
-		}
+		return curLoc;
 	}
 	
 	public Location getLocationAtLastDownload() 
@@ -147,25 +156,39 @@ public class RapidGPSLock {
 	}
 
 	public void switchOn() {
-		if (!LocationFinderState.Active.equals(state)) {
-			mLocationManager = mixContext.GetLocationManager();
-			locationResolvers.clear();
-			for (String p : mLocationManager.getAllProviders()) 
-			{
-				if(mLocationManager.isProviderEnabled(p))
-				{				
-					LocationResolver lr = new LocationResolver(mLocationManager, p, this);					
-					locationResolvers.add(lr);
-				}
+		if (LocationFinderState.Active.equals(state)) return;
+		mLocationManager = mixContext.GetLocationManager();
+		locationResolvers.clear();
+		// disabled providers are subscribed too, so they start delivering if switched on
+		for (String p : mLocationManager.getAllProviders()) 
+		{
+			LocationResolver lr = new LocationResolver(p, this);
+			try {
+				if (LocationManager.GPS_PROVIDER.equals(p))
+					mLocationManager.requestLocationUpdates(p, GPS_MIN_TIME_MS, GPS_MIN_DISTANCE_M, lr);
+				else if (LocationManager.NETWORK_PROVIDER.equals(p))
+					mLocationManager.requestLocationUpdates(p, NETWORK_MIN_TIME_MS, NETWORK_MIN_DISTANCE_M, lr);
+				else
+					mLocationManager.requestLocationUpdates(p, 0, 0, lr);
+				locationResolvers.add(lr);
+			} catch (RuntimeException e) {
+				Log.d("showmehills", "can't use location provider " + p + ": " + e.getMessage());
 			}
-			state = LocationFinderState.Confused;
 		}
+		state = LocationFinderState.Active;
 	}
 	
 	public void switchOff() {
 		if (mLocationManager != null) {
+			for (LocationResolver locationResolver : locationResolvers)
+			{
+				mLocationManager.removeUpdates(locationResolver);
+			}
+			locationResolvers.clear();
 			mLocationManager.removeUpdates(getObserver());
 			state = LocationFinderState.Inactive;
+			Log.d("showmehills", "Location: " + fusion.getFixes() + " fixes, " + fusion.getRepeats() + " repeats, "
+					+ fusion.getPublished() + " passed on");
 		}
 	}
 	
@@ -176,26 +199,4 @@ public class RapidGPSLock {
 	private synchronized LocationObserver getObserver() {
 		return lob;
 	}
-	public void RenewLocation() {
-		if (mLocationManager == null) return;
-		
-		if(bestLocationProvider != null)
-		{
-			//remove all location updates
-			for(LocationResolver locationResolver: locationResolvers)
-			{
-				mLocationManager.removeUpdates(locationResolver);
-			}
-			
-			mLocationManager.removeUpdates(getObserver());
-			state=LocationFinderState.Confused;
-			requestBestLocationUpdates();
-			
-			state=LocationFinderState.Active;
-		}
-		else
-		{ //no location found
-			
-		}
-	}
 }
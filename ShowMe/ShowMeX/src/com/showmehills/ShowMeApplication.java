@@ -7,10 +7,18 @@ import org.acra.annotation.*;
 
 @ReportsCrashes(formKey = "dGZ5b0dtQl9WRDNBMF9DXzJ3UGNZT2c6MQ") 
 public class ShowMeApplication extends Application {
+	// hill database and queries shared by every activity
+	private HillService mHillService;
+
 	@Override
     public void onCreate() {
         // The following line triggers the initialization of ACRA
         ACRA.init(this);
         super.onCreate();
+        mHillService = new HillService(this);
     }
+
+	public HillService getHillService() {
+		return mHillService;
+	}
 }
@@ -33,11 +33,13 @@ package com.showmehills;
  * The compass adjustment is necessary since the compass on my HTC Desire HD is temperamental to the point
  * of unusable. Even with the adjustment it rarely works well. 
  */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.UUID;
 
 import org.apache.http.HttpEntity;
@@ -61,6 +63,7 @@ import android.graphics.*;
 import android.hardware.*;
 import android.location.*;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
@@ -69,6 +72,7 @@ import android.view.*;
 import android.view.View.OnTouchListener;
 import android.view.ViewGroup.LayoutParams;
 import android.widget.FrameLayout;
+import android.widget.Toast;
 
 public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivity, SensorEventListener, OnTouchListener {
 
@@ -82,9 +86,11 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	float[] mGravity;
 	float[] mGeomagnetic;
 
-	Timer timer;
-	private int GPSretryTime = 60;
 	private int CompassSmoothingWindow = 50;
+	private String CompassSmoothingMode = AngleFilter.MODE_MEAN;
+	private boolean rankLabels = true;
+	private boolean atlasLabels = false;
+	private boolean debugHud = false;
 	
 	//private Location curLocation;
 	private String acc = "";
@@ -92,13 +98,14 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	private boolean isCalibrated = false;
 	private double calibrationStep = -1;
 	private float compassAdjustment = 0;
-	private ArrayList<HillMarker> mMarkers = new ArrayList<HillMarker>();
+	// bumped whenever preferences that affect label text are reloaded
+	private int mPrefsVersion = 0;
 
-	float mRotationMatrixA[] = new float[9];
-	float mRotationMatrixB[] = new float[9];
-	float mOrientationVector[] = new float[9];
-	float mAzimuthVector[] = new float[4];
+	private OrientationFusion mFusion = new OrientationFusion();
 	float mDeclination = 0;
+	// redraws are limited to the display refresh rate rather than the sensor event rate
+	private long mFrameIntervalNanos = 1000000000L / 60;
+	private long mLastInvalidateNanos = 0;
     private boolean mHasAccurateGravity = false;
     private boolean mHasAccurateAccelerometer = false;
 
@@ -107,7 +114,15 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	private int mMainTextSize = 20;
 	public static CameraPreviewSurface cv;
 	public DrawOnTop mDraw;
-	private HillDatabase myDbHelper;
+	private HillService mHills;
+	private HillQueryWorker mHillWorker;
+	private final HillQueryWorker.Listener mHillsListener = new HillQueryWorker.Listener() {
+		public void onHillsUpdated() {
+			if (mDraw != null) mDraw.postInvalidate();
+		}
+	};
+	// percentage of the first-run database copy done, or -1 when not copying
+	private volatile int mCopyPercent = -1;
 	private filteredDirection fd = new filteredDirection();
 	private filteredElevation fe = new filteredElevation();
 	
@@ -131,13 +146,13 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	private static final int ALPHA_STROKE_MIN = 200;
 	private static final int ALPHA_LABEL_MIN = 180;
 	private static final int ALPHA_LINE_MIN = 50;
-	
-	public class HillMarker
-	{
-		public HillMarker(int id, Rect loc) { location = loc; hillid=id; }
-		public Rect location;
-		public int hillid;
-	}
+
+	private static final int MAX_LABELS = 40;
+	// a label's rectangle reaches this far below the tick line it sits on, and is this much
+	// taller than its lines of text
+	private static final int LABEL_DESCENT = 2;
+	private static final int LABEL_PADDING = 7;
+	private static final int TICK_HALF_WIDTH = 20;
 	
 
 	public int GetRotation()
@@ -165,7 +180,12 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 		hfov = prefs.getFloat("hfov", (float) 50.2);
 		compassAdjustment = prefs.getFloat("compassAdjustment", 0);
 		showhelp = prefs.getBoolean("showhelp", true);
+		mPrefsVersion++;
 		CompassSmoothingWindow = Integer.parseInt(prefs.getString("smoothing", "50"));
+		CompassSmoothingMode = prefs.getString("smoothingmode", AngleFilter.MODE_MEAN);
+		rankLabels = !"distance".equals(prefs.getString("labelorder", "importance"));
+		atlasLabels = "atlas".equals(prefs.getString("labelrenderer", "canvas"));
+		debugHud = prefs.getBoolean("debughud", false);
 		uniqueID = prefs.getString("uniqueID", "nothere"); 
         if (uniqueID == "nothere")
         {
@@ -188,55 +208,39 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 		fe = new filteredElevation();
 		super.onResume();
 
+		mFusion.setDeclination(mDeclination);
+		mFusion.setDisplayRotation(GetRotation());
+
 		mSensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
 		mSensorManager.registerListener(this, magnetometer, SensorManager.SENSOR_DELAY_GAME);	 
+		// fix traces for LocationFusion.replay, only wanted when looking at the pipeline
+		mGPS.setTracing(debugHud);
 		mGPS.switchOn();
 		wl.acquire();
-		if (timer != null)
-		{
-			timer.cancel();
-			timer = null;
-		}
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new LocationTimerTask(),GPSretryTime* 1000,GPSretryTime* 1000);
-		UpdateMarkers();
-		try {	 
-			myDbHelper.checkDataBase();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
+		// the map may have left the worker fetching only the nearest few
+		mHillWorker.setNearestLimit(0);
+		// the preferences may have changed, so query even if we haven't moved
+		mHillWorker.requestRefresh(mGPS.getCurrentLocation());
 	}
 
 	@Override
 	protected void onPause() {
 		Log.d("showmehills", "onPause");
-		timer.cancel();
-		timer = null;
 		mGPS.switchOff(); 
 		mSensorManager.unregisterListener(this);
 		wl.release();
 
 		super.onPause();
-		try {	 
-			myDbHelper.close();	 
-		}catch(SQLException sqle){	 
-			throw sqle;	 
-		}
-		
+		mHillWorker.saveCaches();
+		if (mDraw != null) mDraw.atlas.release();
 	}
 	@Override
 	protected void onStop()
 	{
 		try {	 
 			mGPS.switchOff();
-			if (timer != null)
-			{
-				timer.cancel();
-				timer = null;
-			}
 			mSensorManager.unregisterListener(this);
 			//wl.release();
-			myDbHelper.close();	 
 		}catch(SQLException sqle){	 
 			throw sqle;	 
 		}
@@ -246,6 +250,15 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 
 	}
 
+	@Override
+	protected void onDestroy()
+	{
+		mHillWorker.removeListener(mHillsListener);
+		mHills.getDatabase().setCopyListener(null);
+		mHills.release();
+		super.onDestroy();
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {  
 
@@ -263,20 +276,25 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
         mGPS.switchOn();
         mGPS.findLocation();
 
-		if (timer != null)
-		{
-			timer.cancel();
-			timer = null;
-		}
-		timer = new Timer();
-		timer.scheduleAtFixedRate(new LocationTimerTask(),GPSretryTime* 1000,GPSretryTime* 1000);
-
 		mSensorManager = (SensorManager)getSystemService(SENSOR_SERVICE);
 
 		accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 		magnetometer = mSensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
 
-		myDbHelper = new HillDatabase(this); 
+		mHills = HillService.get(this);
+		mHills.acquire();
+		mHills.getDatabase().setCopyListener(new AssetCopier.Listener() {
+			public void onCopyProgress(String asset, long copied, long total) {
+				int percent = (total <= 0 || copied >= total) ? -1 : (int)(copied * 100 / total);
+				if (percent != mCopyPercent)
+				{
+					mCopyPercent = percent;
+					if (mDraw != null) mDraw.postInvalidate();
+				}
+			}
+		});
+		mHillWorker = mHills.getWorker();
+		mHillWorker.addListener(mHillsListener);
 		/*try { 
 			myDbHelper.createDataBase(); 
 		} catch (IOException ioe) {	 
@@ -286,6 +304,8 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 		Display display = getWindowManager().getDefaultDisplay(); 
 		scrwidth = display.getWidth();
 		scrheight = display.getHeight();
+		float refreshRate = display.getRefreshRate();
+		if (refreshRate > 0) mFrameIntervalNanos = (long)(1000000000L / refreshRate);
 
 		cv = new CameraPreviewSurface( this.getApplicationContext(), this);
 		FrameLayout rl = new FrameLayout( this.getApplicationContext());		
@@ -313,6 +333,14 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 		return super.onCreateOptionsMenu(menu);
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		// saving the stats goes with the overlay that shows them
+		MenuItem item = menu.findItem(R.id.savestats);
+		if (item != null) item.setVisible(debugHud);
+		return super.onPrepareOptionsMenu(menu);
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		// Handle all of the possible menu actions.
@@ -325,7 +353,6 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			Location curLocation = mGPS.getCurrentLocation();
 			if (curLocation != null)
 			{
-				myDbHelper.SetDirections(curLocation);
 				editor.putFloat("longitude", (float)curLocation.getLongitude());
 				editor.putFloat("latitude", (float)curLocation.getLatitude());
 				editor.commit();
@@ -345,106 +372,81 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			isCalibrated = false;
 			editor.putBoolean("isCalibrated", false);
 			editor.commit();
+		} else if (item.getItemId() == R.id.savestats) {
+			saveStats();
 		}
 		return super.onOptionsItemSelected(item);
 	}
 
+	// writes PipelineStats to a text file, on the SD card if it can, and says where
+	private void saveStats() {
+		File dir = getExternalFilesDir("stats");
+		if (dir == null) dir = getFilesDir();
+		File file = new File(dir, "stats-" + System.currentTimeMillis() + ".txt");
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new FileWriter(file));
+			out.write("ShowMeHills pipeline stats, " + new Date() + "\n");
+			out.write(Build.MANUFACTURER + " " + Build.MODEL + ", Android " + Build.VERSION.RELEASE + "\n");
+			out.write("labels " + (rankLabels ? "ranked" : "nearest first") + ", " + (atlasLabels ? "atlas" : "canvas")
+					+ " renderer; max distance " + maxdistance + "km; smoothing " + CompassSmoothingMode + " " + CompassSmoothingWindow + "\n");
+			out.write(mHills.getDetailCache().summary() + "\n");
+			PipelineStats.get().dump(out);
+			out.close();
+			out = null;
+			Log.i("showmehills", "Saved pipeline stats to " + file);
+			Toast.makeText(this, "Saved " + file, Toast.LENGTH_LONG).show();
+		} catch (IOException e) {
+			Log.e("showmehills", "Can't save pipeline stats: " + e.getMessage());
+			Toast.makeText(this, "Can't save stats", Toast.LENGTH_SHORT).show();
+		} finally {
+			if (out != null) try { out.close(); } catch (IOException e) { }
+		}
+	}
+
 	public void UpdateMarkers()
 	{
 		Location curLocation = mGPS.getCurrentLocation();
 		if (curLocation != null)
 		{
-			myDbHelper.SetDirections(curLocation);
+			mHillWorker.requestUpdate(curLocation);
 		}
 	}
 	
 	class filteredDirection
 	{
-		double dir;
-		double sinevalues[] = new double[CompassSmoothingWindow];
-		double cosvalues[] = new double[CompassSmoothingWindow];
-		int index = 0;
-		int outlierCount = 0;
+		// O(1) per reading and per query; the kind of smoothing is a preference
+		AngleFilter filter = AngleFilter.create(CompassSmoothingMode, CompassSmoothingWindow);
 		
 		void AddLatest( double d )
 		{
-			sinevalues[index] = Math.sin(d);
-			cosvalues[index] = Math.cos(d);
-			index++;
-			if (index > CompassSmoothingWindow - 1) index = 0;
-			double sumc = 0; 
-			double sums = 0;
-			for (int a = 0; a < CompassSmoothingWindow; a++) 
-			{
-				sumc += cosvalues[a];
-				sums += sinevalues[a];
-			}
-			dir = Math.atan2(sums/CompassSmoothingWindow,sumc/CompassSmoothingWindow);
+			filter.add(d);
 		}
 		
 		double getDirection() 
 		{ 
 			// Allow for (possibly large) negative direction and/or compass adjustment by adding
 			// two full circles before applying modulus to force a value between 0 and 360.
-			return (Math.toDegrees(dir) + compassAdjustment + 720) % 360;
+			return (Math.toDegrees(filter.getAngle()) + compassAdjustment + 720) % 360;
 		}
 
 		int GetVariation()
 		{
-			double Q = 0;
-			double sumc = 0; 
-			double sums = 0;
-			for (int a = 0; a < CompassSmoothingWindow; a++)
-			{
-				sumc += cosvalues[a];
-				sums += sinevalues[a];
-			}
-			double avgc = sumc/CompassSmoothingWindow;
-			double avgs = sums/CompassSmoothingWindow;
-
-			sumc = 0; 
-			sums = 0;
-			for (int a = 0; a < CompassSmoothingWindow; a++)
-			{
-				sumc += Math.pow(cosvalues[a] - avgc, 2);
-				sums += Math.pow(sinevalues[a] - avgs, 2);
-			}
-			Q = (sumc/(CompassSmoothingWindow-1)) + (sums/(CompassSmoothingWindow-1));
-			
-			return (int)(Q*1000);
+			return filter.getVariation();
 		}
 	}
 	
 	class filteredElevation
 	{
 		int AVERAGINGWINDOW = 10;
-		double dir;
-		double sinevalues[] = new double[AVERAGINGWINDOW];
-		double cosvalues[] = new double[AVERAGINGWINDOW];
-		int index = 0;
+		AngleFilter filter = AngleFilter.create(CompassSmoothingMode, AVERAGINGWINDOW);
 		void AddLatest( double d )
 		{
-			sinevalues[index] = Math.sin(d);
-			cosvalues[index] = Math.cos(d);
-			index++;
-			if (index > AVERAGINGWINDOW - 1) index = 0;
-			double sumc = 0; 
-			double sums = 0;
-			for (int a = 0; a < AVERAGINGWINDOW; a++) 
-			{
-				sumc += cosvalues[a];
-				sums += sinevalues[a];
-			}
-			dir = Math.atan2(sums/AVERAGINGWINDOW,sumc/AVERAGINGWINDOW);
+			filter.add(d);
 		}
-		double getDirection() { return dir; }
+		double getDirection() { return filter.getAngle(); }
 	}
 
-	class tmpHill {
-		Hills h;
-		double ratio;
-		int toppt;
-	};
 	class DrawOnTop extends View {
 
 		private Paint strokePaint = new Paint();
@@ -460,7 +462,31 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 		int vtxtgap;
 		RectF fovrect;
 
-		ArrayList<tmpHill> hillsToPlot;
+		// hills chosen for this frame: row in the HillStore, horizontal screen ratio, the y of the
+		// tick line under the label, the label's slot in labelCache and its text size
+		int plotCount = 0;
+		int[] plotRows = new int[64];
+		double[] plotRatios = new double[64];
+		int[] plotTops = new int[64];
+		int[] plotSlots = new int[64];
+		float[] plotSizes = new float[64];
+		// where this frame's labels went; also the touch targets
+		LabelPlacer placer = new LabelPlacer();
+		// rows from the azimuth buckets inside the field of view
+		int[] candidateRows = new int[64];
+		private LabelRanker ranker = new LabelRanker();
+
+		// measured label text, valid for one snapshot and one set of preferences
+		private LabelLayoutCache labelCache = new LabelLayoutCache();
+		// the same labels rasterised, indexed by labelCache slot
+		LabelAtlas atlas = new LabelAtlas();
+		// the debug overlay; its text is rebuilt in the one StringBuilder each frame
+		private Paint hudPaint = new Paint();
+		private Paint hudStrokePaint = new Paint();
+		private StringBuilder hudText = new StringBuilder();
+		private HillStore labelCacheStore = null;
+		private int labelCacheSerial = -1;
+		private int labelCachePrefs = -1;
 				
 		public DrawOnTop(Context context) {     
 			super(context);      
@@ -482,8 +508,12 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			txtgap = gap+(subwidth/30);
 			vtxtgap = (int)(subheight / 10);
 
-			hillsToPlot = new ArrayList<tmpHill>();
 			fovrect = new RectF(gap,vtxtgap,scrwidth-gap,vtxtgap*11);
+
+			hudPaint.setARGB(255, 255, 255, 255);
+			hudStrokePaint.setARGB(255, 0, 0, 0);
+			hudStrokePaint.setStyle(Paint.Style.STROKE);
+			hudStrokePaint.setStrokeWidth(2);
 		}
 
 		@Override     
@@ -494,88 +524,187 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 				return;
 			}
 
-			ArrayList<Hills> localhills = myDbHelper.localhills;
-			
-			int topPt = calculateHillsCanFitOnCanvas((int)(scrheight/1.6), localhills);
-			
-			drawHillLabelLines(canvas, topPt);
-			
-			drawHillLabelText(canvas, topPt);
+			// the snapshot can't change under us until it is released
+			HillStore localhills = mHillWorker.acquire();
+			PipelineStats stats = PipelineStats.get();
+			try {
+				long layoutStart = System.nanoTime();
+				calculateHillsCanFitOnCanvas((int)(scrheight/1.6), localhills);
+				
+				long drawStart = System.nanoTime();
+				stats.record(PipelineStats.LAYOUT, drawStart - layoutStart);
+				drawHillLabelLines(canvas, localhills);
+				
+				drawHillLabelText(canvas, localhills);
+				stats.record(PipelineStats.DRAW, System.nanoTime() - drawStart);
+				stats.countFrame(plotCount);
+			} finally {
+				mHillWorker.release();
+			}
 
 			drawLocationAndOrientationStatus(canvas);
+			if (debugHud) drawPipelineStats(canvas);
 			
 			super.onDraw(canvas);     
 		}
 
-		private int calculateHillsCanFitOnCanvas(int topPt, ArrayList<Hills> localhills) {
-			Float drawtextsize = textsize;
-			hillsToPlot.clear();
-			mMarkers.clear();
-			for (int h = 0; h < localhills.size() && topPt > 0; h++)
+		/*
+		 * Places this frame's labels: the hills in view are taken in priority order (LabelRanker's,
+		 * or nearest first), each label a little smaller than the one before, and each goes in the
+		 * lowest spot above labelFloor where it doesn't overlap one already placed.
+		 */
+		private void calculateHillsCanFitOnCanvas(int labelFloor, HillStore localhills) {
+			float drawtextsize = textsize;
+			plotCount = 0;
+			double[] directions = localhills.directions;
+			double direction = fd.getDirection();
+			int candidates = collectCandidatesInView(localhills, direction);
+			if (rankLabels)
 			{
-				Hills h1 = localhills.get(h);
-
-				// this is the angle of the peak from our line of sight
-				double offset = fd.getDirection() - h1.direction;
-				double offset2 = fd.getDirection() - (360+h1.direction);
-				double offset3 = 360+fd.getDirection() - (h1.direction);
-				double ratio = 0;
-				// is it in our line of sight
-				boolean inlineofsight=false;
-				if (Math.abs(offset) * 2 < hfov)
-				{
-					ratio = offset / hfov * -1;
-					inlineofsight = true;
-				}
-				if (Math.abs(offset2) * 2 < hfov)
+				// only the hills really in view compete for the labels
+				int inView = 0;
+				for (int c = 0; c < candidates; c++)
 				{
-					ratio = offset2 / hfov * -1;
-					inlineofsight = true;
+					if (!Double.isNaN(viewRatio(direction, directions[candidateRows[c]]))) candidateRows[inView++] = candidateRows[c];
 				}
-				if (Math.abs(offset3) * 2 < hfov)
+				candidates = ranker.select(localhills, candidateRows, inView, MAX_LABELS, maxdistance, candidateRows);
+			}
+			if (localhills != labelCacheStore || localhills.serial() != labelCacheSerial || mPrefsVersion != labelCachePrefs)
+			{
+				labelCache.clear();
+				// sprites outlive the snapshot while their hill and text stay the same
+				if (mPrefsVersion != labelCachePrefs) atlas.reset();
+				else atlas.retain(localhills);
+				labelCacheStore = localhills;
+				labelCacheSerial = localhills.serial();
+				labelCachePrefs = mPrefsVersion;
+			}
+			placer.begin(scrwidth, scrheight);
+			for (int c = 0; c < candidates && plotCount < MAX_LABELS; c++)
+			{
+				int h = candidateRows[c];
+				double ratio = viewRatio(direction, directions[h]);
+				if (Double.isNaN(ratio)) continue;
+
+				int slot = measureLabel(localhills, h, drawtextsize);
+				boolean moreinfo = labelCache.suffixes[slot] != null;
+				float width = Math.max(labelCache.widths[slot], moreinfo ? labelCache.suffixWidths[slot] : 0);
+				int xloc = ((int)(scrwidth * ratio) + (scrwidth/2));
+				int height = (int)Math.ceil(drawtextsize * (moreinfo ? 2 : 1)) + LABEL_PADDING;
+				int bottom = placer.place(localhills.ids[h], xloc, Math.max((int)Math.ceil(width / 2), TICK_HALF_WIDTH),
+						height, 0, labelFloor, (int)Math.max(1, drawtextsize / 2));
+				if (bottom == Integer.MIN_VALUE) continue;
+
+				addPlot(h, ratio, bottom - LABEL_DESCENT, slot, drawtextsize);
+				if (drawtextsize - TEXT_SIZE_DECREMENT >= TEXT_SIZE_MIN)
 				{
-					ratio = offset3 / hfov * -1;
-					inlineofsight = true;
+					drawtextsize -= TEXT_SIZE_DECREMENT;
 				}
-				if (inlineofsight)
-				{
-					tmpHill th = new tmpHill();
+			}
+		}
 
-					th.h = h1;
-					th.ratio = ratio;
-					th.toppt = topPt;
-					hillsToPlot.add(th);
+		// the labelCache slot for this hill's label at this text size, measuring it if need be
+		private int measureLabel(HillStore localhills, int row, float drawtextsize) {
+			int tier = LabelLayoutCache.tier(drawtextsize);
+			int slot = labelCache.find(localhills.ids[row], tier);
+			if (slot < 0)
+			{
+				String hillname = localhills.name(row);
+				textPaint.setTextSize(drawtextsize);
+				slot = labelCache.add(localhills.ids[row], tier);
+				labelCache.widths[slot] = textPaint.measureText(hillname);
+				String suffix = formatLabelSuffix(localhills, row);
+				labelCache.suffixes[slot] = suffix;
+				labelCache.suffixWidths[slot] = suffix != null ? textPaint.measureText(suffix) : 0;
+			}
+			return slot;
+		}
 
-					topPt -= (showdir || showdist || showheight && th.h.height > 0)?(1 + drawtextsize*2):drawtextsize;
-					
-					if (drawtextsize - TEXT_SIZE_DECREMENT >= TEXT_SIZE_MIN)
-					{
-						drawtextsize -= TEXT_SIZE_DECREMENT;
-					}
+		// horizontal screen position of a hill as a fraction of the view either side of the centre,
+		// or NaN if it isn't in our line of sight
+		private double viewRatio(double direction, double hillDirection) {
+			// this is the angle of the peak from our line of sight
+			double offset = direction - hillDirection;
+			double offset2 = direction - (360+hillDirection);
+			double offset3 = 360+direction - (hillDirection);
+			double ratio = Double.NaN;
+			if (Math.abs(offset) * 2 < hfov) ratio = offset / hfov * -1;
+			if (Math.abs(offset2) * 2 < hfov) ratio = offset2 / hfov * -1;
+			if (Math.abs(offset3) * 2 < hfov) ratio = offset3 / hfov * -1;
+			return ratio;
+		}
+
+		/*
+		 * Gathers the rows in the one-degree azimuth buckets that overlap the field of view, in
+		 * distance order, so the per-frame work depends on what is in view rather than on how many
+		 * hills were loaded. The exact line-of-sight test is still applied by the caller.
+		 */
+		private int collectCandidatesInView(HillStore localhills, double direction) {
+			int first = (int)Math.floor(direction - hfov / 2);
+			int last = (int)Math.floor(direction + hfov / 2);
+			if (last - first >= HillStore.AZIMUTH_BUCKETS) last = first + HillStore.AZIMUTH_BUCKETS - 1;
+			int[] start = localhills.bucketStart;
+			int count = 0;
+			for (int b = first; b <= last; b++)
+			{
+				int bucket = HillStore.bucket(b);
+				int from = start[bucket], to = start[bucket + 1];
+				if (count + (to - from) > candidateRows.length)
+				{
+					int[] bigger = new int[Math.max(candidateRows.length * 2, count + (to - from))];
+					System.arraycopy(candidateRows, 0, bigger, 0, count);
+					candidateRows = bigger;
 				}
+				System.arraycopy(localhills.bucketRows, from, candidateRows, count, to - from);
+				count += to - from;
 			}
-			
-			// Fudge-factor because we don't know exactly how high label text will display until we draw it later.
-			// A tiny font at the top needs to be moved down slightly to avoid being clipped; larger fonts seem OK.
-			topPt -= Math.max(0, 13 - drawtextsize);
-			return topPt;
+			// rows are in distance order, so sorting them restores nearest-first across buckets
+			Arrays.sort(candidateRows, 0, count);
+			return count;
 		}
 
-		private void drawHillLabelLines(Canvas canvas, int toppt) {
+		private void addPlot(int row, double ratio, int labelpt, int slot, float size) {
+			if (plotCount == plotRows.length)
+			{
+				int[] rows = new int[plotCount * 2];
+				double[] ratios = new double[plotCount * 2];
+				int[] tops = new int[plotCount * 2];
+				int[] slots = new int[plotCount * 2];
+				float[] sizes = new float[plotCount * 2];
+				System.arraycopy(plotRows, 0, rows, 0, plotCount);
+				System.arraycopy(plotRatios, 0, ratios, 0, plotCount);
+				System.arraycopy(plotTops, 0, tops, 0, plotCount);
+				System.arraycopy(plotSlots, 0, slots, 0, plotCount);
+				System.arraycopy(plotSizes, 0, sizes, 0, plotCount);
+				plotRows = rows;
+				plotRatios = ratios;
+				plotTops = tops;
+				plotSlots = slots;
+				plotSizes = sizes;
+			}
+			plotRows[plotCount] = row;
+			plotRatios[plotCount] = ratio;
+			plotTops[plotCount] = labelpt;
+			plotSlots[plotCount] = slot;
+			plotSizes[plotCount] = size;
+			plotCount++;
+		}
+
+		private void drawHillLabelLines(Canvas canvas, HillStore localhills) {
 			int alpha = ALPHA_LINE_MAX;
 			// draw lines first
-			for (int i = 0; i < hillsToPlot.size(); i++)
+			for (int i = 0; i < plotCount; i++)
 			{
 				textPaint.setARGB(alpha, 255, 255, 255);				
 				strokePaint.setARGB(alpha, 0, 0, 0);
-				tmpHill th = hillsToPlot.get(i);
-				double vratio = Math.toDegrees(th.h.visualElevation - fe.getDirection());
+				double vratio = Math.toDegrees(localhills.visualElevations[plotRows[i]] - fe.getDirection());
 				int yloc = (int)((scrheight * vratio / vfov) + (scrheight/2));
-				int xloc = ((int)(scrwidth * th.ratio) + (scrwidth/2));
-				canvas.drawLine(xloc, yloc, xloc, th.toppt - toppt, strokePaint);
-				canvas.drawLine(xloc, yloc, xloc, th.toppt - toppt, textPaint);
-				canvas.drawLine(xloc-20, th.toppt - toppt, xloc+20, th.toppt - toppt, strokePaint);
-				canvas.drawLine(xloc-20, th.toppt - toppt, xloc+20, th.toppt - toppt, textPaint);
+				int xloc = ((int)(scrwidth * plotRatios[i]) + (scrwidth/2));
+				int labelpt = plotTops[i];
+				canvas.drawLine(xloc, yloc, xloc, labelpt, strokePaint);
+				canvas.drawLine(xloc, yloc, xloc, labelpt, textPaint);
+				canvas.drawLine(xloc-20, labelpt, xloc+20, labelpt, strokePaint);
+				canvas.drawLine(xloc-20, labelpt, xloc+20, labelpt, textPaint);
 
 				if (alpha - ALPHA_DECREMENT >= ALPHA_LINE_MIN)
 				{
@@ -584,80 +713,92 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			}
 		}
 
-		private void drawHillLabelText(Canvas canvas, int toppt) {
+		private void drawHillLabelText(Canvas canvas, HillStore localhills) {
 			boolean moreinfo;
-			Float drawtextsize = textsize;
 			int alpha = ALPHA_LABEL_MAX;
+			boolean useAtlas = atlasLabels && atlas.isAvailable();
 			// draw text over top
-			for (int i = 0; i < hillsToPlot.size(); i++)
+			for (int i = 0; i < plotCount; i++)
 			{
-				textPaint.setARGB(alpha, 255, 255, 255);				
-				strokePaint.setARGB(Math.min(alpha, ALPHA_STROKE_MIN), 0, 0, 0);
+				float drawtextsize = plotSizes[i];
+				int row = plotRows[i];
+				int slot = plotSlots[i];
+				String hillname = localhills.name(row);
+				String marker = labelCache.suffixes[slot];
+				int labelpt = plotTops[i];
+				moreinfo = (marker != null);
+				int xloc = ((int)(scrwidth * plotRatios[i]) + (scrwidth/2));
 
 				textPaint.setTextSize(drawtextsize);
 				strokePaint.setTextSize(drawtextsize);
-				
-				tmpHill th = hillsToPlot.get(i);
-				moreinfo = (showdir || showdist || showheight && th.h.height > 0);
-				int xloc = ((int)(scrwidth * th.ratio) + (scrwidth/2));
-				
-				Rect bnds = new Rect();
-				strokePaint.getTextBounds(th.h.hillname,0,th.h.hillname.length(),bnds);
-				bnds.left += xloc - (textPaint.measureText(th.h.hillname) / 2.0);
-				bnds.right += xloc - (textPaint.measureText(th.h.hillname) / 2.0);
-				bnds.top += th.toppt - 5 - toppt;
-				if (moreinfo) bnds.top -= drawtextsize;
-				bnds.bottom += th.toppt-5 - toppt;
+				int sprite = useAtlas ? atlas.find(localhills.ids[row], hillname, marker, drawtextsize) : -1;
+				if (useAtlas && sprite < 0)
+				{
+					textPaint.setARGB(ALPHA_LABEL_MAX, 255, 255, 255);
+					strokePaint.setARGB(ALPHA_STROKE_MIN, 0, 0, 0);
+					sprite = atlas.add(localhills.ids[row], hillname, labelCache.widths[slot], marker,
+							labelCache.suffixWidths[slot], drawtextsize, strokePaint, textPaint);
+				}
+				if (sprite >= 0)
+				{
+					// the sprite's outline fades with the fill, so it is a little fainter than below
+					atlas.draw(canvas, sprite, xloc, labelpt, alpha);
+					if (alpha - ALPHA_DECREMENT >= ALPHA_LABEL_MIN)
+					{
+						alpha -= ALPHA_DECREMENT;
+					}
+					continue;
+				}
+
+				textPaint.setARGB(alpha, 255, 255, 255);				
+				strokePaint.setARGB(Math.min(alpha, ALPHA_STROKE_MIN), 0, 0, 0);
 
 				// draws bounding box of touch region to select hill
-				//canvas.drawRect(bnds, strokePaint);
+				//canvas.drawRect(placer.left(i), placer.top(i), placer.right(i), placer.bottom(i), strokePaint);
 				
-				mMarkers.add(new HillMarker(th.h.id, bnds));
-				canvas.drawText(th.h.hillname, xloc, th.toppt - ((moreinfo)?drawtextsize:0) - 5 - toppt, strokePaint);
-				canvas.drawText(th.h.hillname, xloc, th.toppt - ((moreinfo)?drawtextsize:0) - 5 - toppt, textPaint);
+				canvas.drawText(hillname, xloc, labelpt - ((moreinfo)?drawtextsize:0) - 5, strokePaint);
+				canvas.drawText(hillname, xloc, labelpt - ((moreinfo)?drawtextsize:0) - 5, textPaint);
 				
-				if (showdir || showdist || showheight) 
+				if (marker != null)
 				{
-					boolean hascontents = false;
-					String marker = " (";						
-					if (showdir)
-					{
-						hascontents = true;
-						marker += Math.floor(10*th.h.direction)/10 + "\u00B0";
-					}
-					if (showdist) 
-					{
-						hascontents = true;
-						double multip = (typeunits)?1:0.621371;
-						marker += (showdir ? " " : "") + Math.floor(10*th.h.distance*multip)/10;
-						if (typeunits) marker += "km"; else marker += "miles";
-					}
-					if (showheight) 
-					{
-						if (th.h.height > 0)
-						{
-							hascontents = true;
-							marker += ((showdir || showdist) ? " " : "") + distanceAsImperialOrMetric(th.h.height);
-						}
-					}
-					marker += ")";
-					if (hascontents)
-					{
-						canvas.drawText(marker, xloc, th.toppt-5 - toppt, strokePaint);
-						canvas.drawText(marker, xloc, th.toppt-5 - toppt, textPaint);
-					}
+					canvas.drawText(marker, xloc, labelpt - 5, strokePaint);
+					canvas.drawText(marker, xloc, labelpt - 5, textPaint);
 				}
 
 				if (alpha - ALPHA_DECREMENT >= ALPHA_LABEL_MIN)
 				{
 					alpha -= ALPHA_DECREMENT;
 				}
+			}
+		}
 
-				if (drawtextsize - TEXT_SIZE_DECREMENT >= TEXT_SIZE_MIN)
+		// the "(bearing distance height)" line under a label, or null if there's nothing to show
+		private String formatLabelSuffix(HillStore localhills, int row) {
+			if (!(showdir || showdist || showheight)) return null;
+			boolean hascontents = false;
+			String marker = " (";						
+			if (showdir)
+			{
+				hascontents = true;
+				marker += Math.floor(10*localhills.directions[row])/10 + "\u00B0";
+			}
+			if (showdist) 
+			{
+				hascontents = true;
+				double multip = (typeunits)?1:0.621371;
+				marker += (showdir ? " " : "") + Math.floor(10*localhills.distances[row]*multip)/10;
+				if (typeunits) marker += "km"; else marker += "miles";
+			}
+			if (showheight) 
+			{
+				if (localhills.heights[row] > 0)
 				{
-					drawtextsize -= TEXT_SIZE_DECREMENT;
+					hascontents = true;
+					marker += ((showdir || showdist) ? " " : "") + distanceAsImperialOrMetric(localhills.heights[row]);
 				}
 			}
+			marker += ")";
+			return hascontents ? marker : null;
 		}
 
 		private void drawLocationAndOrientationStatus(Canvas canvas) {
@@ -694,7 +835,8 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 
 			basetext = "";
 			
-			if (curLocation == null) basetext = "No GPS position yet";
+			if (mCopyPercent >= 0) basetext = "Preparing hill database " + mCopyPercent + "%";
+			else if (curLocation == null) basetext = "No GPS position yet";
 			else if (curLocation.getAccuracy() > 200) basetext = "Warning - GPS position too inaccurate";
 			
 			if (basetext != "")
@@ -718,6 +860,60 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			}
 		}
 
+		/*
+		 * The debug overlay, top left: p50, p95 and max latency of each pipeline stage over its
+		 * last few hundred runs, sensor and frame rates, how many hills the last query scanned and
+		 * kept against how many this frame labelled, and location fixes received and used.
+		 */
+		private void drawPipelineStats(Canvas canvas) {
+			PipelineStats stats = PipelineStats.get();
+			stats.updateRates(System.nanoTime());
+			float size = mMainTextSize * 0.75f;
+			hudPaint.setTextSize(size);
+			hudStrokePaint.setTextSize(size);
+			float y = size * 1.5f;
+			for (int line = 0; line < 7; line++)
+			{
+				StringBuilder sb = hudText;
+				sb.setLength(0);
+				switch (line)
+				{
+				case 0:
+					stats.appendSummary(sb, PipelineStats.SENSOR);
+					sb.append(", ").append(Math.round(stats.getSensorRate())).append("/s");
+					break;
+				case 1:
+					stats.appendSummary(sb, PipelineStats.SMOOTHING);
+					break;
+				case 2:
+					stats.appendSummary(sb, PipelineStats.QUERY);
+					sb.append(", ").append(stats.getQueries()).append(" runs, ")
+						.append(stats.getCoalesced()).append(" coalesced");
+					break;
+				case 3:
+					stats.appendSummary(sb, PipelineStats.LAYOUT);
+					break;
+				case 4:
+					stats.appendSummary(sb, PipelineStats.DRAW);
+					sb.append(atlasLabels ? ", atlas" : ", canvas");
+					break;
+				case 5:
+					sb.append(Math.round(stats.getFrameRate())).append(" fps, hills ")
+						.append(stats.getLastScanned()).append(" scanned, ")
+						.append(stats.getLastKept()).append(" kept, ")
+						.append(stats.getLastShown()).append(" shown");
+					break;
+				default:
+					sb.append("location ").append(stats.getFixes()).append(" fixes, ")
+						.append(stats.getFixesUsed()).append(" used");
+					break;
+				}
+				canvas.drawText(sb, 0, sb.length(), 10, y, hudStrokePaint);
+				canvas.drawText(sb, 0, sb.length(), 10, y, hudPaint);
+				y += size * 1.2f;
+			}
+		}
+
 		private void drawCalibrationInstructions(Canvas canvas) {
 			// adjust text to fit any screen - lol, so hacky :-D
 			boolean happyWithSize = false;
@@ -783,6 +979,9 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 	
 	public void onSensorChanged(SensorEvent event) {		
+		long start = System.nanoTime();
+		PipelineStats stats = PipelineStats.get();
+		stats.countSensorEvent();
 		// some phones never set the sensormanager as reliable, even when readings are ok
 		// That means if we try to block it, those phones will never get a compass reading.
 		// So we let any readings through until we know we can get accurate readings. Once We know that 
@@ -803,50 +1002,21 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 
 		if (mGravity != null && mGeomagnetic != null) {
 
-			float[] rotationMatrixA = mRotationMatrixA;
-			if (SensorManager.getRotationMatrix(rotationMatrixA, null, mGravity, mGeomagnetic)) {
-				Matrix tmpA = new Matrix();
-				tmpA.setValues(rotationMatrixA);
-				tmpA.postRotate( -mDeclination );
-				tmpA.getValues(rotationMatrixA);
-				
-				float[] rotationMatrixB = mRotationMatrixB;
-
-				switch (GetRotation())
-				{
-				// portrait - normal
-				case Surface.ROTATION_0: SensorManager.remapCoordinateSystem(rotationMatrixA,
-						SensorManager.AXIS_X, SensorManager.AXIS_Z,
-						rotationMatrixB);
-				break;
-				// rotated left (landscape)
-				case Surface.ROTATION_90: SensorManager.remapCoordinateSystem(rotationMatrixA,
-						//SensorManager.AXIS_Z, SensorManager.AXIS_MINUS_X,
-						SensorManager.AXIS_X, SensorManager.AXIS_Z,
-						rotationMatrixB);
-				break;
-				// upside down
-				case Surface.ROTATION_180: SensorManager.remapCoordinateSystem(rotationMatrixA,
-						SensorManager.AXIS_X, SensorManager.AXIS_Z,
-						rotationMatrixB); 
-				break;
-				// rotated right (landscape)
-				case Surface.ROTATION_270: SensorManager.remapCoordinateSystem(rotationMatrixA,
-						SensorManager.AXIS_MINUS_Z, SensorManager.AXIS_X,
-						rotationMatrixB); 
-				break;
-
-				default:  break;
-				}
-
-				float[] dv = new float[3]; 
-				SensorManager.getOrientation(rotationMatrixB, dv);
-				
-				fd.AddLatest(dv[0]); 
-				fe.AddLatest((double)dv[1]);
+			// rotation, declination, display remapping and orientation, without allocating
+			if (mFusion.update(mGravity, mGeomagnetic)) {
+				long smoothStart = System.nanoTime();
+				fd.AddLatest(mFusion.getAzimuth()); 
+				fe.AddLatest((double)mFusion.getPitch());
+				stats.record(PipelineStats.SMOOTHING, System.nanoTime() - smoothStart);
+			}
+			long now = System.nanoTime();
+			if (now - mLastInvalidateNanos >= mFrameIntervalNanos)
+			{
+				mLastInvalidateNanos = now;
+				mDraw.invalidate();
 			}
-			mDraw.invalidate();		
 		}
+		stats.record(PipelineStats.SENSOR, System.nanoTime() - start);
 	}
 
 	public boolean onTouch(View v, MotionEvent event) {
@@ -875,19 +1045,17 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 			}
 			return false;
 		}
-		Iterator<HillMarker> itr = mMarkers.iterator();
-	    while (itr.hasNext()) {
-	    	HillMarker m = itr.next();
-	    	if (m.location.contains((int)event.getX(), (int)event.getY()))
-			{
-	    		Intent infoActivity = new Intent(getBaseContext(),HillInfo.class);
-	    		Bundle b = new Bundle();
+	    // the placed labels are in a screen grid, so this doesn't depend on how many there are
+	    int hillid = mDraw.placer.hitTest((int)event.getX(), (int)event.getY());
+	    if (hillid >= 0)
+		{
+    		Intent infoActivity = new Intent(getBaseContext(),HillInfo.class);
+    		Bundle b = new Bundle();
 
-	    		b.putInt("key", m.hillid);
+    		b.putInt("key", hillid);
 
-	    		infoActivity.putExtras(b);
-				startActivity(infoActivity);
-			}
+    		infoActivity.putExtras(b);
+			startActivity(infoActivity);
 		}
 
 		return false;
@@ -922,21 +1090,6 @@ public class ShowMeHillsActivity extends Activity implements IShowMeHillsActivit
 	   return super.onKeyUp(keyCode, event);
 	   }
 
-	class LocationTimerTask extends TimerTask 
-	{
-		@Override
-		public void run() 
-		{
-			Log.d("showmehills", "renew GPS search");
-			runOnUiThread(new Runnable() {
-				  public void run() {
-					  mGPS.RenewLocation();
-				  }
-			});
-		}
-	}
-
-
 	public LocationManager GetLocationManager() {
 		return (LocationManager)getSystemService(Context.LOCATION_SERVICE);
 	}
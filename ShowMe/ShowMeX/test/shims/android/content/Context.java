@@ -0,0 +1,15 @@
+package android.content;
+
+import java.io.File;
+
+import android.content.res.AssetManager;
+
+/*
+ * Desktop stand-in for the framework's Context, for the unit tests only: just what PeakFile and
+ * AssetCopier need to compile. The tests never open anything through it.
+ */
+public abstract class Context {
+	public abstract AssetManager getAssets();
+
+	public abstract File getFilesDir();
+}
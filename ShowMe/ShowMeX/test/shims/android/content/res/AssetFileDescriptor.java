@@ -0,0 +1,28 @@
+package android.content.res;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Desktop stand-in for the framework's AssetFileDescriptor, for the unit tests only: the part of
+ * a file an uncompressed asset occupies.
+ */
+public class AssetFileDescriptor {
+	private final FileDescriptor mFd;
+	private final long mStartOffset;
+	private final long mLength;
+
+	public AssetFileDescriptor(FileDescriptor fd, long startOffset, long length) {
+		mFd = fd;
+		mStartOffset = startOffset;
+		mLength = length;
+	}
+
+	public FileDescriptor getFileDescriptor() { return mFd; }
+
+	public long getStartOffset() { return mStartOffset; }
+
+	public long getLength() { return mLength; }
+
+	public void close() throws IOException {}
+}
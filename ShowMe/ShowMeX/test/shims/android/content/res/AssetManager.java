@@ -0,0 +1,19 @@
+package android.content.res;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Desktop stand-in for the framework's AssetManager, for the unit tests only. There is no apk,
+ * so there are no assets.
+ */
+public class AssetManager {
+	public InputStream open(String fileName) throws IOException {
+		throw new FileNotFoundException(fileName);
+	}
+
+	public AssetFileDescriptor openFd(String fileName) throws IOException {
+		throw new FileNotFoundException(fileName);
+	}
+}
@@ -0,0 +1,23 @@
+package android.database;
+
+/*
+ * Desktop stand-in for the framework's Cursor, for the unit tests only: the methods HillQueries
+ * uses. See android.database.sqlite.SQLiteDatabase here for where they come from.
+ */
+public interface Cursor {
+	int getCount();
+
+	boolean moveToFirst();
+
+	boolean moveToNext();
+
+	int getColumnCount();
+
+	String getString(int column);
+
+	int getInt(int column);
+
+	double getDouble(int column);
+
+	void close();
+}
@@ -0,0 +1,129 @@
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/*
+ * Desktop stand-in for the framework's SQLiteDatabase, for the unit tests only. It runs the
+ * same SQL on a JDBC connection (the sqlite-jdbc driver, so the same SQLite engine), and binds
+ * rawQuery's arguments as text the way the framework does.
+ */
+public class SQLiteDatabase {
+	private final Connection mConnection;
+
+	// the framework opens its own connections; the tests hand one in
+	public SQLiteDatabase(Connection connection) {
+		mConnection = connection;
+	}
+
+	public Cursor rawQuery(String sql, String[] selectionArgs) {
+		try {
+			PreparedStatement statement = mConnection.prepareStatement(sql);
+			try {
+				if (selectionArgs != null)
+				{
+					for (int i = 0; i < selectionArgs.length; i++) statement.setString(i + 1, selectionArgs[i]);
+				}
+				ResultSet rows = statement.executeQuery();
+				int columns = rows.getMetaData().getColumnCount();
+				List<Object[]> all = new ArrayList<Object[]>();
+				while (rows.next())
+				{
+					Object[] row = new Object[columns];
+					for (int c = 0; c < columns; c++) row[c] = rows.getObject(c + 1);
+					all.add(row);
+				}
+				rows.close();
+				return new RowsCursor(all, columns);
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	public SQLiteStatement compileStatement(String sql) {
+		try {
+			return new SQLiteStatement(mConnection.prepareStatement(sql));
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	public void execSQL(String sql) {
+		try {
+			Statement statement = mConnection.createStatement();
+			try {
+				statement.execute(sql);
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	public void close() {
+		try {
+			mConnection.close();
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	// the result read in full; SQLite's dynamic types are converted as the framework's cursor does
+	private static class RowsCursor implements Cursor {
+		private final List<Object[]> mRows;
+		private final int mColumns;
+		private int mPosition = -1;
+
+		RowsCursor(List<Object[]> rows, int columns) {
+			mRows = rows;
+			mColumns = columns;
+		}
+
+		public int getCount() { return mRows.size(); }
+
+		public boolean moveToFirst() {
+			mPosition = 0;
+			return !mRows.isEmpty();
+		}
+
+		public boolean moveToNext() {
+			if (mPosition < mRows.size()) mPosition++;
+			return mPosition < mRows.size();
+		}
+
+		public int getColumnCount() { return mColumns; }
+
+		public String getString(int column) {
+			Object value = mRows.get(mPosition)[column];
+			return value == null ? null : value.toString();
+		}
+
+		public int getInt(int column) {
+			return (int)getDouble(column);
+		}
+
+		public double getDouble(int column) {
+			Object value = mRows.get(mPosition)[column];
+			if (value == null) return 0;
+			if (value instanceof Number) return ((Number)value).doubleValue();
+			try {
+				return Double.parseDouble(value.toString().trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		public void close() {}
+	}
+}
@@ -0,0 +1,10 @@
+package android.database.sqlite;
+
+/*
+ * Desktop stand-in for the framework's SQLiteDoneException, for the unit tests only.
+ */
+public class SQLiteDoneException extends SQLiteException {
+	public SQLiteDoneException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,10 @@
+package android.database.sqlite;
+
+/*
+ * Desktop stand-in for the framework's SQLiteException, for the unit tests only.
+ */
+public class SQLiteException extends RuntimeException {
+	public SQLiteException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,38 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * Desktop stand-in for the framework's SQLiteStatement, for the unit tests only.
+ */
+public class SQLiteStatement {
+	private final PreparedStatement mStatement;
+
+	SQLiteStatement(PreparedStatement statement) {
+		mStatement = statement;
+	}
+
+	public long simpleQueryForLong() {
+		try {
+			ResultSet rows = mStatement.executeQuery();
+			try {
+				if (!rows.next()) throw new SQLiteDoneException("no rows");
+				return rows.getLong(1);
+			} finally {
+				rows.close();
+			}
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+
+	public void close() {
+		try {
+			mStatement.close();
+		} catch (SQLException e) {
+			throw new SQLiteException(e.getMessage());
+		}
+	}
+}
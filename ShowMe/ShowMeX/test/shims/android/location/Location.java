@@ -0,0 +1,52 @@
+package android.location;
+
+/*
+ * Desktop stand-in for the framework's Location, for the unit tests only: just the parts that
+ * the plain Java classes under test use.
+ */
+public class Location {
+	private final String mProvider;
+	private long mTime = 0;
+	private double mLatitude = 0;
+	private double mLongitude = 0;
+	private boolean mHasAltitude = false;
+	private double mAltitude = 0;
+	private boolean mHasAccuracy = false;
+	private float mAccuracy = 0;
+
+	public Location(String provider) {
+		mProvider = provider;
+	}
+
+	public String getProvider() { return mProvider; }
+
+	public long getTime() { return mTime; }
+
+	public void setTime(long time) { mTime = time; }
+
+	public double getLatitude() { return mLatitude; }
+
+	public void setLatitude(double latitude) { mLatitude = latitude; }
+
+	public double getLongitude() { return mLongitude; }
+
+	public void setLongitude(double longitude) { mLongitude = longitude; }
+
+	public boolean hasAltitude() { return mHasAltitude; }
+
+	public double getAltitude() { return mAltitude; }
+
+	public void setAltitude(double altitude) {
+		mAltitude = altitude;
+		mHasAltitude = true;
+	}
+
+	public boolean hasAccuracy() { return mHasAccuracy; }
+
+	public float getAccuracy() { return mAccuracy; }
+
+	public void setAccuracy(float accuracy) {
+		mAccuracy = accuracy;
+		mHasAccuracy = true;
+	}
+}
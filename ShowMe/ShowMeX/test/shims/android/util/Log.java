@@ -0,0 +1,18 @@
+package android.util;
+
+/*
+ * Desktop stand-in for the framework's Log, for the unit tests only. Messages are dropped.
+ */
+public final class Log {
+	private Log() {}
+
+	public static int v(String tag, String msg) { return 0; }
+
+	public static int d(String tag, String msg) { return 0; }
+
+	public static int i(String tag, String msg) { return 0; }
+
+	public static int w(String tag, String msg) { return 0; }
+
+	public static int e(String tag, String msg) { return 0; }
+}
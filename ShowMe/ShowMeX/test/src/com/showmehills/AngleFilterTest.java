@@ -0,0 +1,238 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AngleFilterTest {
+	private static final String[] MODES = { AngleFilter.MODE_MEAN, AngleFilter.MODE_EXPONENTIAL, AngleFilter.MODE_KALMAN };
+
+	// the old filteredDirection: re-sums the whole window on every reading and every query
+	static class Reference {
+		final int window;
+		final double[] sinevalues, cosvalues;
+		int index = 0;
+		double dir;
+
+		Reference(int window) {
+			this.window = window;
+			sinevalues = new double[window];
+			cosvalues = new double[window];
+		}
+
+		void add(double d) {
+			sinevalues[index] = Math.sin(d);
+			cosvalues[index] = Math.cos(d);
+			index = (index + 1) % window;
+			double sumc = 0, sums = 0;
+			for (int a = 0; a < window; a++)
+			{
+				sumc += cosvalues[a];
+				sums += sinevalues[a];
+			}
+			dir = Math.atan2(sums / window, sumc / window);
+		}
+
+		double variation() {
+			double sumc = 0, sums = 0;
+			for (int a = 0; a < window; a++)
+			{
+				sumc += cosvalues[a];
+				sums += sinevalues[a];
+			}
+			double avgc = sumc / window, avgs = sums / window;
+			sumc = 0;
+			sums = 0;
+			for (int a = 0; a < window; a++)
+			{
+				sumc += Math.pow(cosvalues[a] - avgc, 2);
+				sums += Math.pow(sinevalues[a] - avgs, 2);
+			}
+			return (sumc / (window - 1) + sums / (window - 1)) * 1000;
+		}
+	}
+
+	private static double wrap(double a) {
+		return Math.atan2(Math.sin(a), Math.cos(a));
+	}
+
+	@Test
+	public void circularMeanMatchesFullResum() {
+		Random rnd = new Random(3);
+		for (int window : new int[] { 2, 10, 50, 1000 })
+		{
+			AngleFilter filter = AngleFilter.create(AngleFilter.MODE_MEAN, window);
+			Reference reference = new Reference(window);
+			double heading = 3;
+			for (int i = 0; i < 5 * window + 500; i++)
+			{
+				// a slowly turning compass with noise, crossing +-PI now and then
+				heading += 0.01;
+				double d = wrap(heading + rnd.nextGaussian() * 0.2);
+				filter.add(d);
+				reference.add(d);
+				assertEquals(reference.dir, filter.getAngle(), 1e-9);
+				// truncated to int by both, so allow for rounding either side of a boundary
+				assertEquals(reference.variation(), filter.getVariation(), 1.0);
+			}
+		}
+	}
+
+	@Test
+	public void runningSumsDoNotDrift() {
+		Random rnd = new Random(4);
+		AngleFilter filter = AngleFilter.create(AngleFilter.MODE_MEAN, 37);
+		Reference reference = new Reference(37);
+		for (int i = 0; i < 1000000; i++)
+		{
+			double d = rnd.nextDouble() * 2 * Math.PI - Math.PI;
+			filter.add(d);
+			if (i > 999000) reference.add(d);
+		}
+		// the reference only saw the last 1000 readings, which fill its window many times over
+		assertEquals(reference.dir, filter.getAngle(), 1e-9);
+		assertEquals(reference.variation(), filter.getVariation(), 1.0);
+	}
+
+	@Test
+	public void everyModeAveragesAcrossTheWrap() {
+		for (String mode : MODES)
+		{
+			AngleFilter filter = AngleFilter.create(mode, 20);
+			for (int i = 0; i < 200; i++) filter.add(i % 2 == 0 ? Math.PI - 0.05 : -Math.PI + 0.05);
+			assertEquals(mode, 0, wrap(filter.getAngle() - Math.PI), 0.01);
+		}
+	}
+
+	@Test
+	public void everyModeSettlesOnASteadyReading() {
+		for (String mode : MODES)
+		{
+			AngleFilter filter = AngleFilter.create(mode, 50);
+			for (int i = 0; i < 500; i++) filter.add(1.0);
+			assertEquals(mode, 1.0, filter.getAngle(), 1e-6);
+			assertEquals(mode, 0, filter.getVariation());
+			// then follows a step, though not all at once
+			filter.add(2.0);
+			double after = filter.getAngle();
+			assertTrue(mode + " jumped to " + after, after > 1.0 && after < 1.5);
+			for (int i = 0; i < 1000; i++) filter.add(2.0);
+			assertEquals(mode, 2.0, filter.getAngle(), 1e-3);
+		}
+	}
+
+	@Test
+	public void variationGrowsWithNoise() {
+		for (String mode : MODES)
+		{
+			Random rnd = new Random(5);
+			int[] variations = new int[3];
+			double[] noise = { 0.02, 0.1, 0.5 };
+			for (int n = 0; n < noise.length; n++)
+			{
+				AngleFilter filter = AngleFilter.create(mode, 50);
+				for (int i = 0; i < 2000; i++) filter.add(wrap(0.5 + rnd.nextGaussian() * noise[n]));
+				variations[n] = filter.getVariation();
+			}
+			assertTrue(mode, variations[0] < variations[1] && variations[1] < variations[2]);
+			// for small noise every mode is close to the sum of the component variances
+			assertEquals(mode, 1000 * noise[1] * noise[1], variations[1], 4);
+		}
+	}
+
+	// a reading and the frame's queries (the draw code asks for the variation twice) for each of samples
+	private static double nanosPerSample(final AngleFilter filter, final double[] samples) {
+		return Timing.nanosPer(samples.length, 10, new Timing.Body() {
+			public long run() {
+				long sum = 0;
+				for (double d : samples)
+				{
+					filter.add(d);
+					sum += (long)(filter.getAngle() * 1000) + filter.getVariation() + filter.getVariation();
+				}
+				return sum;
+			}
+		});
+	}
+
+	// the point of the running sums: a bigger window costs nothing more per sample
+	@Test
+	public void costPerSampleDoesNotGrowWithTheWindow() {
+		Random rnd = new Random(9);
+		final double[] samples = new double[20000];
+		for (int i = 0; i < samples.length; i++) samples[i] = wrap(i * 0.001 + rnd.nextGaussian() * 0.05);
+		int[] windows = { 10, 100, 1000 };
+		StringBuilder report = new StringBuilder("angle filter ns per sample, window");
+		for (int w : windows) report.append(' ').append(w);
+		double[][] nanos = new double[MODES.length][windows.length];
+		for (int m = 0; m < MODES.length; m++)
+		{
+			report.append('\n').append(MODES[m]);
+			for (int w = 0; w < windows.length; w++)
+			{
+				nanos[m][w] = nanosPerSample(AngleFilter.create(MODES[m], windows[w]), samples);
+				report.append(String.format(" %.0f", nanos[m][w]));
+			}
+			assertTrue(MODES[m] + " " + nanos[m][0] + "ns at 10, " + nanos[m][2] + "ns at 1000",
+					nanos[m][2] < nanos[m][0] * 3);
+		}
+
+		// the old full re-sum, on fewer samples as it is so much slower at the top end
+		final double[] some = new double[2000];
+		System.arraycopy(samples, 0, some, 0, some.length);
+		report.append("\nold re-sum");
+		double oldAtLargest = 0;
+		for (int w : windows)
+		{
+			final Reference old = new Reference(w);
+			oldAtLargest = Timing.nanosPer(some.length, 3, new Timing.Body() {
+				public long run() {
+					long sum = 0;
+					for (double d : some)
+					{
+						old.add(d);
+						sum += (long)(old.dir * 1000) + (long)old.variation() + (long)old.variation();
+					}
+					return sum;
+				}
+			});
+			report.append(String.format(" %.0f", oldAtLargest));
+		}
+		Timing.report(report.toString());
+		assertTrue(nanos[0][2] + "ns against " + oldAtLargest + "ns", nanos[0][2] * 10 < oldAtLargest);
+	}
+
+	@Test
+	public void smallWindowsAreClamped() {
+		for (String mode : MODES)
+		{
+			AngleFilter filter = AngleFilter.create(mode, 0);
+			filter.add(0.3);
+			filter.add(0.3);
+			assertEquals(mode, 0.3, filter.getAngle(), 1e-9);
+			assertTrue(mode, filter.getVariation() >= 0);
+		}
+	}
+}
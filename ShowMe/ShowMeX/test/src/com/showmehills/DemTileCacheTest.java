@@ -0,0 +1,91 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DemTileCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void fileNamesFollowTheSrtmConvention() {
+		assertEquals("N54W004.hgt", DemTileCache.fileName(54, -4));
+		assertEquals("S09E120.hgt", DemTileCache.fileName(-9, 120));
+		assertEquals("N00E000.hgt", DemTileCache.fileName(0, 0));
+	}
+
+	@Test
+	public void elevationIsInterpolatedAndVoidsFilled() throws IOException {
+		File dir = folder.newFolder();
+		// north row first: 55N is row 0, 54N row 3
+		short[] samples = { 400, 400, 400, 400,
+				300, 300, 300, 300,
+				200, 200, 200, DemTileCache.VOID,
+				100, 100, 100, 100 };
+		HorizonMarcherTest.writeTile(dir, 54, -4, samples);
+		DemTileCache dem = new DemTileCache(dir, 2);
+		DemTileCache.Tile tile = dem.get(54.2, -3.9);
+		assertFalse(tile.isEmpty());
+		assertTrue(tile.contains(54.99, -3.01));
+		assertFalse(tile.contains(55, -3.5));
+		assertEquals(100, tile.elevation(54, -4), 1e-9);
+		assertEquals(250, tile.elevation(54.5, -4), 1e-9);
+		assertEquals(175, tile.elevation(54.25, -3.5), 1e-9);
+		// a cell with the void in it uses its first valid corner instead
+		assertEquals(200, tile.elevation(54.1, -3.1), 1e-9);
+	}
+
+	@Test
+	public void tilesAreCachedMissingOnesToo() throws IOException {
+		File dir = folder.newFolder();
+		HorizonMarcherTest.writeTile(dir, 54, -4, new short[] { 1, 2, 3, 4 });
+		DemTileCache dem = new DemTileCache(dir, 2);
+		DemTileCache.Tile a = dem.get(54.5, -3.5);
+		assertSame(a, dem.get(54.1, -3.9));
+		DemTileCache.Tile missing = dem.get(10.5, 10.5);
+		assertTrue(missing.isEmpty());
+		assertTrue(Double.isNaN(missing.elevation(10.5, 10.5)));
+		assertSame(missing, dem.get(10.2, 10.2));
+		assertEquals(2, dem.getMisses());
+		assertEquals(2, dem.getHits());
+		// a third tile pushes out the least recently used, which was the real one
+		dem.get(-20, 30);
+		assertFalse(a == dem.get(54.5, -3.5));
+		assertEquals(4, dem.getMisses());
+	}
+
+	@Test
+	public void filesOfTheWrongSizeAreIgnored() throws IOException {
+		File dir = folder.newFolder();
+		HorizonMarcherTest.writeTile(dir, 54, -4, new short[] { 1, 2, 3 });
+		assertTrue(new DemTileCache(dir, 2).get(54.5, -3.5).isEmpty());
+	}
+}
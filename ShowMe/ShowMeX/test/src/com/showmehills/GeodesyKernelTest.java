@@ -0,0 +1,249 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GeodesyKernelTest {
+	private static final int N = 5000;
+
+	private final double[] lats = new double[N], lons = new double[N];
+	private final double[] sinLats = new double[N], cosLats = new double[N];
+	private final double[] east = new double[N], north = new double[N];
+
+	// the haversine distance and atan2 bearing SetDirections used before the kernel
+	static double[] reference(double lat0, double lon0, double lat, double lon) {
+		double[] out = new double[2];
+		reference(lat0, lon0, lat, lon, out);
+		return out;
+	}
+
+	// as above into out, so it can be timed without allocating
+	static void reference(double lat0, double lon0, double lat, double lon, double[] out) {
+		double dLat = Math.toRadians(lat - lat0);
+		double dLon = Math.toRadians(lon - lon0);
+		double lat1 = Math.toRadians(lat0), lat2 = Math.toRadians(lat);
+		double y = Math.sin(dLon) * Math.cos(lat2);
+		double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+		double brng = Math.toDegrees(Math.atan2(y, x));
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(lat2) * Math.cos(lat1) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+		out[0] = GeodesyKernel.EARTH_RADIUS_KM * c;
+		out[1] = brng < 0 ? brng + 360 : brng;
+	}
+
+	// hills scattered up to rangeKm from the observer, in every direction
+	private void scatter(Random rnd, double lat0, double lon0, double rangeKm) {
+		for (int i = 0; i < N; i++)
+		{
+			double d = rangeKm * Math.sqrt(rnd.nextDouble()) / GeodesyKernel.EARTH_RADIUS_KM;
+			double b = rnd.nextDouble() * 2 * Math.PI;
+			double p0 = Math.toRadians(lat0);
+			double p = Math.asin(Math.sin(p0) * Math.cos(d) + Math.cos(p0) * Math.sin(d) * Math.cos(b));
+			double l = Math.toRadians(lon0) + Math.atan2(Math.sin(b) * Math.sin(d) * Math.cos(p0), Math.cos(d) - Math.sin(p0) * Math.sin(p));
+			lats[i] = Math.toDegrees(p);
+			lons[i] = Math.toDegrees(Math.atan2(Math.sin(l), Math.cos(l)));
+			sinLats[i] = Math.sin(p);
+			cosLats[i] = Math.cos(p);
+		}
+	}
+
+	private static double bearingDiff(double a, double b) {
+		double d = Math.abs(a - b) % 360;
+		return Math.min(d, 360 - d);
+	}
+
+	private void check(GeodesyKernel kernel, double lat0, double lon0, double distanceTolerance, double bearingTolerance,
+			boolean relative) {
+		kernel.setObserver(lat0, lon0);
+		kernel.offsets(lats, lons, sinLats, cosLats, N, east, north);
+		for (int i = 0; i < N; i++)
+		{
+			double[] ref = reference(lat0, lon0, lats[i], lons[i]);
+			double distance = Math.sqrt(east[i] * east[i] + north[i] * north[i]);
+			double allowed = relative ? distanceTolerance * ref[0] : distanceTolerance;
+			assertEquals("distance to " + lats[i] + "," + lons[i], ref[0], distance, allowed);
+			// a bearing means little for a hill right under the observer
+			if (ref[0] < 0.01) continue;
+			double bearing = Math.toDegrees(Math.atan2(east[i], north[i]));
+			assertTrue("bearing to " + lats[i] + "," + lons[i] + ": " + bearing + " vs " + ref[1],
+					bearingDiff(bearing, ref[1]) <= bearingTolerance);
+		}
+	}
+
+	@Test
+	public void exactModeMatchesHaversineEverywhere() {
+		Random rnd = new Random(6);
+		GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setMode(GeodesyKernel.MODE_EXACT);
+		double[][] observers = { { 54.5, -3.2 }, { 0, 0 }, { -33.9, 18.4 }, { 27.99, 86.93 }, { 65, 179.9 }, { 80, -179.95 } };
+		for (double[] o : observers)
+		{
+			for (double range : new double[] { 1, 30, 100, 500 })
+			{
+				scatter(rnd, o[0], o[1], range);
+				check(kernel, o[0], o[1], 1e-9, 1e-7, false);
+			}
+		}
+	}
+
+	@Test
+	public void fastModeIsWithinItsDocumentedBound() {
+		// within 0.01% of the distance and 0.005 degrees of bearing, to 100km and below 70 degrees
+		Random rnd = new Random(7);
+		GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setMode(GeodesyKernel.MODE_FAST);
+		for (int trial = 0; trial < 40; trial++)
+		{
+			double lat0 = trial == 0 ? 69.9 : trial == 1 ? -69.9 : rnd.nextDouble() * 140 - 70;
+			double lon0 = trial == 2 ? 179.99 : trial == 3 ? -180 : rnd.nextDouble() * 360 - 180;
+			scatter(rnd, lat0, lon0, 100);
+			check(kernel, lat0, lon0, 1e-4, 0.005, true);
+		}
+	}
+
+	@Test
+	public void fastModeIsMuchBetterAtShortRange() {
+		Random rnd = new Random(8);
+		GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setMode(GeodesyKernel.MODE_FAST);
+		scatter(rnd, 57, -5, 10);
+		check(kernel, 57, -5, 1e-6, 1e-4, true);
+	}
+
+	// the case for the kernel: the same hills through the old per-hill code and both batch modes
+	@Test
+	public void batchModesCostLessPerHill() {
+		scatter(new Random(10), 54.5, -3.2, 60);
+		final double[] ref = new double[2];
+		double oldNanos = Timing.nanosPer(N, 20, new Timing.Body() {
+			public long run() {
+				double sum = 0;
+				for (int i = 0; i < N; i++)
+				{
+					reference(54.5, -3.2, lats[i], lons[i], ref);
+					sum += ref[0] + ref[1];
+				}
+				return (long)sum;
+			}
+		});
+		final GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setObserver(54.5, -3.2);
+		Timing.Body batch = new Timing.Body() {
+			public long run() {
+				kernel.offsets(lats, lons, sinLats, cosLats, N, east, north);
+				return (long)(east[N - 1] + north[N - 1]);
+			}
+		};
+		kernel.setMode(GeodesyKernel.MODE_EXACT);
+		double exactNanos = Timing.nanosPer(N, 20, batch);
+		kernel.setMode(GeodesyKernel.MODE_FAST);
+		double fastNanos = Timing.nanosPer(N, 20, batch);
+		Timing.report(String.format("geodesy per hill: haversine %.1fns, exact batch %.1fns, fast batch %.1fns",
+				oldNanos, exactNanos, fastNanos));
+		// the exact batch does the same trig less some of it, so it can't be much slower; the fast
+		// one has no trig per hill at all
+		assertTrue(exactNanos + "ns against " + oldNanos + "ns", exactNanos < oldNanos * 1.2);
+		assertTrue(fastNanos + "ns against " + exactNanos + "ns", fastNanos * 5 < exactNanos);
+	}
+
+	@Test
+	public void modeCanBeSwitchedBack() {
+		GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setMode(GeodesyKernel.MODE_FAST);
+		kernel.setMode("anything else");
+		scatter(new Random(9), 60, 10, 500);
+		// far beyond the fast mode's range, so only the exact mode passes
+		check(kernel, 60, 10, 1e-9, 1e-7, false);
+	}
+
+	@Test
+	public void batchOfNothingIsFine() {
+		GeodesyKernel kernel = new GeodesyKernel();
+		kernel.setObserver(0, 0);
+		kernel.offsets(lats, lons, sinLats, cosLats, 0, east, north);
+	}
+
+	// the apparent elevation angle SetDirections computes, in degrees
+	private static double apparent(String model, double dHeight, double km) {
+		double drop = GeodesyKernel.dropPerKmSquared(model);
+		return Math.toDegrees(Math.atan2(dHeight - drop * km * km, km * 1000));
+	}
+
+	// line of sight over a sphere of the given radius to a point dHeight up at arc length km
+	private static double sphere(double radiusKm, double dHeight, double km) {
+		double r = radiusKm * 1000, theta = km / radiusKm;
+		return Math.toDegrees(Math.atan2((r + dHeight) * Math.cos(theta) - r, (r + dHeight) * Math.sin(theta)));
+	}
+
+	@Test
+	public void dropsMatchTheDocumentedFigures() {
+		assertEquals(0, GeodesyKernel.dropPerKmSquared(GeodesyKernel.ELEVATION_FLAT), 0);
+		double curvature = GeodesyKernel.dropPerKmSquared(GeodesyKernel.ELEVATION_CURVATURE);
+		double refraction = GeodesyKernel.dropPerKmSquared(GeodesyKernel.ELEVATION_REFRACTION);
+		assertEquals(1000 / (2 * 6371.0), curvature, 1e-12);
+		assertEquals(curvature * 0.87, refraction, 1e-12);
+		assertEquals(71, curvature * 30 * 30, 0.5);
+		assertEquals(61, refraction * 30 * 30, 0.5);
+		assertEquals(785, curvature * 100 * 100, 0.5);
+		assertEquals(683, refraction * 100 * 100, 0.5);
+		// the preference's default and anything unrecognised get refraction
+		assertEquals(refraction, GeodesyKernel.dropPerKmSquared(null), 0);
+		assertEquals(refraction, GeodesyKernel.dropPerKmSquared("bogus"), 0);
+	}
+
+	@Test
+	public void curvatureLowersDistantHills() {
+		// a 1000m rise 100km away: 0.573 degrees up on a flat earth, 0.123 over the curve,
+		// 0.182 with refraction
+		assertEquals(0.5729, apparent(GeodesyKernel.ELEVATION_FLAT, 1000, 100), 1e-4);
+		assertEquals(0.1233, apparent(GeodesyKernel.ELEVATION_CURVATURE, 1000, 100), 1e-4);
+		assertEquals(0.1818, apparent(GeodesyKernel.ELEVATION_REFRACTION, 1000, 100), 1e-4);
+		// and a 500m one at the same range drops below the horizon
+		assertTrue(apparent(GeodesyKernel.ELEVATION_CURVATURE, 500, 100) < 0);
+		// close by, the models barely differ
+		double near = apparent(GeodesyKernel.ELEVATION_FLAT, 300, 2) - apparent(GeodesyKernel.ELEVATION_REFRACTION, 300, 2);
+		assertTrue(near > 0 && near < 0.01);
+	}
+
+	@Test
+	public void parabolicDropFollowsTheSphere() {
+		// refraction acts as a bigger earth, of radius R / (1 - k)
+		double bent = GeodesyKernel.EARTH_RADIUS_KM / (1 - GeodesyKernel.REFRACTION_COEFFICIENT);
+		for (double km = 1; km <= 150; km += 7)
+		{
+			for (double dHeight = -500; dHeight <= 4000; dHeight += 250)
+			{
+				// steeper than any far hill, where the arc and the straight line part
+				if (Math.abs(dHeight) > km * 100) continue;
+				assertEquals(km + "km, " + dHeight + "m", sphere(GeodesyKernel.EARTH_RADIUS_KM, dHeight, km),
+						apparent(GeodesyKernel.ELEVATION_CURVATURE, dHeight, km), 0.005);
+				assertEquals(km + "km, " + dHeight + "m", sphere(bent, dHeight, km),
+						apparent(GeodesyKernel.ELEVATION_REFRACTION, dHeight, km), 0.005);
+			}
+		}
+	}
+}
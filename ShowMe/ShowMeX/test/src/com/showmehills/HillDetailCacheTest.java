@@ -0,0 +1,132 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HillDetailCacheTest {
+	static HillDetail detail(int id) {
+		HillDetail d = new HillDetail();
+		d.id = id;
+		d.name = "Hill " + id;
+		return d;
+	}
+
+	@Test
+	public void dropsTheLeastRecentlyUsed() {
+		HillDetailCache cache = new HillDetailCache(3);
+		for (int id = 1; id <= 3; id++) cache.put(detail(id));
+		// using 1 leaves 2 as the eldest
+		assertNotNull(cache.get(1));
+		cache.put(detail(4));
+		assertEquals(3, cache.size());
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+
+		// and now 1 is the eldest
+		cache.put(detail(5));
+		assertNull(cache.get(1));
+		assertEquals(2, cache.getEvictions());
+	}
+
+	@Test
+	public void replacingAnEntryEvictsNothing() {
+		HillDetailCache cache = new HillDetailCache(2);
+		cache.put(detail(1));
+		cache.put(detail(2));
+		HillDetail newer = detail(1);
+		cache.put(newer);
+		assertEquals(2, cache.size());
+		assertEquals(0, cache.getEvictions());
+		assertSame(newer, cache.get(1));
+	}
+
+	@Test
+	public void evictionsAreCounted() {
+		HillDetailCache cache = new HillDetailCache(10);
+		for (int id = 0; id < 25; id++) cache.put(detail(id));
+		assertEquals(10, cache.size());
+		assertEquals(15, cache.getEvictions());
+		for (int id = 0; id < 15; id++) assertFalse(cache.touch(id));
+		for (int id = 15; id < 25; id++) assertTrue(cache.touch(id));
+	}
+
+	@Test
+	public void touchIsNotALookup() {
+		HillDetailCache cache = new HillDetailCache(2);
+		cache.put(detail(1));
+		cache.put(detail(2));
+		assertTrue(cache.touch(1));
+		assertFalse(cache.touch(3));
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertEquals(0, cache.hitRate(), 0);
+
+		// but it does make the hill the most recently used
+		cache.put(detail(3));
+		assertTrue(cache.touch(1));
+		assertFalse(cache.touch(2));
+	}
+
+	@Test
+	public void hitsAndMissesMakeTheRate() {
+		HillDetailCache cache = new HillDetailCache(4);
+		cache.put(detail(1));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.75f, cache.hitRate(), 0);
+		assertTrue(cache.summary(), cache.summary().contains("3 hits, 1 misses (75%)"));
+	}
+
+	@Test
+	public void warmCountsWhatWasReadAhead() {
+		HillDetailCache cache = new HillDetailCache(3);
+		cache.warm(detail(1));
+		cache.warm(detail(2));
+		cache.put(detail(3));
+		assertEquals(2, cache.getWarmed());
+		// read-ahead is neither a hit nor a miss until someone asks
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+		assertNotNull(cache.get(1));
+		assertEquals(1, cache.getHits());
+
+		// warmed entries age out like any other
+		cache.warm(detail(4));
+		assertEquals(3, cache.getWarmed());
+		assertEquals(1, cache.getEvictions());
+		assertFalse(cache.touch(2));
+		assertTrue(cache.summary(), cache.summary().contains("3 read ahead, 1 evicted"));
+	}
+}
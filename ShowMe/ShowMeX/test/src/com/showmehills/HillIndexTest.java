@@ -0,0 +1,214 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.database.sqlite.SQLiteDatabase;
+
+public class HillIndexTest {
+	private static final int HILLS = 20000;
+
+	// on cell boundaries, a single point, the whole map, its edges, clamped and empty
+	private static final double[][] EDGE_BOXES = {
+		{ 54.0, 54.1, -3.0, -2.9 },
+		{ 10.0, 10.0, 20.0, 20.0 },
+		{ -90, 90, -180, 180 },
+		{ -10, 10, 179.5, 180 },
+		{ -10, 10, -180, -179.5 },
+		{ 80, 95, -200, 200 },
+		{ 30, 20, 0, 10 },
+	};
+
+	private HillIndex index;
+
+	// mostly clustered like a real dataset, with some anywhere, and some on cell and map edges
+	static HillIndex randomIndex(Random rnd, int count) {
+		HillIndex index = new HillIndex(16);
+		for (int i = 0; i < count; i++)
+		{
+			double lat, lon;
+			switch (i % 4)
+			{
+			case 0:
+				lat = 54 + rnd.nextGaussian() * 1.5;
+				lon = -3 + rnd.nextGaussian() * 1.5;
+				break;
+			case 1:
+				lat = rnd.nextDouble() * 180 - 90;
+				lon = rnd.nextDouble() * 360 - 180;
+				break;
+			case 2:
+				lat = Math.round((rnd.nextDouble() * 160 - 80) * 10) / 10.0;
+				lon = Math.round((rnd.nextDouble() * 360 - 180) * 10) / 10.0;
+				break;
+			default:
+				lat = rnd.nextDouble() * 20 - 10;
+				lon = rnd.nextBoolean() ? 179.5 + rnd.nextDouble() * 0.5 : -180 + rnd.nextDouble() * 0.5;
+				break;
+			}
+			index.add(1000 + i, "hill " + i, lon, lat, rnd.nextDouble() * 1300);
+		}
+		index.seal();
+		return index;
+	}
+
+	@Before
+	public void setUp() {
+		index = randomIndex(new Random(1), HILLS);
+	}
+
+	private int[] query(double minLat, double maxLat, double minLon, double maxLon) {
+		HillIndex.RecordList result = new HillIndex.RecordList();
+		index.query(minLat, maxLat, minLon, maxLon, result);
+		int[] ids = new int[result.size];
+		for (int i = 0; i < result.size; i++) ids[i] = index.id(result.records[i]);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private int[] scan(double minLat, double maxLat, double minLon, double maxLon) {
+		int[] ids = new int[index.size()];
+		int n = 0;
+		for (int r = 0; r < index.size(); r++)
+		{
+			double lat = index.latitude(r), lon = index.longitude(r);
+			if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon) ids[n++] = index.id(r);
+		}
+		ids = Arrays.copyOf(ids, n);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	@Test
+	public void randomBoxesMatchFullScan() {
+		Random rnd = new Random(2);
+		for (int q = 0; q < 2000; q++)
+		{
+			double lat = q % 2 == 0 ? 54 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 180 - 90;
+			double lon = q % 2 == 0 ? -3 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 360 - 180;
+			double h = rnd.nextDouble() * (q % 10 == 0 ? 20 : 1);
+			double w = rnd.nextDouble() * (q % 10 == 0 ? 40 : 1.5);
+			assertTrue(Arrays.equals(scan(lat - h, lat + h, lon - w, lon + w), query(lat - h, lat + h, lon - w, lon + w)));
+		}
+	}
+
+	@Test
+	public void boxesOnCellBoundariesAndEdges() {
+		for (double[] b : EDGE_BOXES)
+		{
+			assertTrue(Arrays.toString(b), Arrays.equals(scan(b[0], b[1], b[2], b[3]), query(b[0], b[1], b[2], b[3])));
+		}
+		assertEquals(HILLS, query(-90, 90, -180, 180).length);
+	}
+
+	@Test
+	public void matchesTheSqlBoxQuery() throws Exception {
+		HillQueriesTest.assumeSqlite();
+		File file = File.createTempFile("hills", ".db");
+		SQLiteDatabase db = new SQLiteDatabase(HillQueriesTest.createHills(file, index));
+		try {
+			Random rnd = new Random(3);
+			for (int q = 0; q < 300; q++)
+			{
+				double lat = q % 2 == 0 ? 54 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 180 - 90;
+				double lon = q % 2 == 0 ? -3 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 360 - 180;
+				double h = rnd.nextDouble() * (q % 10 == 0 ? 20 : 1);
+				double w = rnd.nextDouble() * (q % 10 == 0 ? 40 : 1.5);
+				assertTrue(Arrays.equals(HillQueriesTest.idsInBox(db, lat - h, lat + h, lon - w, lon + w),
+						query(lat - h, lat + h, lon - w, lon + w)));
+			}
+			for (double[] b : EDGE_BOXES)
+			{
+				assertTrue(Arrays.toString(b), Arrays.equals(HillQueriesTest.idsInBox(db, b[0], b[1], b[2], b[3]),
+						query(b[0], b[1], b[2], b[3])));
+			}
+		} finally {
+			db.close();
+			file.delete();
+		}
+	}
+
+	// what the index was for: a 60km view used to scan the table, and now reads a few cells
+	@Test
+	public void fasterThanTheSqlBoxQuery() throws Exception {
+		HillQueriesTest.assumeSqlite();
+		File file = File.createTempFile("hills", ".db");
+		final SQLiteDatabase db = new SQLiteDatabase(HillQueriesTest.createHills(file, index));
+		try {
+			final int boxes = 50;
+			final HillIndex.RecordList result = new HillIndex.RecordList();
+			double indexNanos = Timing.nanosPer(boxes, 5, new Timing.Body() {
+				public long run() {
+					long found = 0;
+					for (int q = 0; q < boxes; q++)
+					{
+						result.clear();
+						index.query(53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01, result);
+						found += result.size;
+					}
+					return found;
+				}
+			});
+			double sqlNanos = Timing.nanosPer(boxes, 3, new Timing.Body() {
+				public long run() {
+					long found = 0;
+					for (int q = 0; q < boxes; q++)
+					{
+						found += HillQueriesTest.idsInBox(db, 53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01).length;
+					}
+					return found;
+				}
+			});
+			Timing.report(String.format("HillIndex %.1fus, SQL box query %.1fus per 60km view of %d hills",
+					indexNanos / 1000, sqlNanos / 1000, HILLS));
+			assertTrue(indexNanos + "ns against " + sqlNanos + "ns", indexNanos * 10 < sqlNanos);
+		} finally {
+			db.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void sealKeepsEachRecordTogether() {
+		for (int r = 0; r < index.size(); r++)
+		{
+			int i = index.id(r) - 1000;
+			assertEquals("hill " + i, index.name(r));
+			double rad = Math.toRadians(index.latitude(r));
+			assertEquals(Math.sin(rad), index.sinLatitude(r), 1e-12);
+			assertEquals(Math.cos(rad), index.cosLatitude(r), 1e-12);
+			assertEquals(LabelRanker.heightImportance(index.height(r)), index.importance(r), 0);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void addAfterSealFails() {
+		index.add(1, "late", 0, 0, 0);
+	}
+}
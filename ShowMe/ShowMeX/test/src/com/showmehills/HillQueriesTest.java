@@ -0,0 +1,224 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/*
+ * Runs HillQueries against a database laid out like the shipped hillsv1.db and indexed with
+ * Database/tools/dbindex/indexes.sql, through the desktop SQLiteDatabase shim. The app opens the
+ * database read-only, so the indexes it needs have to be in the file already; these tests are
+ * where a lookup that would scan the table gets caught.
+ */
+public class HillQueriesTest {
+	private static final int HILLS = 5000;
+
+	private File file;
+	private Connection connection;
+	private SQLiteDatabase db;
+
+	static File toolsDir() {
+		return new File(System.getProperty("showmehills.database.tools", "../../Database/tools"));
+	}
+
+	// the layout the csv import produces: untyped columns, and every value text
+	static Connection createTables(File file) throws SQLException {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+		Statement s = c.createStatement();
+		s.execute("create table dbversions (ver)");
+		s.execute("insert into dbversions values ('9')");
+		s.execute("create table mountains (_id, name, longitude, latitude, height, link, itemtype)");
+		s.close();
+		return c;
+	}
+
+	static Connection createHills(File file, int count) throws SQLException {
+		Connection c = createTables(file);
+		c.setAutoCommit(false);
+		PreparedStatement insert = c.prepareStatement("insert into mountains values (?, ?, ?, ?, ?, ?, ?)");
+		for (int i = 1; i <= count; i++)
+		{
+			insert.setString(1, Integer.toString(i));
+			insert.setString(2, "Hill " + i);
+			insert.setString(3, Double.toString(-3 + i * 0.0001));
+			insert.setString(4, Double.toString(54 + i * 0.0001));
+			insert.setString(5, Integer.toString(100 + i % 900));
+			insert.setString(6, "http://www.example.com/hill/" + i);
+			insert.setString(7, i % 2 == 0 ? "peak" : "hill");
+			insert.addBatch();
+		}
+		insert.executeBatch();
+		insert.close();
+		c.commit();
+		c.setAutoCommit(true);
+		return c;
+	}
+
+	// the same hills as a HillSource, as text the way the csv import stores them
+	static Connection createHills(File file, HillSource hills) throws SQLException {
+		Connection c = createTables(file);
+		c.setAutoCommit(false);
+		PreparedStatement insert = c.prepareStatement("insert into mountains values (?, ?, ?, ?, ?, '', 'peak')");
+		for (int r = 0; r < hills.size(); r++)
+		{
+			insert.setString(1, Integer.toString(hills.id(r)));
+			insert.setString(2, hills.name(r));
+			insert.setString(3, Double.toString(hills.longitude(r)));
+			insert.setString(4, Double.toString(hills.latitude(r)));
+			insert.setString(5, Double.toString(hills.height(r)));
+			insert.addBatch();
+		}
+		insert.executeBatch();
+		insert.close();
+		c.commit();
+		c.setAutoCommit(true);
+		return c;
+	}
+
+	// the ids HillQueries.HILLS_IN_BOX finds, sorted
+	static int[] idsInBox(SQLiteDatabase db, double minLat, double maxLat, double minLon, double maxLon) {
+		Cursor cursor = db.rawQuery(HillQueries.HILLS_IN_BOX, new String[] {
+				Double.toString(minLat), Double.toString(maxLat), Double.toString(minLon), Double.toString(maxLon) });
+		try {
+			int[] ids = new int[cursor.getCount()];
+			int n = 0;
+			if (cursor.moveToFirst())
+			{
+				do {
+					ids[n++] = cursor.getInt(HillQueries.BOX_ID);
+				} while (cursor.moveToNext());
+			}
+			Arrays.sort(ids);
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	// skips the calling test if sqlite-jdbc isn't there
+	static void assumeSqlite() {
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			Assume.assumeTrue("sqlite-jdbc isn't in junit.dir", false);
+		}
+	}
+
+	static void runScript(Connection c, File script) throws IOException, SQLException {
+		RandomAccessFile in = new RandomAccessFile(script, "r");
+		byte[] bytes = new byte[(int)in.length()];
+		in.readFully(bytes);
+		in.close();
+		Statement s = c.createStatement();
+		for (String sql : new String(bytes, "UTF-8").replaceAll("--[^\n]*", "").split(";"))
+		{
+			if (sql.trim().length() > 0) s.execute(sql);
+		}
+		s.close();
+	}
+
+	// the detail column of each step of SQLite's plan for sql, with "?" bound to a text value
+	static String plan(Connection c, String sql) throws SQLException {
+		PreparedStatement s = c.prepareStatement("explain query plan " + sql);
+		for (int i = 1; i <= s.getParameterMetaData().getParameterCount(); i++) s.setString(i, "1");
+		ResultSet rows = s.executeQuery();
+		StringBuilder plan = new StringBuilder();
+		while (rows.next()) plan.append(rows.getString(rows.getMetaData().getColumnCount())).append('\n');
+		rows.close();
+		s.close();
+		return plan.toString();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		assumeSqlite();
+		file = File.createTempFile("hills", ".db");
+		connection = createHills(file, HILLS);
+		db = new SQLiteDatabase(connection);
+	}
+
+	@After
+	public void tearDown() {
+		if (db != null) db.close();
+		if (file != null) file.delete();
+	}
+
+	@Test
+	public void detailLookupUsesTheBuiltIndex() throws Exception {
+		// the check itself: without the index the lookup scans
+		String before = plan(connection, HillQueries.HILL_DETAIL);
+		assertTrue(before, before.contains("SCAN"));
+
+		runScript(connection, new File(toolsDir(), "dbindex/indexes.sql"));
+		String after = plan(connection, HillQueries.HILL_DETAIL);
+		assertTrue(after, after.contains("USING INDEX mountains_id") || after.contains("USING COVERING INDEX"));
+		assertFalse(after, after.contains("SCAN"));
+	}
+
+	@Test
+	public void scriptCanRunTwice() throws Exception {
+		File script = new File(toolsDir(), "dbindex/indexes.sql");
+		runScript(connection, script);
+		runScript(connection, script);
+	}
+
+	@Test
+	public void readsDetailsById() throws Exception {
+		runScript(connection, new File(toolsDir(), "dbindex/indexes.sql"));
+		HillDetail detail = new HillDetail();
+		assertTrue(HillQueries.readDetail(db, 1234, detail));
+		assertEquals(1234, detail.id);
+		assertEquals("Hill 1234", detail.name);
+		assertEquals(434, detail.height, 0);
+		assertEquals("http://www.example.com/hill/1234", detail.link);
+		assertEquals("peak", detail.type);
+		assertTrue(HillQueries.readDetail(db, 1235, detail));
+		assertEquals("hill", detail.type);
+		assertFalse(HillQueries.readDetail(db, HILLS + 1, new HillDetail()));
+	}
+
+	@Test
+	public void readsTheVersion() throws Exception {
+		assertEquals(9, HillQueries.readVersion(db));
+		db.execSQL("delete from dbversions");
+		assertEquals(-1, HillQueries.readVersion(db));
+	}
+}
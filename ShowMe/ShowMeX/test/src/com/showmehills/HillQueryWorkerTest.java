@@ -0,0 +1,302 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import android.location.Location;
+
+/*
+ * Hammers the worker with location updates while a renderer thread reads snapshots, and checks
+ * that a store held by acquire() is never refilled under the reader, and that queries never
+ * start closer together than the minimum interval. Also that hill details are read on the worker
+ * using the record from the published snapshot.
+ */
+public class HillQueryWorkerTest {
+	private static final int ROWS = 200;
+
+	// fills every row of a store with the number of the query that filled it, slowly
+	static class StampingQueries implements HillQueryWorker.Queries {
+		final AtomicInteger queries = new AtomicInteger();
+
+		public void SetDirections(Location curLocation, HillStore localhills) {
+			fill(localhills, ROWS);
+		}
+
+		public void NearestHills(Location curLocation, int limit, HillStore localhills) {
+			fill(localhills, Math.min(limit, ROWS));
+		}
+
+		private void fill(HillStore store, int rows) {
+			int stamp = queries.incrementAndGet();
+			store.clear(null);
+			for (int i = 0; i < rows; i++)
+			{
+				int row = store.add(stamp, i, 0, 0, 100);
+				store.distances[row] = i;
+				store.directions[row] = i % 360;
+				if (i % 50 == 0) Thread.yield();
+			}
+		}
+
+		public boolean checkDataBase() { return true; }
+
+		public boolean readHillDetail(int id, HillSource source, int record, HillDetail out) { return false; }
+
+		public void saveHorizonCache() {}
+
+		public void close() {}
+	}
+
+	static Location location(double lat, double lon) {
+		Location loc = new Location("test");
+		loc.setLatitude(lat);
+		loc.setLongitude(lon);
+		return loc;
+	}
+
+	// null if every row of the store still carries the stamp it had when first looked at
+	static String check(HillStore s, int serial, int size, int stamp) {
+		if (s.serial() != serial) return "serial changed from " + serial + " to " + s.serial();
+		if (s.size() != size) return "size changed from " + size + " to " + s.size();
+		for (int i = 0; i < size; i++)
+		{
+			if (s.ids[i] != stamp) return "row " + i + " refilled by query " + s.ids[i] + " while query " + stamp + " was held";
+		}
+		return null;
+	}
+
+	@Test(timeout = 30000)
+	public void heldSnapshotIsNeverRefilled() throws InterruptedException {
+		final StampingQueries queries = new StampingQueries();
+		final HillQueryWorker worker = new HillQueryWorker(queries, new HillDetailCache());
+		worker.setMinInterval(0);
+		final AtomicReference<String> failure = new AtomicReference<String>(null);
+		final AtomicInteger snapshotsSeen = new AtomicInteger();
+		final long end = System.currentTimeMillis() + 2000;
+
+		Thread updates = new Thread() {
+			public void run() {
+				int i = 0;
+				while (System.currentTimeMillis() < end)
+				{
+					// far enough apart that requestUpdate never drops one as too small a move
+					Location loc = location(50 + (i % 1000) * 0.001, -3);
+					if (i % 2 == 0) worker.requestUpdate(loc);
+					else worker.requestRefresh(loc);
+					if (i % 3 == 0) worker.setNearestLimit(i % 9 == 0 ? 50 : 0);
+					i++;
+				}
+			}
+		};
+		Thread renderer = new Thread() {
+			public void run() {
+				int lastStamp = -1;
+				while (System.currentTimeMillis() < end && failure.get() == null)
+				{
+					HillStore s = worker.acquire();
+					int serial = s.serial();
+					int size = s.size();
+					int stamp = size > 0 ? s.ids[0] : -1;
+					String error = check(s, serial, size, stamp);
+					// hold it for a while, as a slow frame would
+					for (int spin = 0; spin < 20 && error == null; spin++)
+					{
+						Thread.yield();
+						error = check(s, serial, size, stamp);
+					}
+					worker.release();
+					if (error != null) failure.compareAndSet(null, error);
+					if (stamp != lastStamp)
+					{
+						snapshotsSeen.incrementAndGet();
+						lastStamp = stamp;
+					}
+				}
+			}
+		};
+		updates.start();
+		renderer.start();
+		updates.join();
+		renderer.join();
+
+		assertNull(failure.get());
+		assertTrue("only " + queries.queries.get() + " queries ran", queries.queries.get() > 100);
+		assertTrue("renderer saw only " + snapshotsSeen.get() + " snapshots", snapshotsSeen.get() > 10);
+	}
+
+	@Test(timeout = 30000)
+	public void longHeldSnapshotSurvivesManyQueries() throws InterruptedException {
+		StampingQueries queries = new StampingQueries();
+		HillQueryWorker worker = new HillQueryWorker(queries, new HillDetailCache());
+		worker.setMinInterval(0);
+		worker.requestRefresh(location(50, -3));
+		HillStore held = worker.acquire();
+		while (held.size() == 0)
+		{
+			worker.release();
+			Thread.sleep(1);
+			held = worker.acquire();
+		}
+		int serial = held.serial();
+		int stamp = held.ids[0];
+		for (int i = 1; i <= 200; i++)
+		{
+			worker.requestRefresh(location(50 + i * 0.001, -3));
+			Thread.sleep(0, 200000);
+		}
+		while (queries.queries.get() < stamp + 20) Thread.sleep(1);
+		assertNull(check(held, serial, ROWS, stamp));
+		worker.release();
+
+		// the held store wasn't lost: once released, newer snapshots are published
+		int before = queries.queries.get();
+		worker.requestRefresh(location(51, -3));
+		HillStore latest;
+		do {
+			Thread.sleep(1);
+			latest = worker.acquire();
+			worker.release();
+		} while (latest.size() == 0 || latest.ids[0] <= before);
+		assertEquals(ROWS, latest.size());
+	}
+
+	@Test(timeout = 30000)
+	public void queriesKeepTheirMinimumInterval() throws InterruptedException {
+		final long interval = 50;
+		final ConcurrentLinkedQueue<Long> starts = new ConcurrentLinkedQueue<Long>();
+		StampingQueries queries = new StampingQueries() {
+			public void SetDirections(Location curLocation, HillStore localhills) {
+				starts.add(System.nanoTime());
+				// a query that takes a good part of the interval
+				try {
+					Thread.sleep(interval / 2);
+				} catch (InterruptedException e) {
+					return;
+				}
+				super.SetDirections(curLocation, localhills);
+			}
+		};
+		final HillQueryWorker worker = new HillQueryWorker(queries, new HillDetailCache());
+		worker.setMinInterval(interval);
+		final long end = System.currentTimeMillis() + 3000;
+		final Thread[] updates = new Thread[3];
+		for (int t = 0; t < updates.length; t++)
+		{
+			final int offset = t;
+			updates[t] = new Thread() {
+				public void run() {
+					int i = offset;
+					while (System.currentTimeMillis() < end)
+					{
+						Location loc = location(50 + (i % 1000) * 0.001, -3);
+						if (i % 2 == 0) worker.requestUpdate(loc);
+						else worker.requestRefresh(loc);
+						i += updates.length;
+						// leave the worker some time on a single core
+						Thread.yield();
+					}
+				}
+			};
+			updates[t].start();
+		}
+		for (Thread t : updates) t.join();
+
+		long last = 0;
+		int n = 0;
+		for (long start : starts)
+		{
+			if (n++ > 0)
+			{
+				assertTrue("query " + n + " started " + (start - last) / 1000 + "us after the one before",
+						start - last >= (interval - 1) * 1000000L);
+			}
+			last = start;
+		}
+		// and the interval doesn't hold them back much more than it should
+		assertTrue("only " + n + " queries", n > 3000 / interval / 2);
+	}
+
+	@Test(timeout = 30000)
+	public void detailsAreLoadedOnTheWorker() throws InterruptedException {
+		StampingQueries queries = new StampingQueries() {
+			public void SetDirections(Location curLocation, HillStore localhills) {
+				localhills.clear(null);
+				for (int i = 0; i < 10; i++)
+				{
+					int row = localhills.add(1000 + i, i * 3, 0, 0, 100);
+					localhills.distances[row] = i + 1;
+				}
+			}
+
+			// hills over 1000 are there, and say which record they were read with
+			public boolean readHillDetail(int id, HillSource source, int record, HillDetail out) {
+				if (id < 1000) return false;
+				out.id = id;
+				out.name = Thread.currentThread().getName();
+				out.link = "record " + record;
+				return true;
+			}
+		};
+		HillDetailCache details = new HillDetailCache();
+		HillQueryWorker worker = new HillQueryWorker(queries, details);
+		worker.setMinInterval(0);
+		worker.requestRefresh(location(50, -3));
+		HillStore held;
+		do {
+			Thread.sleep(1);
+			held = worker.acquire();
+			worker.release();
+		} while (held.size() == 0);
+
+		final BlockingQueue<HillDetail[]> arrived = new ArrayBlockingQueue<HillDetail[]>(4);
+		HillQueryWorker.DetailListener listener = new HillQueryWorker.DetailListener() {
+			public void onHillDetail(int id, HillDetail detail) {
+				arrived.add(new HillDetail[] { detail });
+			}
+		};
+		worker.loadDetail(1007, listener);
+		HillDetail detail = arrived.poll(10, TimeUnit.SECONDS)[0];
+		assertNotNull(detail);
+		assertEquals(1007, detail.id);
+		assertEquals("showmehills-query", detail.name);
+		assertEquals("record 21", detail.link);
+		assertTrue(details.touch(1007));
+
+		// not in the snapshot, so there's no record to pass on
+		worker.loadDetail(1100, listener);
+		assertEquals("record -1", arrived.poll(10, TimeUnit.SECONDS)[0].link);
+
+		worker.loadDetail(5, listener);
+		assertNull(arrived.poll(10, TimeUnit.SECONDS)[0]);
+	}
+}
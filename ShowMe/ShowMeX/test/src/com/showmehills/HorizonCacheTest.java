@@ -0,0 +1,269 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HorizonCacheTest {
+	private static final double CELL = 100, BAND = 50;
+	private static final float MAX_DISTANCE = 30;
+	// bits of the key holding the latitude cell, the longitude cell and the altitude band
+	private static final long LAT_BITS = 0x1fffffL << 38, LON_BITS = 0x3fffffL << 16, BAND_BITS = 0xffffL;
+	// the step nearest 1km out, where the synthetic walls stand
+	private static final int WALL_STEP = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/*
+	 * A profile seen from sea level with a wall rising angle degrees above the horizon at
+	 * WALL_STEP on each ray given, and nothing on the others.
+	 */
+	private static HorizonProfile walls(double lat, double lon, float maxDistance, double angle, int... rays) {
+		boolean[] wall = new boolean[HorizonProfile.RAYS];
+		for (int r : rays) wall[r] = true;
+		int[] rayStart = new int[HorizonProfile.RAYS + 1];
+		short[] steps = new short[rays.length];
+		float[] angles = new float[rays.length];
+		int n = 0;
+		for (int r = 0; r < HorizonProfile.RAYS; r++)
+		{
+			rayStart[r] = n;
+			if (wall[r])
+			{
+				steps[n] = WALL_STEP;
+				angles[n++] = (float)Math.toRadians(angle);
+			}
+		}
+		rayStart[HorizonProfile.RAYS] = n;
+		return new HorizonProfile(lat, lon, 0, maxDistance, rayStart, steps, angles);
+	}
+
+	@Test
+	public void negativeCellsStayInTheirOwnBits() {
+		HorizonCache cache = new HorizonCache(10, CELL, BAND);
+		long key = cache.key(0.0001, 0.0001, 10);
+		// without the masks a negative cell's sign bits would spill into the fields above it
+		long south = cache.key(-0.0001, 0.0001, 10);
+		assertTrue(south != key);
+		assertEquals(0, (south ^ key) & ~LAT_BITS);
+		long west = cache.key(0.0001, -0.0001, 10);
+		assertTrue(west != key);
+		assertEquals(0, (west ^ key) & ~LON_BITS);
+		long below = cache.key(0.0001, 0.0001, -10);
+		assertTrue(below != key);
+		assertEquals(0, (below ^ key) & ~BAND_BITS);
+		// points in the same cell share a key either side of zero
+		assertEquals(cache.key(-0.0001, -0.0001, -10), cache.key(-0.0002, -0.0002, -20));
+		assertEquals(cache.key(-33.8568, 151.2153, 5), cache.key(-33.8569, 151.2152, 6));
+	}
+
+	@Test
+	public void neighbouringCellsHaveDistinctKeys() {
+		HorizonCache cache = new HorizonCache(10, CELL, BAND);
+		double cellDegrees = CELL / (Math.PI * 6371000 / 180);
+		double[] lats = { 0, -45, 60, -89.9 };
+		double[] lons = { 0, -120, 179.999, -179.999 };
+		for (double lat0 : lats)
+		{
+			for (double lon0 : lons)
+			{
+				double lonCellDegrees = cellDegrees / Math.max(Math.cos(Math.toRadians(lat0)), 0.01);
+				Set<Long> keys = new HashSet<Long>();
+				for (int i = -3; i <= 3; i++)
+				{
+					for (int j = -3; j <= 3; j++)
+					{
+						double lat = lat0 + (i + 0.5) * cellDegrees, lon = lon0 + (j + 0.5) * lonCellDegrees;
+						assertTrue(lat + "," + lon, keys.add(Long.valueOf(cache.key(lat, lon, 100))));
+					}
+				}
+			}
+		}
+		// the cells either side of the antimeridian
+		assertTrue(cache.key(-17.5, 179.9999, 0) != cache.key(-17.5, -179.9999, 0));
+	}
+
+	@Test
+	public void fixesWithoutAnAltitudeGetTheirOwnBand() {
+		HorizonCache cache = new HorizonCache(10, CELL, BAND);
+		long none = cache.key(54.5, -3.2, Double.NaN);
+		assertEquals(none, cache.key(54.5, -3.2, Double.NaN));
+		for (double altitude = -500; altitude < 9000; altitude += BAND / 2)
+		{
+			assertTrue(altitude + "m", cache.key(54.5, -3.2, altitude) != none);
+		}
+
+		HorizonProfile profile = walls(54.5, -3.2, MAX_DISTANCE, 5, 0);
+		cache.put(54.5, -3.2, Double.NaN, profile);
+		assertNull(cache.get(54.5, -3.2, 0, MAX_DISTANCE));
+		assertSame(profile, cache.get(54.5, -3.2, Double.NaN, MAX_DISTANCE));
+	}
+
+	@Test
+	public void aDifferentMaxDistanceIsAMiss() {
+		HorizonCache cache = new HorizonCache(10, CELL, BAND);
+		HorizonProfile profile = walls(54.5, -3.2, MAX_DISTANCE, 5, 0);
+		cache.put(54.5, -3.2, 300, profile);
+		assertNull(cache.get(54.5, -3.2, 300, MAX_DISTANCE * 2));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertSame(profile, cache.get(54.5, -3.2, 300, MAX_DISTANCE));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		// a fresh profile for the new distance replaces the old one in that cell
+		HorizonProfile further = walls(54.5, -3.2, MAX_DISTANCE * 2, 5, 0);
+		cache.put(54.5, -3.2, 300, further);
+		assertEquals(1, cache.size());
+		assertSame(further, cache.get(54.5, -3.2, 300, MAX_DISTANCE * 2));
+		assertNull(cache.get(54.5, -3.2, 300, MAX_DISTANCE));
+	}
+
+	@Test
+	public void saveAndLoadKeepTheLruOrder() throws IOException {
+		File file = new File(folder.getRoot(), "horizons");
+		HorizonCache cache = new HorizonCache(3, CELL, BAND);
+		double[] lats = { 54.1, 54.2, 54.3, 54.4 };
+		for (int i = 0; i < 3; i++) cache.put(lats[i], -3.2, 300, walls(lats[i], -3.2, MAX_DISTANCE, 5, i));
+		// the first becomes the most recently used, leaving the second the eldest
+		assertNotNull(cache.get(lats[0], -3.2, 300, MAX_DISTANCE));
+		cache.save(file);
+		assertTrue(file.exists());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		HorizonCache loaded = new HorizonCache(3, CELL, BAND);
+		loaded.load(file);
+		assertEquals(3, loaded.size());
+		// adding a fourth evicts the second, as it would have in the original
+		loaded.put(lats[3], -3.2, 300, walls(lats[3], -3.2, MAX_DISTANCE, 5, 3));
+		assertEquals(3, loaded.size());
+		assertNull(loaded.get(lats[1], -3.2, 300, MAX_DISTANCE));
+		for (int i : new int[] { 0, 2, 3 })
+		{
+			HorizonProfile profile = loaded.get(lats[i], -3.2, 300, MAX_DISTANCE);
+			assertNotNull("profile " + i, profile);
+			assertEquals(lats[i], profile.latitude, 0);
+			assertTrue(profile.isHidden(i * 360.0 / HorizonProfile.RAYS, 5, 0));
+		}
+
+		// a cache with a different grid ignores the file
+		HorizonCache coarser = new HorizonCache(3, CELL * 2, BAND);
+		coarser.load(file);
+		assertEquals(0, coarser.size());
+	}
+
+	@Test
+	public void saveOnlyWritesNewProfiles() throws IOException {
+		File file = new File(folder.getRoot(), "horizons");
+		HorizonCache cache = new HorizonCache(3, CELL, BAND);
+		cache.save(file);
+		assertFalse(file.exists());
+		cache.put(54.5, -3.2, 300, walls(54.5, -3.2, MAX_DISTANCE, 5, 0));
+		cache.save(file);
+		assertTrue(file.delete());
+		cache.save(file);
+		assertFalse(file.exists());
+
+		// nor does loading count as something new
+		cache.put(54.6, -3.2, 300, walls(54.6, -3.2, MAX_DISTANCE, 5, 0));
+		cache.save(file);
+		HorizonCache loaded = new HorizonCache(3, CELL, BAND);
+		loaded.load(file);
+		assertEquals(2, loaded.size());
+		assertTrue(file.delete());
+		loaded.save(file);
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void profileSurvivesWriteAndRead() throws IOException {
+		HorizonProfile profile = walls(-17.5, 179.9, MAX_DISTANCE, 3, 0, 1, 200, 719);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		profile.write(out);
+		out.close();
+		HorizonProfile read = HorizonProfile.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(profile.latitude, read.latitude, 0);
+		assertEquals(profile.longitude, read.longitude, 0);
+		assertEquals(profile.getObserverAltitude(), read.getObserverAltitude(), 0);
+		assertEquals(profile.maxDistance, read.maxDistance, 0);
+		assertEquals(4, read.getCoveredRays());
+		for (int r = 0; r < HorizonProfile.RAYS; r++)
+		{
+			double direction = r * 360.0 / HorizonProfile.RAYS;
+			assertEquals("ray " + r, profile.isHidden(direction, 5, 0), read.isHidden(direction, 5, 0));
+		}
+
+		// a count of changes that can't be right is an error, not a huge allocation
+		byte[] bad = bytes.toByteArray();
+		int count = 8 * 3 + 4;
+		bad[count] = (byte)0x80;
+		try {
+			HorizonProfile.read(new DataInputStream(new ByteArrayInputStream(bad)));
+			fail("read a negative change count");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void raysWrapFrom719ToZero() {
+		double half = 360.0 / HorizonProfile.RAYS;
+		// a wall on ray 0 only
+		HorizonProfile north = walls(54.5, -3.2, MAX_DISTANCE, 3, 0);
+		assertTrue(north.isHidden(0, 5, 0));
+		assertTrue(north.isHidden(360 - half * 0.4, 5, 0));
+		assertTrue(north.isHidden(360, 5, 0));
+		assertTrue(north.isHidden(-half * 0.4, 5, 0));
+		assertFalse(north.isHidden(360 - half, 5, 0));
+		assertFalse(north.isHidden(-half * 0.6, 5, 0));
+		assertFalse(north.isHidden(half, 5, 0));
+		// and one on ray 719 only
+		HorizonProfile west = walls(54.5, -3.2, MAX_DISTANCE, 3, HorizonProfile.RAYS - 1);
+		assertTrue(west.isHidden(360 - half, 5, 0));
+		assertTrue(west.isHidden(-half, 5, 0));
+		assertTrue(west.isHidden(-half * 0.6, 5, 0));
+		assertFalse(west.isHidden(0, 5, 0));
+		assertFalse(west.isHidden(360 - half * 0.4, 5, 0));
+		// nearer than the wall, or high enough to show over it, is not hidden
+		assertFalse(west.isHidden(-half, 1, 0));
+		assertFalse(west.isHidden(-half, 5, 1000));
+	}
+}
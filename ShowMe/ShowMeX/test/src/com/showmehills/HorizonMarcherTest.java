@@ -0,0 +1,204 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * Horizon profiles over a synthetic one degree SRTM tile: flat ground at 100m with a 600m wall
+ * running east-west across latitude 54.5, from longitude -3.9 to -3.1. And a wall just east of
+ * the antimeridian, for rays that cross it.
+ */
+public class HorizonMarcherTest {
+	static final int SIZE = 1201;
+	static final double OBSERVER_LAT = 54.3;
+	static final double OBSERVER_LON = -3.5;
+	static final float MAX_DISTANCE = 60;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static void writeTile(File dir, int south, int west, short[] samples) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2);
+		bytes.asShortBuffer().put(samples);
+		FileOutputStream out = new FileOutputStream(new File(dir, DemTileCache.fileName(south, west)));
+		try {
+			out.write(bytes.array());
+		} finally {
+			out.close();
+		}
+	}
+
+	static short[] wallTile() {
+		short[] samples = new short[SIZE * SIZE];
+		for (int row = 0; row < SIZE; row++)
+		{
+			double lat = 55 - row / (double)(SIZE - 1);
+			for (int col = 0; col < SIZE; col++)
+			{
+				double lon = -4 + col / (double)(SIZE - 1);
+				boolean wall = Math.abs(lat - 54.5) < 0.01 && lon > -3.9 && lon < -3.1;
+				samples[row * SIZE + col] = (short)(wall ? 600 : 100);
+			}
+		}
+		return samples;
+	}
+
+	// flat ground at 100m; in the tile west of the antimeridian, a 600m wall runs north-south
+	// along longitude -179.85 from latitude -17.8 to -17.2
+	static short[] antimeridianTile(int west) {
+		short[] samples = new short[SIZE * SIZE];
+		for (int row = 0; row < SIZE; row++)
+		{
+			double lat = -17 - row / (double)(SIZE - 1);
+			for (int col = 0; col < SIZE; col++)
+			{
+				double lon = west + col / (double)(SIZE - 1);
+				boolean wall = Math.abs(lon + 179.85) < 0.01 && lat > -17.8 && lat < -17.2;
+				samples[row * SIZE + col] = (short)(wall ? 600 : 100);
+			}
+		}
+		return samples;
+	}
+
+	private DemTileCache wallDem() throws IOException {
+		File dir = folder.newFolder("dem");
+		writeTile(dir, 54, -4, wallTile());
+		return new DemTileCache(dir, 4);
+	}
+
+	private static double km(double dLat) {
+		return dLat * Math.PI * GeodesyKernel.EARTH_RADIUS_KM / 180;
+	}
+
+	@Test
+	public void wallHidesLowPeaksBehindItOnly() throws IOException {
+		HorizonProfile profile = new HorizonMarcher().compute(wallDem(), OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		assertNotNull(profile);
+		// no altitude given, so the observer stands at eye height on the ground
+		assertEquals(101.7, profile.getObserverAltitude(), 0.01);
+
+		double behind = km(54.7 - OBSERVER_LAT);
+		assertTrue(profile.isHidden(0, behind, 500));
+		assertFalse("tall enough to show over the wall", profile.isHidden(0, behind, 3000));
+		assertFalse("in front of the wall", profile.isHidden(0, km(54.45 - OBSERVER_LAT), 300));
+		assertFalse("nothing between to the south", profile.isHidden(180, km(OBSERVER_LAT - 54.1), 150));
+		// the wall spans about 25 km either side of north from here; due east there is none
+		assertTrue(profile.isHidden(20, behind / Math.cos(Math.toRadians(20)), 500));
+		assertFalse(profile.isHidden(90, 30, 120));
+	}
+
+	@Test
+	public void raysCarryOnAcrossTheAntimeridian() throws IOException {
+		File dir = folder.newFolder("fiji");
+		writeTile(dir, -18, 179, antimeridianTile(179));
+		writeTile(dir, -18, -180, antimeridianTile(-180));
+		// 0.1 degrees west of the antimeridian, so the wall is about 26km due east
+		HorizonProfile profile = new HorizonMarcher().compute(new DemTileCache(dir, 4), -17.5, 179.9, Double.NaN, MAX_DISTANCE);
+		assertNotNull(profile);
+		double perDegree = km(1) * Math.cos(Math.toRadians(17.5));
+		assertTrue(profile.isHidden(90, 0.4 * perDegree, 400));
+		assertFalse("tall enough to show over the wall", profile.isHidden(90, 0.4 * perDegree, 3000));
+		assertFalse("in front of the wall", profile.isHidden(90, 0.2 * perDegree, 300));
+		assertFalse("nothing to the west", profile.isHidden(270, 0.4 * perDegree, 120));
+	}
+
+	@Test
+	public void aHighObserverSeesOverTheWall() throws IOException {
+		HorizonProfile profile = new HorizonMarcher().compute(wallDem(), OBSERVER_LAT, OBSERVER_LON, 2000, MAX_DISTANCE);
+		assertNotNull(profile);
+		assertEquals(2000, profile.getObserverAltitude(), 0);
+		assertFalse(profile.isHidden(0, km(54.7 - OBSERVER_LAT), 500));
+	}
+
+	@Test
+	public void noElevationDataGivesNoProfile() throws IOException {
+		DemTileCache empty = new DemTileCache(folder.newFolder("none"), 4);
+		assertNull(new HorizonMarcher().compute(empty, OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE));
+		assertNull(new HorizonMarcher().compute(new DemTileCache(null, 4), 0, 0, 100, MAX_DISTANCE));
+	}
+
+	@Test
+	public void repeatedComputesAgree() throws IOException {
+		DemTileCache dem = wallDem();
+		HorizonMarcher marcher = new HorizonMarcher();
+		HorizonProfile first = marcher.compute(dem, OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		// a different position in between must not leave anything behind in the marcher
+		marcher.compute(dem, 54.8, -3.2, 400, 20);
+		HorizonProfile again = marcher.compute(dem, OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		assertSameAnswers(first, again);
+	}
+
+	@Test
+	public void profileSurvivesWriteAndRead() throws IOException {
+		HorizonProfile profile = new HorizonMarcher().compute(wallDem(), OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		profile.write(out);
+		out.close();
+		HorizonProfile read = HorizonProfile.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(profile.getCoveredRays(), read.getCoveredRays());
+		assertSameAnswers(profile, read);
+	}
+
+	private static void assertSameAnswers(HorizonProfile a, HorizonProfile b) {
+		for (int direction = 0; direction < 360; direction += 3)
+		{
+			for (double distance = 1; distance < MAX_DISTANCE; distance += 2.5)
+			{
+				for (double height = 100; height < 1500; height += 150)
+				{
+					assertEquals(direction + " " + distance + " " + height, a.isHidden(direction, distance, height),
+							b.isHidden(direction, distance, height));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void costPerFixStaysBounded() throws IOException {
+		DemTileCache dem = wallDem();
+		HorizonMarcher marcher = new HorizonMarcher();
+		marcher.compute(dem, OBSERVER_LAT, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		int runs = 20;
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++) marcher.compute(dem, OBSERVER_LAT + i * 0.01, OBSERVER_LON, Double.NaN, MAX_DISTANCE);
+		long micros = (System.nanoTime() - start) / 1000 / runs;
+		// generous, so a loaded build machine doesn't fail it; a phone is far slower than this
+		assertTrue(micros + "us per fix", micros < 2000000);
+	}
+}
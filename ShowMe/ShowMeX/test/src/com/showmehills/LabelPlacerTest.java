@@ -0,0 +1,277 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LabelPlacerTest {
+	private static final int WIDTH = 800, HEIGHT = 480;
+
+	private static boolean overlaps(LabelPlacer placer, int i, int left, int top, int right, int bottom) {
+		return left < placer.right(i) && right > placer.left(i) && top < placer.bottom(i) && bottom > placer.top(i);
+	}
+
+	private static boolean fits(LabelPlacer placer, int left, int top, int right, int bottom) {
+		for (int i = 0; i < placer.size(); i++)
+		{
+			if (overlaps(placer, i, left, top, right, bottom)) return false;
+		}
+		return true;
+	}
+
+	private static void checkNoOverlaps(LabelPlacer placer) {
+		for (int i = 0; i < placer.size(); i++)
+		{
+			for (int j = i + 1; j < placer.size(); j++)
+			{
+				assertTrue("labels " + placer.id(i) + " and " + placer.id(j) + " overlap",
+						!overlaps(placer, j, placer.left(i), placer.top(i), placer.right(i), placer.bottom(i)));
+			}
+		}
+	}
+
+	// the same search as LabelPlacer.place, but checking every label placed so far, as the draw code used to
+	private static int placeByScan(int[] rects, int count, int x, int half, int height, int minTop, int maxBottom, int step) {
+		int left = x - half, right = x + half;
+		for (int b = maxBottom; b - height >= minTop; )
+		{
+			int blocker = Integer.MAX_VALUE;
+			for (int i = 0; i < count * 4 && blocker == Integer.MAX_VALUE; i += 4)
+			{
+				if (left < rects[i + 2] && right > rects[i] && b - height < rects[i + 3] && b > rects[i + 1]) blocker = rects[i + 1];
+			}
+			if (blocker == Integer.MAX_VALUE)
+			{
+				rects[count * 4] = left;
+				rects[count * 4 + 1] = b - height;
+				rects[count * 4 + 2] = right;
+				rects[count * 4 + 3] = b;
+				return b;
+			}
+			b = Math.min(b - step, blocker);
+		}
+		return Integer.MIN_VALUE;
+	}
+
+	/*
+	 * Random labels at a fixed density, on a screen scaled to hold the given number: positions,
+	 * half widths, heights and lowest bottoms, four ints a label.
+	 */
+	private static int[] crowd(int labels, int width, int height, long seed) {
+		Random rnd = new Random(seed);
+		int[] l = new int[labels * 4];
+		for (int i = 0; i < l.length; i += 4)
+		{
+			l[i] = rnd.nextInt(width);
+			l[i + 1] = 10 + rnd.nextInt(50);
+			l[i + 2] = 12 + rnd.nextInt(8);
+			l[i + 3] = height / 4 + rnd.nextInt(height * 3 / 4);
+		}
+		return l;
+	}
+
+	private static double nanosPerLabel(final LabelPlacer placer, final int[] labels, final int width, final int height) {
+		return Timing.nanosPer(labels.length / 4, 10, new Timing.Body() {
+			public long run() {
+				long sum = 0;
+				placer.begin(width, height);
+				for (int i = 0; i < labels.length; i += 4)
+				{
+					sum += placer.place(i, labels[i], labels[i + 1], labels[i + 2], 0, labels[i + 3], 4);
+				}
+				return sum;
+			}
+		});
+	}
+
+	private static double nanosPerLabelByScan(final int[] labels) {
+		final int[] rects = new int[labels.length];
+		return Timing.nanosPer(labels.length / 4, 10, new Timing.Body() {
+			public long run() {
+				long sum = 0;
+				int count = 0;
+				for (int i = 0; i < labels.length; i += 4)
+				{
+					int b = placeByScan(rects, count, labels[i], labels[i + 1], labels[i + 2], 0, labels[i + 3], 4);
+					if (b != Integer.MIN_VALUE) count++;
+					sum += b;
+				}
+				return sum;
+			}
+		});
+	}
+
+	// ten times the labels on ten times the screen: the grid costs about the same per label, a scan ten times as much
+	@Test
+	public void costPerLabelDoesNotGrowWithTheLabelCount() {
+		int smallWidth = WIDTH, smallHeight = HEIGHT;
+		int bigWidth = (int)(WIDTH * Math.sqrt(10)), bigHeight = (int)(HEIGHT * Math.sqrt(10));
+		int[] few = crowd(100, smallWidth, smallHeight, 21), many = crowd(1000, bigWidth, bigHeight, 22);
+
+		// the two can jump past different blockers, so only check the grid's placements are sound
+		LabelPlacer placer = new LabelPlacer();
+		placer.begin(bigWidth, bigHeight);
+		for (int i = 0; i < many.length; i += 4)
+		{
+			placer.place(i, many[i], many[i + 1], many[i + 2], 0, many[i + 3], 4);
+		}
+		checkNoOverlaps(placer);
+		int count = placer.size();
+
+		double gridFew = nanosPerLabel(placer, few, smallWidth, smallHeight);
+		double gridMany = nanosPerLabel(placer, many, bigWidth, bigHeight);
+		double scanFew = nanosPerLabelByScan(few);
+		double scanMany = nanosPerLabelByScan(many);
+		Timing.report(String.format("label placement ns per label, 100 then 1000 labels (%d placed): grid %.0f %.0f, scan %.0f %.0f",
+				count, gridFew, gridMany, scanFew, scanMany));
+		assertTrue(gridFew + "ns at 100, " + gridMany + "ns at 1000", gridMany < gridFew * 3);
+		assertTrue(gridMany + "ns against " + scanMany + "ns", gridMany * 3 < scanMany);
+	}
+
+	@Test
+	public void placesAtTheLowestFreeSpotOrNowhere() {
+		// with a step of one pixel the search misses nothing, so brute force agrees exactly
+		Random rnd = new Random(18);
+		LabelPlacer placer = new LabelPlacer();
+		for (int frame = 0; frame < 30; frame++)
+		{
+			placer.begin(WIDTH, HEIGHT);
+			for (int id = 0; id < 150; id++)
+			{
+				int x = rnd.nextInt(WIDTH + 100) - 50;
+				int half = 10 + rnd.nextInt(60);
+				int height = 12 + rnd.nextInt(20);
+				int maxBottom = 100 + rnd.nextInt(HEIGHT - 100);
+				int minTop = rnd.nextInt(60);
+				int expected = Integer.MIN_VALUE;
+				for (int b = maxBottom; b - height >= minTop; b--)
+				{
+					if (fits(placer, x - half, b - height, x + half, b))
+					{
+						expected = b;
+						break;
+					}
+				}
+				int bottom = placer.place(frame * 1000 + id, x, half, height, minTop, maxBottom, 1);
+				assertEquals("label " + id, expected, bottom);
+			}
+			checkNoOverlaps(placer);
+		}
+	}
+
+	@Test
+	public void biggerStepsNeverOverlapOrLeaveTheirBand() {
+		Random rnd = new Random(19);
+		LabelPlacer placer = new LabelPlacer();
+		for (int frame = 0; frame < 30; frame++)
+		{
+			placer.begin(WIDTH, HEIGHT);
+			for (int id = 0; id < 200; id++)
+			{
+				int height = 20;
+				int minTop = rnd.nextInt(40);
+				int maxBottom = 200 + rnd.nextInt(HEIGHT - 200);
+				int bottom = placer.place(id, rnd.nextInt(WIDTH), 40, height, minTop, maxBottom, 1 + rnd.nextInt(30));
+				if (bottom != Integer.MIN_VALUE)
+				{
+					assertTrue(bottom <= maxBottom && bottom - height >= minTop);
+				}
+			}
+			checkNoOverlaps(placer);
+		}
+	}
+
+	@Test
+	public void hitTestFindsTheLabelUnderThePoint() {
+		Random rnd = new Random(20);
+		LabelPlacer placer = new LabelPlacer();
+		placer.begin(WIDTH, HEIGHT);
+		for (int id = 0; id < 120; id++)
+		{
+			placer.place(100 + id, rnd.nextInt(WIDTH), 5 + rnd.nextInt(50), 16, 0, 100 + rnd.nextInt(HEIGHT - 100), 4);
+		}
+		for (int trial = 0; trial < 20000; trial++)
+		{
+			int x = rnd.nextInt(WIDTH + 40) - 20, y = rnd.nextInt(HEIGHT + 40) - 20;
+			int expected = -1;
+			for (int i = 0; i < placer.size(); i++)
+			{
+				if (x >= placer.left(i) && x < placer.right(i) && y >= placer.top(i) && y < placer.bottom(i)
+						&& x >= 0 && y >= 0 && x < WIDTH && y < HEIGHT)
+				{
+					expected = placer.id(i);
+				}
+			}
+			assertEquals(x + "," + y, expected, placer.hitTest(x, y));
+		}
+	}
+
+	@Test
+	public void newFrameForgetsTheOldLabels() {
+		LabelPlacer placer = new LabelPlacer();
+		placer.begin(WIDTH, HEIGHT);
+		assertEquals(200, placer.place(7, 400, 50, 20, 0, 200, 5));
+		assertEquals(7, placer.hitTest(400, 190));
+		placer.begin(WIDTH, HEIGHT);
+		assertEquals(0, placer.size());
+		assertEquals(-1, placer.hitTest(400, 190));
+		// a label whose old spot is taken moves, one whose spot is free goes back to it
+		assertEquals(200, placer.place(8, 400, 50, 20, 0, 200, 5));
+		assertEquals(180, placer.place(7, 400, 50, 20, 0, 200, 5));
+		placer.begin(WIDTH, HEIGHT);
+		assertEquals(180, placer.place(7, 400, 50, 20, 0, 200, 5));
+		assertEquals(200, placer.place(8, 400, 50, 20, 0, 200, 5));
+		// unless it's no longer allowed there
+		placer.begin(WIDTH, HEIGHT);
+		assertEquals(150, placer.place(7, 400, 50, 20, 0, 150, 5));
+	}
+
+	@Test
+	public void labelsMayHangOffTheScreen() {
+		LabelPlacer placer = new LabelPlacer();
+		placer.begin(WIDTH, HEIGHT);
+		assertEquals(30, placer.place(1, -20, 40, 20, -100, 30, 5));
+		assertEquals(10, placer.place(2, 0, 10, 20, -100, 30, 5));
+		assertEquals(HEIGHT + 10, placer.place(3, WIDTH + 5, 30, 20, 0, HEIGHT + 10, 5));
+		checkNoOverlaps(placer);
+		assertEquals(1, placer.hitTest(0, 25));
+		assertEquals(3, placer.hitTest(WIDTH - 1, HEIGHT - 1));
+		assertEquals(-1, placer.hitTest(-1, 25));
+		assertEquals(-1, placer.hitTest(WIDTH, HEIGHT - 1));
+	}
+
+	@Test
+	public void fullColumnRejectsTheLabel() {
+		LabelPlacer placer = new LabelPlacer();
+		placer.begin(WIDTH, HEIGHT);
+		for (int id = 0; id < 10; id++)
+		{
+			assertEquals(200 - id * 20, placer.place(id, 100, 20, 20, 0, 200, 7));
+		}
+		assertEquals(Integer.MIN_VALUE, placer.place(10, 100, 20, 20, 0, 200, 7));
+		// but there is room beside it
+		assertEquals(200, placer.place(11, 150, 10, 20, 0, 200, 7));
+	}
+}
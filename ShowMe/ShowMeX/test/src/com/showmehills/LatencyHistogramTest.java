@@ -0,0 +1,136 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	private static final long US = 1000;
+
+	@Test
+	public void bucketsTileTheRangeWithoutGaps() {
+		assertEquals(0, LatencyHistogram.bucket(0));
+		assertEquals(15, LatencyHistogram.bucket(15));
+		assertEquals(16, LatencyHistogram.bucket(16));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Integer.MAX_VALUE));
+		assertEquals(Integer.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+
+		// every value is in the one bucket whose range holds it
+		for (int b = 1; b < LatencyHistogram.BUCKETS; b++)
+		{
+			long top = LatencyHistogram.upperBound(b), below = LatencyHistogram.upperBound(b - 1);
+			assertTrue(top > below);
+			assertEquals(b, LatencyHistogram.bucket((int)below + 1));
+			assertEquals(b, LatencyHistogram.bucket((int)top));
+			// and none is more than an eighth wide
+			if (b >= 16) assertTrue("bucket " + b, top - below <= (below + 1) / 8);
+		}
+		for (int shift = 4; shift < 31; shift++)
+		{
+			int p = 1 << shift;
+			assertEquals(LatencyHistogram.bucket(p - 1) + 1, LatencyHistogram.bucket(p));
+			assertEquals(p - 1, LatencyHistogram.upperBound(LatencyHistogram.bucket(p - 1)));
+		}
+	}
+
+	@Test
+	public void percentilesAreTheTopOfTheExactValuesBucket() {
+		Random rnd = new Random(20);
+		LatencyHistogram h = new LatencyHistogram();
+		int[] micros = new int[LatencyHistogram.CAPACITY];
+		for (int i = 0; i < micros.length; i++)
+		{
+			// log-normal-ish, like frame and query times
+			micros[i] = (int)Math.exp(5 + rnd.nextGaussian() * 1.5);
+			h.record(micros[i] * US + rnd.nextInt(1000));
+		}
+		int[] sorted = micros.clone();
+		Arrays.sort(sorted);
+		for (double p : new double[] { 0, 0.01, 0.5, 0.9, 0.95, 0.99, 1 })
+		{
+			int exact = sorted[Math.max(1, (int)Math.ceil(p * sorted.length)) - 1];
+			long reported = h.percentile(p);
+			assertEquals("p" + p, LatencyHistogram.upperBound(LatencyHistogram.bucket(exact)), reported);
+			assertTrue(reported >= exact && reported <= exact * 1.125 + 1);
+		}
+		assertEquals(sorted[sorted.length - 1], h.max());
+	}
+
+	@Test
+	public void windowKeepsTheLastSamplesOnly() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < LatencyHistogram.CAPACITY; i++) h.record(5000 * US);
+		assertEquals(5000, h.mean());
+		for (int i = 0; i < LatencyHistogram.CAPACITY; i++) h.record(10 * US);
+		assertEquals(LatencyHistogram.CAPACITY, h.size());
+		assertEquals(2 * LatencyHistogram.CAPACITY, h.total());
+		assertEquals(10, h.mean());
+		assertEquals(10, h.max());
+		assertEquals(10, h.percentile(1));
+
+		// half way through the next lap, the window is half and half
+		for (int i = 0; i < LatencyHistogram.CAPACITY / 2; i++) h.record(1000 * US);
+		assertEquals(505, h.mean());
+		assertEquals(10, h.percentile(0.5));
+		assertEquals(LatencyHistogram.upperBound(LatencyHistogram.bucket(1000)), h.percentile(0.51));
+	}
+
+	@Test
+	public void clampsOutOfRangeSamples() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5000);
+		assertEquals(0, h.percentile(1));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Integer.MAX_VALUE, h.percentile(1));
+		assertEquals(Integer.MAX_VALUE, h.max());
+	}
+
+	@Test
+	public void resetEmptiesEverything() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.percentile(0.5));
+		for (int i = 0; i < 1000; i++) h.record(i * US);
+		h.reset();
+		assertEquals(0, h.size());
+		assertEquals(0, h.total());
+		assertEquals(0, h.mean());
+		assertEquals(0, h.max());
+		assertEquals(0, h.percentile(0.99));
+		StringBuilder sb = new StringBuilder();
+		h.appendBuckets(sb);
+		assertEquals("", sb.toString());
+
+		// and it fills up again from the start
+		h.record(3 * US);
+		h.record(3 * US);
+		h.record(100 * US);
+		assertEquals(3, h.size());
+		assertEquals(35, h.mean());
+		sb.setLength(0);
+		h.appendBuckets(sb);
+		assertEquals(" 3:2 103:1", sb.toString());
+	}
+}
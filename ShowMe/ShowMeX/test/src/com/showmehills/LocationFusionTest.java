@@ -0,0 +1,184 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class LocationFusionTest {
+	private static final double LAT = 54.5, LON = -3.1;
+	private static final double METRES_PER_DEGREE = GeodesyKernel.EARTH_RADIUS_KM * 1000 * Math.PI / 180;
+	private static final long START = 1350000000000L;
+
+	// a trace, built a fix at a time as RapidGPSLock logs them
+	private static class Trace {
+		final StringBuilder lines = new StringBuilder();
+
+		// a fix northMetres north of the start, taken at time and arriving delay ms later
+		Trace fix(String provider, long time, long delay, double northMetres, double accuracy, double altitude) {
+			lines.append(LocationFusion.traceLine(provider, START + time, START + time + delay,
+					LAT + northMetres / METRES_PER_DEGREE, LON, accuracy, altitude)).append('\n');
+			return this;
+		}
+
+		Trace fix(String provider, long time, double northMetres, double accuracy) {
+			return fix(provider, time, 100, northMetres, accuracy, Double.NaN);
+		}
+
+		int replay(LocationFusion fusion) throws IOException {
+			return fusion.replay(new BufferedReader(new StringReader(lines.toString())));
+		}
+	}
+
+	private static double north(LocationFusion fusion) {
+		return (fusion.getLatitude() - LAT) * METRES_PER_DEGREE;
+	}
+
+	@Test
+	public void steadyGpsIsHardlyPassedOn() throws IOException {
+		Trace trace = new Trace();
+		for (int i = 0; i < 60; i++) trace.fix("gps", i * 2000, (i % 3) - 1, 8);
+		LocationFusion fusion = new LocationFusion();
+		// the first fix, and perhaps once more as averaging firms up the accuracy
+		int published = trace.replay(fusion);
+		assertTrue("published " + published, published >= 1 && published <= 2);
+		assertEquals(60, fusion.getFixes());
+		assertEquals(0, fusion.getRepeats());
+		assertTrue(Math.abs(north(fusion)) < 2);
+		assertTrue(fusion.getAccuracy(fusion.getTime()) < 8);
+	}
+
+	@Test
+	public void walkingIsPassedOnEveryFewMetres() throws IOException {
+		Trace trace = new Trace();
+		for (int i = 0; i < 100; i++) trace.fix("gps", i * 2000, i * 3, 5);
+		LocationFusion fusion = new LocationFusion();
+		int published = trace.replay(fusion);
+		// 300m at one update per 10m or so
+		assertTrue("published " + published, published >= 20 && published <= 35);
+		assertEquals(297, north(fusion), 10);
+	}
+
+	@Test
+	public void repeatsFromTheSameProviderAreIgnored() throws IOException {
+		Trace trace = new Trace();
+		trace.fix("gps", 0, 0, 10);
+		// the passive provider passes the same fix on under its own provider's name
+		trace.fix("gps", 0, 0, 10);
+		trace.fix("gps", 2000, 0, 10);
+		trace.fix("gps", 2000, 0, 10);
+		trace.fix("network", 2000, 0, 500);
+		LocationFusion fusion = new LocationFusion();
+		trace.replay(fusion);
+		assertEquals(5, fusion.getFixes());
+		assertEquals(2, fusion.getRepeats());
+	}
+
+	@Test
+	public void otherProvidersDontShadowEachOther() throws IOException {
+		// two providers that aren't gps or network, taking fixes at the same times
+		Trace trace = new Trace();
+		for (int i = 0; i < 10; i++)
+		{
+			trace.fix("fused", i * 1000, 0, 20);
+			trace.fix("mock", i * 1000, 0, 20);
+		}
+		LocationFusion fusion = new LocationFusion();
+		trace.replay(fusion);
+		assertEquals(20, fusion.getFixes());
+		assertEquals(0, fusion.getRepeats());
+	}
+
+	@Test
+	public void lateFixesCountForLess() throws IOException {
+		Trace trace = new Trace();
+		trace.fix("gps", 60000, 0, 10);
+		// a network fix from a minute before, 300m away, delivered after the GPS fix
+		trace.fix("network", 0, 61000, 300, 50, Double.NaN);
+		// and a GPS fix older than the one already in, which is a repeat
+		trace.fix("gps", 58000, 3000, 200, 5, Double.NaN);
+		LocationFusion fusion = new LocationFusion();
+		trace.replay(fusion);
+		assertEquals(1, fusion.getRepeats());
+		assertTrue("moved to " + north(fusion), north(fusion) < 15);
+		assertEquals(START + 60000, fusion.getTime());
+	}
+
+	@Test
+	public void switchesBetweenGpsAndNetwork() throws IOException {
+		Trace trace = new Trace();
+		long t = 0;
+		// GPS at the start
+		for (int i = 0; i < 10; i++, t += 2000) trace.fix("gps", t, 0, 8);
+		// indoors: only the network, which puts us 400m north
+		trace.fix("network", t, 400, 300);
+		LocationFusion fusion = new LocationFusion();
+		trace.replay(fusion);
+		// the first network fix only nudges a GPS position a few seconds old...
+		double afterNetwork = north(fusion);
+		assertTrue("moved to " + afterNetwork, afterNetwork > 0 && afterNetwork < 5);
+
+		// ...but as the network keeps saying so for half an hour, it is believed
+		trace = new Trace();
+		for (int i = 0; i < 60; i++) trace.fix("network", t += 30000, 400, 300);
+		trace.replay(fusion);
+		assertTrue("moved to " + north(fusion), north(fusion) > 350);
+		assertTrue(fusion.getAccuracy(fusion.getTime()) > 30);
+
+		// and back outside, GPS takes over at once and its accuracy is passed on
+		long back = t + 20000;
+		assertEquals(1, new Trace().fix("gps", back, 20, 6).replay(fusion));
+		assertEquals(20, north(fusion), 5);
+		assertTrue(fusion.getAccuracy(fusion.getTime()) < 10);
+	}
+
+	@Test
+	public void altitudeChangesArePassedOn() throws IOException {
+		Trace trace = new Trace();
+		trace.fix("gps", 0, 100, 0, 5, 300);
+		for (int i = 1; i <= 20; i++) trace.fix("gps", i * 2000, 100, 0, 5, 300 + i * 5);
+		LocationFusion fusion = new LocationFusion();
+		int published = trace.replay(fusion);
+		assertTrue(fusion.hasAltitude());
+		assertEquals(400, fusion.getAltitude(), 10);
+		// a climb of 100m at one update per 25m
+		assertTrue("published " + published, published >= 3 && published <= 6);
+	}
+
+	@Test
+	public void replaysALogcatCapture() throws IOException {
+		String capture = "D/showmehills( 1234): " + LocationFusion.traceLine("gps", START, START + 50, LAT, LON, 12, 250.5) + "\n"
+				+ "D/showmehills( 1234): something else\n"
+				+ "D/showmehills( 1234): fix,gps,notanumber,0,0,0,0,\n"
+				+ "D/showmehills( 1234): fix,gps,1,2\n"
+				+ "D/showmehills( 1234): " + LocationFusion.traceLine("network", START + 5000, START + 5100, LAT, LON, 0, Double.NaN) + "\n";
+		LocationFusion fusion = new LocationFusion();
+		assertEquals(1, fusion.replay(new BufferedReader(new StringReader(capture))));
+		assertEquals(2, fusion.getFixes());
+		assertEquals(250.5, fusion.getAltitude(), 1e-9);
+		assertEquals(LAT, fusion.getLatitude(), 1e-6);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/*
+ * Feeds OrientationFusion the readings a phone held up in portrait would give, pointing its
+ * camera at a known heading and tilt, and checks what comes back.
+ */
+public class OrientationFusionTest {
+	private static final double G = 9.81;
+	// a UK-like field, in microtesla: 18 north, 45 down
+	private static final double B_NORTH = 18;
+	private static final double B_DOWN = 45;
+	private static final double TOLERANCE = Math.toRadians(0.1);
+
+	private final float[] gravity = new float[3];
+	private final float[] geomagnetic = new float[3];
+
+	/*
+	 * Sensor readings for the camera (the device's -z axis) pointing heading degrees east of
+	 * magnetic north and tilted up by tilt degrees, with the screen's y axis as near up as it
+	 * goes. World axes are east, north, up.
+	 */
+	private void pose(double heading, double tilt) {
+		double h = Math.toRadians(heading), t = Math.toRadians(tilt);
+		double[] camera = { Math.sin(h) * Math.cos(t), Math.cos(h) * Math.cos(t), Math.sin(t) };
+		double[] y = { -Math.sin(h) * Math.sin(t), -Math.cos(h) * Math.sin(t), Math.cos(t) };
+		double[] z = { -camera[0], -camera[1], -camera[2] };
+		double[] x = { y[1] * z[2] - y[2] * z[1], y[2] * z[0] - y[0] * z[2], y[0] * z[1] - y[1] * z[0] };
+		double[] up = { 0, 0, 1 };
+		double[] field = { 0, B_NORTH, -B_DOWN };
+		double[][] axes = { x, y, z };
+		for (int i = 0; i < 3; i++)
+		{
+			gravity[i] = (float)(G * dot(axes[i], up));
+			geomagnetic[i] = (float)dot(axes[i], field);
+		}
+	}
+
+	private static double dot(double[] a, double[] b) {
+		return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+	}
+
+	private static void assertAngle(double expectedDegrees, double actualRadians) {
+		double diff = Math.toRadians(expectedDegrees) - actualRadians;
+		diff = Math.atan2(Math.sin(diff), Math.cos(diff));
+		assertEquals("expected " + expectedDegrees + " got " + Math.toDegrees(actualRadians), 0, diff, TOLERANCE);
+	}
+
+	@Test
+	public void azimuthFollowsHeading() {
+		OrientationFusion fusion = new OrientationFusion();
+		for (int heading = 0; heading < 360; heading += 15)
+		{
+			pose(heading, 0);
+			assertTrue(fusion.update(gravity, geomagnetic));
+			assertAngle(heading, fusion.getAzimuth());
+			assertAngle(0, fusion.getPitch());
+		}
+	}
+
+	@Test
+	public void pitchFollowsTilt() {
+		OrientationFusion fusion = new OrientationFusion();
+		for (int tilt = -60; tilt <= 60; tilt += 10)
+		{
+			pose(120, tilt);
+			assertTrue(fusion.update(gravity, geomagnetic));
+			assertAngle(120, fusion.getAzimuth());
+			assertAngle(-tilt, fusion.getPitch());
+		}
+	}
+
+	@Test
+	public void declinationTurnsMagneticIntoTrueNorth() {
+		OrientationFusion fusion = new OrientationFusion();
+		fusion.setDeclination(-3.5f);
+		pose(90, 0);
+		assertTrue(fusion.update(gravity, geomagnetic));
+		assertAngle(86.5, fusion.getAzimuth());
+		fusion.setDeclination(10);
+		pose(355, 20);
+		assertTrue(fusion.update(gravity, geomagnetic));
+		assertAngle(5, fusion.getAzimuth());
+		assertAngle(-20, fusion.getPitch());
+	}
+
+	@Test
+	public void landscapeMappingsAgreeWithPortraitWhereTheyShould() {
+		OrientationFusion portrait = new OrientationFusion();
+		OrientationFusion left = new OrientationFusion();
+		left.setDisplayRotation(OrientationFusion.ROTATION_90);
+		pose(200, 15);
+		assertTrue(portrait.update(gravity, geomagnetic));
+		assertTrue(left.update(gravity, geomagnetic));
+		assertEquals(portrait.getAzimuth(), left.getAzimuth(), 0);
+		assertEquals(portrait.getPitch(), left.getPitch(), 0);
+	}
+
+	@Test
+	public void unusableReadingsKeepTheLastOrientation() {
+		OrientationFusion fusion = new OrientationFusion();
+		pose(45, 10);
+		assertTrue(fusion.update(gravity, geomagnetic));
+		float azimuth = fusion.getAzimuth(), pitch = fusion.getPitch();
+		// free fall
+		assertFalse(fusion.update(new float[3], geomagnetic));
+		// field parallel to gravity, as at the magnetic pole
+		assertFalse(fusion.update(new float[] { 0, 9.81f, 0 }, new float[] { 0, 40, 0 }));
+		assertEquals(azimuth, fusion.getAzimuth(), 0);
+		assertEquals(pitch, fusion.getPitch(), 0);
+	}
+
+	@Test
+	public void updateDoesNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		OrientationFusion fusion = new OrientationFusion();
+		fusion.setDeclination(2);
+		pose(30, 5);
+		// warm up, so the JIT and class loading are out of the way
+		for (int i = 0; i < 20000; i++) fusion.update(gravity, geomagnetic);
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < 100000; i++) fusion.update(gravity, geomagnetic);
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		// allow for the measurement itself, but not a byte per event
+		assertTrue(allocated + " bytes for 100000 events", allocated < 10000);
+	}
+
+	// a fastest-rate sensor gives an event every 5ms; the fusion should be a tiny part of that
+	@Test
+	public void updateCostsUnderAMicrosecond() {
+		final int poses = 360;
+		final float[][] gravities = new float[poses][], fields = new float[poses][];
+		for (int i = 0; i < poses; i++)
+		{
+			pose(i, (i % 120) - 60);
+			gravities[i] = gravity.clone();
+			fields[i] = geomagnetic.clone();
+		}
+		final OrientationFusion fusion = new OrientationFusion();
+		fusion.setDeclination(2);
+		double nanos = Timing.nanosPer(poses * 100, 10, new Timing.Body() {
+			public long run() {
+				long sum = 0;
+				for (int n = 0; n < 100; n++)
+				{
+					for (int i = 0; i < poses; i++)
+					{
+						fusion.update(gravities[i], fields[i]);
+						sum += (long)(fusion.getAzimuth() * 1000) + (long)(fusion.getPitch() * 1000);
+					}
+				}
+				return sum;
+			}
+		});
+		Timing.report(String.format("orientation fusion %.0fns per event", nanos));
+		assertTrue(nanos + "ns per event", nanos < 1000);
+	}
+}
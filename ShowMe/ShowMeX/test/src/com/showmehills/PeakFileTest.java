@@ -0,0 +1,385 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/*
+ * Peak files built here in the layout csv2peaks.py writes, checked against a HillIndex of the
+ * same hills and against the SQL the app used before, and timed against it.
+ */
+public class PeakFileTest {
+	private static final int HILLS = 20000;
+	private static final int DATA_VERSION = 9;
+	// some names that take more than one byte a character in UTF-8
+	private static final String[] NAMES = { "Sgùrr nan Gillean", "Škrlatica", "富士山", "Ötscher", "Τύμφη ⛰" };
+
+	static class Peak {
+		int id;
+		String name;
+		String link;
+		String type;
+		int latE6;
+		int lonE6;
+		float height;
+		int importance;
+
+		int cellKey() { return HillIndex.cellKey(latE6 / 1e6, lonE6 / 1e6); }
+	}
+
+	private List<Peak> peaks;
+	private PeakFile file;
+	private HillIndex index;
+
+	// the same spread as HillIndexTest.randomIndex, at the file's micro-degree resolution
+	static List<Peak> randomPeaks(Random rnd, int count) {
+		List<Peak> peaks = new ArrayList<Peak>();
+		for (int i = 0; i < count; i++)
+		{
+			double lat, lon;
+			switch (i % 4)
+			{
+			case 0:
+				lat = 54 + rnd.nextGaussian() * 1.5;
+				lon = -3 + rnd.nextGaussian() * 1.5;
+				break;
+			case 1:
+				lat = rnd.nextDouble() * 180 - 90;
+				lon = rnd.nextDouble() * 360 - 180;
+				break;
+			case 2:
+				lat = Math.round((rnd.nextDouble() * 160 - 80) * 10) / 10.0;
+				lon = Math.round((rnd.nextDouble() * 360 - 180) * 10) / 10.0;
+				break;
+			default:
+				lat = rnd.nextDouble() * 20 - 10;
+				lon = rnd.nextBoolean() ? 179.5 + rnd.nextDouble() * 0.5 : -180 + rnd.nextDouble() * 0.5;
+				break;
+			}
+			Peak p = new Peak();
+			p.id = 1000 + i;
+			p.name = i % 7 == 0 ? NAMES[i / 7 % NAMES.length] + " " + i : "hill " + i;
+			p.link = i % 3 == 0 ? "" : "http://www.example.com/hill/" + i;
+			p.type = i % 2 == 0 ? "peak" : "höhe";
+			p.latE6 = (int)Math.round(Math.max(-90, Math.min(90, lat)) * 1e6);
+			p.lonE6 = (int)Math.round(Math.max(-180, Math.min(180, lon)) * 1e6);
+			p.height = rnd.nextInt(13000) / 10f;
+			p.importance = 1 + rnd.nextInt(255);
+			peaks.add(p);
+		}
+		return peaks;
+	}
+
+	// the bytes csv2peaks.py would write for these peaks; format 1 leaves the importance byte 0
+	static ByteBuffer build(int format, List<Peak> peaks) throws IOException {
+		List<Peak> sorted = new ArrayList<Peak>(peaks);
+		Collections.sort(sorted, new Comparator<Peak>() {
+			public int compare(Peak a, Peak b) {
+				if (a.cellKey() != b.cellKey()) return a.cellKey() < b.cellKey() ? -1 : 1;
+				return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+			}
+		});
+		int textLength = 0;
+		for (Peak p : sorted)
+		{
+			textLength += utf8(p.name).length + utf8(p.link).length + utf8(p.type).length;
+		}
+		int textOffset = PeakFile.HEADER_SIZE + sorted.size() * PeakFile.RECORD_SIZE;
+		ByteBuffer b = ByteBuffer.allocate(textOffset + textLength);
+		b.putInt(PeakFile.MAGIC).putInt(format).putInt(DATA_VERSION).putInt(sorted.size())
+			.putInt(PeakFile.HEADER_SIZE).putInt(PeakFile.RECORD_SIZE).putInt(textOffset).putInt(textLength);
+		int text = 0;
+		for (Peak p : sorted)
+		{
+			byte[] name = utf8(p.name), link = utf8(p.link), type = utf8(p.type);
+			b.putInt(p.cellKey()).putInt(p.id).putInt(p.latE6).putInt(p.lonE6).putFloat(p.height).putInt(text)
+				.putShort((short)name.length).putShort((short)link.length).put((byte)type.length)
+				.put((byte)(format >= 2 ? p.importance : 0)).putShort((short)0);
+			text += name.length + link.length + type.length;
+		}
+		for (Peak p : sorted) b.put(utf8(p.name)).put(utf8(p.link)).put(utf8(p.type));
+		b.clear();
+		return b;
+	}
+
+	static byte[] utf8(String s) throws IOException {
+		return s.getBytes("UTF-8");
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		peaks = randomPeaks(new Random(1), HILLS);
+		file = new PeakFile(build(PeakFile.FORMAT_VERSION, peaks));
+		index = new HillIndex(HILLS);
+		for (Peak p : peaks) index.add(p.id, p.name, p.lonE6 / 1e6, p.latE6 / 1e6, p.height);
+		index.seal();
+	}
+
+	private static int[] ids(HillSource source, HillIndex.RecordList records) {
+		int[] ids = new int[records.size];
+		for (int i = 0; i < records.size; i++) ids[i] = source.id(records.records[i]);
+		Arrays.sort(ids);
+		return ids;
+	}
+
+	private void assertSameRecords(double minLat, double maxLat, double minLon, double maxLon) {
+		HillIndex.RecordList fromFile = new HillIndex.RecordList();
+		HillIndex.RecordList fromIndex = new HillIndex.RecordList();
+		file.query(minLat, maxLat, minLon, maxLon, fromFile);
+		index.query(minLat, maxLat, minLon, maxLon, fromIndex);
+		String box = minLat + ".." + maxLat + ", " + minLon + ".." + maxLon;
+		assertTrue(box, Arrays.equals(ids(index, fromIndex), ids(file, fromFile)));
+	}
+
+	@Test
+	public void queriesMatchTheIndex() {
+		assertEquals(HILLS, file.size());
+		Random rnd = new Random(2);
+		for (int q = 0; q < 2000; q++)
+		{
+			double lat = q % 2 == 0 ? 54 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 180 - 90;
+			double lon = q % 2 == 0 ? -3 + rnd.nextGaussian() * 2 : rnd.nextDouble() * 360 - 180;
+			double h = rnd.nextDouble() * (q % 10 == 0 ? 20 : 1);
+			double w = rnd.nextDouble() * (q % 10 == 0 ? 40 : 1.5);
+			assertSameRecords(lat - h, lat + h, lon - w, lon + w);
+		}
+	}
+
+	@Test
+	public void edgeCellsMatchTheIndex() {
+		// on cell boundaries, a single point, the whole map, its edges, the poles, clamped and empty
+		double[][] boxes = {
+			{ 54.0, 54.1, -3.0, -2.9 },
+			{ 10.0, 10.0, 20.0, 20.0 },
+			{ -90, 90, -180, 180 },
+			{ -10, 10, 179.9, 180 },
+			{ -10, 10, -180, -179.9 },
+			{ 89.9, 90, -180, 180 },
+			{ -90, -89.9, -180, 180 },
+			{ 80, 95, -200, 200 },
+			{ 30, 20, 0, 10 },
+		};
+		for (double[] b : boxes) assertSameRecords(b[0], b[1], b[2], b[3]);
+		// and every hill on a cell corner, in a box that just holds it
+		for (Peak p : peaks)
+		{
+			if (p.latE6 % 100000 != 0 || p.lonE6 % 100000 != 0) continue;
+			assertSameRecords(p.latE6 / 1e6, p.latE6 / 1e6, p.lonE6 / 1e6, p.lonE6 / 1e6);
+		}
+	}
+
+	@Test
+	public void textDecodes() {
+		for (int r = 0; r < file.size(); r++)
+		{
+			Peak p = peaks.get(file.id(r) - 1000);
+			assertEquals(p.name, file.name(r));
+			assertEquals(p.link, file.link(r));
+			assertEquals(p.type, file.itemType(r));
+			assertEquals(p.latE6 / 1e6, file.latitude(r), 0);
+			assertEquals(p.lonE6 / 1e6, file.longitude(r), 0);
+			assertEquals(p.height, file.height(r), 0);
+			assertEquals(r, file.find(p.id));
+		}
+		assertEquals(-1, file.find(999));
+	}
+
+	@Test
+	public void namesSurviveCacheCollisions() {
+		// records that share a set of the name cache, three or more to a set
+		List<List<Integer>> sets = new ArrayList<List<Integer>>();
+		for (int s = 0; s < PeakFile.NAME_CACHE_SETS; s++) sets.add(new ArrayList<Integer>());
+		for (int r = 0; r < file.size(); r++)
+		{
+			sets.get((r * 0x9e3779b9) >>> 22 & (PeakFile.NAME_CACHE_SETS - 1)).add(r);
+		}
+		int checked = 0;
+		for (List<Integer> set : sets)
+		{
+			if (set.size() < 3) continue;
+			int a = set.get(0), b = set.get(1), c = set.get(2);
+			// a third name evicts the least recently used of two, then each is asked for again
+			int[] order = { a, b, a, c, b, c, a, a, b, c };
+			for (int r : order) assertEquals(peaks.get(file.id(r) - 1000).name, file.name(r));
+			checked++;
+		}
+		assertTrue(checked > 100);
+
+		// and in no particular order, for long enough to go round the cache many times
+		Random rnd = new Random(3);
+		for (int i = 0; i < 100000; i++)
+		{
+			int r = i % 2 == 0 ? rnd.nextInt(file.size()) : rnd.nextInt(50);
+			assertEquals(peaks.get(file.id(r) - 1000).name, file.name(r));
+		}
+	}
+
+	@Test
+	public void importanceIsReadFromFormat2() {
+		for (int r = 0; r < file.size(); r++)
+		{
+			Peak p = peaks.get(file.id(r) - 1000);
+			assertEquals((p.importance - 1) / 254f, file.importance(r), 0);
+		}
+	}
+
+	@Test
+	public void format1FallsBackToHeight() throws IOException {
+		PeakFile v1 = new PeakFile(build(1, peaks));
+		for (int r = 0; r < v1.size(); r++)
+		{
+			assertEquals(LabelRanker.heightImportance(v1.height(r)), v1.importance(r), 0);
+		}
+	}
+
+	private static void assertRejected(ByteBuffer buffer) {
+		try {
+			new PeakFile(buffer);
+			fail("accepted a bad peak file");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void badFilesAreRejected() throws IOException {
+		List<Peak> few = peaks.subList(0, 100);
+		ByteBuffer good = build(PeakFile.FORMAT_VERSION, few);
+		new PeakFile(good);
+
+		ByteBuffer magic = build(PeakFile.FORMAT_VERSION, few);
+		magic.putInt(0, 0x53514c69);
+		assertRejected(magic);
+		ByteBuffer newer = build(PeakFile.FORMAT_VERSION, few);
+		newer.putInt(4, PeakFile.FORMAT_VERSION + 1);
+		assertRejected(newer);
+		ByteBuffer recordSize = build(PeakFile.FORMAT_VERSION, few);
+		recordSize.putInt(20, PeakFile.RECORD_SIZE + 4);
+		assertRejected(recordSize);
+		assertRejected(ByteBuffer.allocate(PeakFile.HEADER_SIZE - 1));
+
+		// cut off part way through the records, and part way through the text
+		int textOffset = good.getInt(24);
+		assertRejected(slice(good, textOffset - PeakFile.RECORD_SIZE / 2));
+		assertRejected(slice(good, good.capacity() - 1));
+	}
+
+	private static ByteBuffer slice(ByteBuffer b, int length) {
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		copy.put(b.array(), 0, length);
+		copy.clear();
+		return copy;
+	}
+
+	// what the file was for: the same answers as the SQL the app used to run, much sooner
+	@Test
+	public void matchesAndBeatsTheSqlQueries() throws Exception {
+		HillQueriesTest.assumeSqlite();
+		File dbFile = File.createTempFile("hills", ".db");
+		final SQLiteDatabase db = new SQLiteDatabase(HillQueriesTest.createHills(dbFile, file));
+		try {
+			db.execSQL("create index mountains_id on mountains (_id)");
+			final int boxes = 50;
+			for (int q = 0; q < boxes; q += 10)
+			{
+				HillIndex.RecordList records = new HillIndex.RecordList();
+				file.query(53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01, records);
+				assertTrue(Arrays.equals(HillQueriesTest.idsInBox(db, 53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01),
+						ids(file, records)));
+			}
+
+			final HillIndex.RecordList result = new HillIndex.RecordList();
+			double fileNanos = Timing.nanosPer(boxes, 5, new Timing.Body() {
+				public long run() {
+					long found = 0;
+					for (int q = 0; q < boxes; q++)
+					{
+						result.clear();
+						file.query(53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01, result);
+						found += result.size;
+					}
+					return found;
+				}
+			});
+			double sqlNanos = Timing.nanosPer(boxes, 3, new Timing.Body() {
+				public long run() {
+					long found = 0;
+					for (int q = 0; q < boxes; q++)
+					{
+						found += HillQueriesTest.idsInBox(db, 53.5 + q * 0.01, 54.5 + q * 0.01, -4 + q * 0.01, -2 + q * 0.01).length;
+					}
+					return found;
+				}
+			});
+
+			// a hill's details: by record from the file, by id from SQLite
+			final int lookups = 500;
+			double fileDetailNanos = Timing.nanosPer(lookups, 5, new Timing.Body() {
+				public long run() {
+					long chars = 0;
+					for (int i = 0; i < lookups; i++)
+					{
+						int r = i * 37 % file.size();
+						chars += file.name(r).length() + file.link(r).length() + file.itemType(r).length();
+					}
+					return chars;
+				}
+			});
+			double sqlDetailNanos = Timing.nanosPer(lookups, 3, new Timing.Body() {
+				public long run() {
+					long chars = 0;
+					HillDetail detail = new HillDetail();
+					for (int i = 0; i < lookups; i++)
+					{
+						HillQueries.readDetail(db, 1000 + i * 37 % HILLS, detail);
+						chars += detail.name.length();
+					}
+					return chars;
+				}
+			});
+			Timing.report(String.format("PeakFile %.1fus, SQL box query %.1fus per 60km view of %d hills; "
+					+ "details %.2fus from the file, %.1fus from SQLite", fileNanos / 1000, sqlNanos / 1000, HILLS,
+					fileDetailNanos / 1000, sqlDetailNanos / 1000));
+			assertTrue(fileNanos + "ns against " + sqlNanos + "ns", fileNanos * 10 < sqlNanos);
+			assertTrue(fileDetailNanos + "ns against " + sqlDetailNanos + "ns", fileDetailNanos < sqlDetailNanos);
+		} finally {
+			db.close();
+			dbFile.delete();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PeakTreeTest {
+	// the tree keeps float coordinates, good to about half a metre
+	private static final double SLACK_KM = 0.002;
+
+	private static HillIndex index;
+	private static PeakTree tree;
+
+	@BeforeClass
+	public static void setUp() {
+		index = HillIndexTest.randomIndex(new Random(16), 20000);
+		tree = new PeakTree(index);
+	}
+
+	private static double[] distances(double lat, double lon) {
+		double[] d = new double[index.size()];
+		for (int r = 0; r < d.length; r++)
+		{
+			d[r] = GeodesyKernelTest.reference(lat, lon, index.latitude(r), index.longitude(r))[0];
+		}
+		return d;
+	}
+
+	// nearest first, no hill twice, and each at the distance it says
+	private static void checkResult(PeakTree.Neighbours result, double[] distances) {
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < result.size(); i++)
+		{
+			assertTrue(seen.add(result.record(i)));
+			assertEquals(distances[result.record(i)], result.distance(i), SLACK_KM);
+			if (i > 0) assertTrue(result.distance(i - 1) <= result.distance(i));
+		}
+	}
+
+	private static double[] somewhere(Random rnd, int trial) {
+		switch (trial % 4)
+		{
+		case 0: return new double[] { 54 + rnd.nextGaussian(), -3 + rnd.nextGaussian() };
+		case 1: return new double[] { rnd.nextDouble() * 20 - 10, rnd.nextBoolean() ? 179.9 : -179.9 };
+		case 2: return new double[] { rnd.nextBoolean() ? 89.99 : -89.99, rnd.nextDouble() * 360 - 180 };
+		default: return new double[] { rnd.nextDouble() * 180 - 90, rnd.nextDouble() * 360 - 180 };
+		}
+	}
+
+	@Test
+	public void nearestMatchesBruteForce() {
+		Random rnd = new Random(1);
+		PeakTree.Neighbours result = new PeakTree.Neighbours();
+		for (int trial = 0; trial < 100; trial++)
+		{
+			double[] q = somewhere(rnd, trial);
+			int k = 1 + rnd.nextInt(trial % 10 == 0 ? 500 : 40);
+			double[] d = distances(q[0], q[1]);
+			double[] sorted = d.clone();
+			Arrays.sort(sorted);
+
+			tree.nearest(q[0], q[1], k, result);
+			assertEquals(k, result.size());
+			checkResult(result, d);
+			// the same distances as the true k nearest; ties may pick different hills
+			for (int i = 0; i < k; i++)
+			{
+				assertEquals("rank " + i + " from " + q[0] + "," + q[1], sorted[i], result.distance(i), SLACK_KM);
+			}
+		}
+	}
+
+	@Test
+	public void withinAndAnnulusMatchBruteForce() {
+		Random rnd = new Random(2);
+		PeakTree.Neighbours result = new PeakTree.Neighbours();
+		for (int trial = 0; trial < 100; trial++)
+		{
+			double[] q = somewhere(rnd, trial);
+			double max = 10 + rnd.nextDouble() * 400;
+			double min = trial % 2 == 0 ? 0 : rnd.nextDouble() * max;
+			double[] d = distances(q[0], q[1]);
+
+			if (min == 0) tree.within(q[0], q[1], max, 0, result);
+			else tree.annulus(q[0], q[1], min, max, 0, result);
+			checkResult(result, d);
+			Set<Integer> found = new HashSet<Integer>();
+			for (int i = 0; i < result.size(); i++) found.add(result.record(i));
+			for (int r = 0; r < d.length; r++)
+			{
+				// right on the edge, float rounding may go either way
+				if (Math.abs(d[r] - max) < SLACK_KM || Math.abs(d[r] - min) < SLACK_KM) continue;
+				boolean inside = d[r] >= min && d[r] <= max;
+				assertEquals("hill " + d[r] + "km from " + q[0] + "," + q[1] + " in " + min + ".." + max,
+						inside, found.contains(r));
+			}
+		}
+	}
+
+	@Test
+	public void limitKeepsOnlyTheNearest() {
+		Random rnd = new Random(3);
+		PeakTree.Neighbours all = new PeakTree.Neighbours();
+		PeakTree.Neighbours some = new PeakTree.Neighbours();
+		for (int trial = 0; trial < 50; trial++)
+		{
+			double[] q = somewhere(rnd, trial);
+			tree.annulus(q[0], q[1], 20, 300, 0, all);
+			tree.annulus(q[0], q[1], 20, 300, 5, some);
+			assertEquals(Math.min(5, all.size()), some.size());
+			for (int i = 0; i < some.size(); i++) assertEquals(all.distance(i), some.distance(i), 1e-9);
+		}
+	}
+
+	@Test
+	public void emptyAndTinySources() {
+		PeakTree.Neighbours result = new PeakTree.Neighbours();
+		PeakTree empty = new PeakTree(emptyIndex());
+		empty.nearest(50, 0, 5, result);
+		assertEquals(0, result.size());
+
+		HillIndex one = new HillIndex(1);
+		one.add(7, "only", 0, 0, 100);
+		one.seal();
+		new PeakTree(one).nearest(0, 180, 5, result);
+		assertEquals(1, result.size());
+		assertEquals(Math.PI * GeodesyKernel.EARTH_RADIUS_KM, result.distance(0), SLACK_KM);
+	}
+
+	private static HillIndex emptyIndex() {
+		HillIndex empty = new HillIndex(1);
+		empty.seal();
+		return empty;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.showmehills;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class RangeQueryPlannerTest {
+	// great circle distance in km, as GeodesyKernel's exact mode
+	private static double distance(double lat0, double lon0, double lat, double lon) {
+		return GeodesyKernelTest.reference(lat0, lon0, lat, lon)[0];
+	}
+
+	// hills spread evenly over a cap of twice the radius around the observer
+	private static HillIndex around(Random rnd, double lat0, double lon0, double rangeKm, int count) {
+		HillIndex index = new HillIndex(16);
+		double p0 = Math.toRadians(lat0);
+		for (int i = 0; i < count; i++)
+		{
+			double d = rangeKm * Math.sqrt(rnd.nextDouble()) / GeodesyKernel.EARTH_RADIUS_KM;
+			double b = rnd.nextDouble() * 2 * Math.PI;
+			double p = Math.asin(Math.sin(p0) * Math.cos(d) + Math.cos(p0) * Math.sin(d) * Math.cos(b));
+			double l = Math.toRadians(lon0) + Math.atan2(Math.sin(b) * Math.sin(d) * Math.cos(p0), Math.cos(d) - Math.sin(p0) * Math.sin(p));
+			index.add(i, "hill " + i, Math.toDegrees(Math.atan2(Math.sin(l), Math.cos(l))), Math.toDegrees(p), 100);
+		}
+		index.seal();
+		return index;
+	}
+
+	private static Set<Integer> query(RangeQueryPlanner planner, HillIndex index) {
+		HillIndex.RecordList result = new HillIndex.RecordList();
+		planner.query(index, result);
+		Set<Integer> ids = new HashSet<Integer>();
+		for (int i = 0; i < result.size; i++)
+		{
+			assertTrue("returned twice", ids.add(index.id(result.records[i])));
+		}
+		return ids;
+	}
+
+	private static void checkNoneMissed(Random rnd, double lat, double lon, double radius) {
+		HillIndex index = around(rnd, lat, lon, radius * 2, 3000);
+		RangeQueryPlanner planner = new RangeQueryPlanner();
+		for (boolean prefilter : new boolean[] { true, false })
+		{
+			planner.setPrefilter(prefilter);
+			planner.plan(lat, lon, radius);
+			Set<Integer> found = query(planner, index);
+			for (int r = 0; r < index.size(); r++)
+			{
+				double d = distance(lat, lon, index.latitude(r), index.longitude(r));
+				if (d <= radius)
+				{
+					assertTrue("missed hill " + d + "km from " + lat + "," + lon + " within " + radius,
+							found.contains(index.id(r)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void neverMissesAHillInsideTheRadius() {
+		Random rnd = new Random(15);
+		for (int trial = 0; trial < 60; trial++)
+		{
+			double lat = rnd.nextDouble() * 170 - 85;
+			double lon = rnd.nextDouble() * 360 - 180;
+			double radius = 5 + rnd.nextDouble() * 300;
+			checkNoneMissed(rnd, lat, lon, radius);
+		}
+	}
+
+	@Test
+	public void neverMissesAtTheEdgesOfTheMap() {
+		Random rnd = new Random(16);
+		double[][] spots = { { 0, 179.95 }, { 0, -179.95 }, { 65.5, -180 }, { -40, 180 }, { 89.9, 0 }, { -89.5, 123 },
+				{ 88.5, 179.9 }, { 85, -10 } };
+		for (double[] spot : spots)
+		{
+			for (double radius : new double[] { 10, 100, 300 })
+			{
+				checkNoneMissed(rnd, spot[0], spot[1], radius);
+			}
+		}
+	}
+
+	@Test
+	public void splitsAtTheAntimeridian() {
+		RangeQueryPlanner planner = new RangeQueryPlanner();
+		planner.plan(52, -3, 100);
+		assertEquals(1, planner.getBoxCount());
+		planner.plan(52, 179.5, 100);
+		assertEquals(2, planner.getBoxCount());
+		planner.plan(52, -179.5, 100);
+		assertEquals(2, planner.getBoxCount());
+		// the same spot written as 180.5
+		planner.plan(52, 180.5, 100);
+		assertEquals(2, planner.getBoxCount());
+
+		HillIndex index = new HillIndex(4);
+		index.add(1, "east", 179.9, 52, 0);
+		index.add(2, "west", -179.9, 52, 0);
+		index.add(3, "far", 170, 52, 0);
+		index.seal();
+		planner.plan(52, 179.95, 50);
+		Set<Integer> found = query(planner, index);
+		assertTrue(found.contains(1) && found.contains(2));
+		assertEquals(2, found.size());
+	}
+
+	@Test
+	public void coversEveryLongitudeAtAPole() {
+		RangeQueryPlanner planner = new RangeQueryPlanner();
+		planner.plan(89.8, 40, 50);
+		assertEquals(1, planner.getBoxCount());
+
+		HillIndex index = new HillIndex(8);
+		for (int i = 0; i < 8; i++) index.add(i, "hill " + i, -180 + i * 45, 89.9, 0);
+		index.add(8, "further south", 40, 89, 0);
+		index.seal();
+		Set<Integer> found = query(planner, index);
+		assertEquals(8, found.size());
+		assertTrue(!found.contains(8));
+	}
+
+	@Test
+	public void prefilterCutsTheCornersAtAnyLatitude() {
+		// a box holds 4/pi of the circle's hills, more as the box's cosine spread grows
+		Random rnd = new Random(17);
+		RangeQueryPlanner planner = new RangeQueryPlanner();
+		for (double lat : new double[] { 0, 30, 52, 60, 70, 80 })
+		{
+			double radius = 100;
+			HillIndex index = around(rnd, lat, 10, radius * 1.5, 20000);
+			int inside = 0;
+			for (int r = 0; r < index.size(); r++)
+			{
+				if (distance(lat, 10, index.latitude(r), index.longitude(r)) <= radius) inside++;
+			}
+
+			planner.setPrefilter(false);
+			planner.plan(lat, 10, radius);
+			int unfiltered = query(planner, index).size();
+			assertEquals(unfiltered, planner.getLastInBoxes());
+			assertTrue(lat + ": box scanned " + unfiltered + " for " + inside, unfiltered > inside * 1.2);
+
+			planner.setPrefilter(true);
+			planner.plan(lat, 10, radius);
+			int kept = query(planner, index).size();
+			assertEquals(unfiltered, planner.getLastInBoxes());
+			assertTrue(lat + ": kept " + kept + " of " + inside, kept >= inside && kept <= inside * 1.1);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+    Copyright 2012 Nik Cain nik@showmehills.com
+
+    This file is part of ShowMeHills.
+
+    ShowMeHills is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ShowMeHills is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ShowMeHills.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.showmehills;
+
+/*
+ * For the tests that back a claim about cost with a measurement. A measurement is the best of
+ * a few rounds after as many warm-up rounds, so the JIT and a busy machine distort it as little
+ * as they can. The figures are only printed with "ant test -Dtimings=true", so an ordinary run
+ * stays quiet; the tests themselves assert ratios or generous bounds, never absolute times.
+ */
+final class Timing {
+	static final boolean REPORT = Boolean.getBoolean("showmehills.timings");
+
+	interface Body {
+		// does the work being timed once; returns something from it, so it can't be optimised away
+		long run();
+	}
+
+	private static volatile long sSink;
+
+	private Timing() {}
+
+	// nanoseconds per operation, where each run of body does operations of them
+	static double nanosPer(int operations, int rounds, Body body) {
+		long sink = 0;
+		for (int r = 0; r < rounds; r++) sink += body.run();
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++)
+		{
+			long start = System.nanoTime();
+			sink += body.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		sSink = sink;
+		return best / (double)operations;
+	}
+
+	static void report(String line) {
+		if (REPORT) System.out.println(line);
+	}
+}